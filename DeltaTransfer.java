@@ -0,0 +1,406 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * SEND-DELTA filename filesize: rsync-style upload of a new version of a file the server may already
+ * hold. The server answers "SIGNATURE filename blocksize count" followed, for every full block of its
+ * copy, by the block's rolling checksum (4 bytes) and MD5 (16 bytes). The client answers with literal
+ * runs and references to those blocks, closed by the MD5 of the whole new file. The new version is
+ * rebuilt next to the old one and only replaces it once the checksum matches; the server then
+ * answers "OK" or an ERROR line.
+ */
+class DeltaTransfer {
+    private static final int MIN_BLOCK = 2048;
+    private static final int MAX_BLOCK = 128 * 1024;
+    private static final int WINDOW = 4 * 1024 * 1024; // Client scan buffer, also the largest literal run
+    private static final byte LITERAL = 'L';
+    private static final byte BLOCK = 'B';
+    private static final byte END = 'E';
+
+    private DeltaTransfer() {
+    }
+
+    /**
+     * Client side: fetches the server's block signature, then scans the local file with a rolling
+     * checksum and sends only the bytes that do not match one of the server's blocks.
+     */
+    static void send(String filename, String server) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) {
+            System.out.println("File not found: " + filename);
+            return;
+        }
+
+        try (Socket socket = TCPFileTransfer.connect(server)) {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            out.write("SEND-DELTA " + file.getName() + " " + file.length() + "\r\n");
+            out.flush();
+
+            InputStream socketIn = new BufferedInputStream(socket.getInputStream(), TCPFileTransfer.RECEIVE_BUFFER_SIZE);
+            String response = TCPFileTransfer.readLine(socketIn);
+            if (response == null || !response.startsWith("SIGNATURE")) {
+                System.out.println("Error from server: " + response);
+                return;
+            }
+            String[] parts = response.split(" ");
+            int blockSize = Integer.parseInt(parts[2]);
+            int blocks = Integer.parseInt(parts[3]);
+
+            DataInputStream signatureIn = new DataInputStream(socketIn);
+            int[] weak = new int[blocks];
+            byte[] strong = new byte[blocks * 16];
+            for (int i = 0; i < blocks; i++) {
+                weak[i] = signatureIn.readInt();
+                signatureIn.readFully(strong, i * 16, 16);
+            }
+
+            DataOutputStream deltaOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), TCPFileTransfer.RECEIVE_BUFFER_SIZE));
+            long literalBytes = writeDelta(file, blockSize, new BlockIndex(weak, strong, blockSize), deltaOut);
+            deltaOut.flush();
+
+            response = TCPFileTransfer.readLine(socketIn);
+            if (response == null || !response.equals("OK")) {
+                System.out.println("Error from server: " + response);
+                return;
+            }
+            System.out.printf("File sent: %s (%d of %d bytes sent as literal data)%n", filename, literalBytes, file.length());
+        }
+    }
+
+    /**
+     * Server side: answers SIGNATURE and the block checksums of the copy on disk, then rebuilds the new
+     * version from the client's literals and block references into file.delta, which replaces the file
+     * once its MD5 matches. The file is locked by the caller. Whatever the body reader took past the
+     * checksum goes back to commands.
+     */
+    static void receive(String filename, File file, long fileSize, Socket clientSocket, PushbackInputStream commands, BufferedWriter out) throws IOException {
+        long oldSize = file.exists() ? file.length() : 0;
+        int blockSize = chooseBlockSize(oldSize);
+        int blocks = (int) (oldSize / blockSize);
+
+        out.write("SIGNATURE " + filename + " " + blockSize + " " + blocks + "\r\n");
+        out.flush();
+        DataOutputStream signatureOut = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream(), TCPFileTransfer.RECEIVE_BUFFER_SIZE));
+        writeSignature(file, blockSize, blocks, signatureOut);
+        signatureOut.flush();
+
+        TCPFileTransfer.BodyInputStream body = new TCPFileTransfer.BodyInputStream(commands);
+        DataInputStream deltaIn = new DataInputStream(body);
+        File temp = new File(file.getPath() + ".delta");
+        MessageDigest digest = md5();
+        byte[] expected = new byte[16];
+        long written = 0;
+        long literalBytes = 0;
+        int reused = 0;
+        boolean replaced = false;
+        try {
+            try (FileChannel oldChannel = blocks > 0 ? FileChannel.open(file.toPath(), StandardOpenOption.READ) : null;
+                 OutputStream tempOut = new BufferedOutputStream(new FileOutputStream(temp), TCPFileTransfer.RECEIVE_BUFFER_SIZE)) {
+                byte[] buffer = new byte[Math.max(blockSize, 64 * 1024)];
+                byte op;
+                while ((op = deltaIn.readByte()) != END) {
+                    if (op == LITERAL) {
+                        int length = deltaIn.readInt();
+                        literalBytes += length;
+                        while (length > 0) {
+                            int chunk = Math.min(length, buffer.length);
+                            deltaIn.readFully(buffer, 0, chunk);
+                            digest.update(buffer, 0, chunk);
+                            tempOut.write(buffer, 0, chunk);
+                            written += chunk;
+                            length -= chunk;
+                        }
+                    } else if (op == BLOCK) {
+                        int index = deltaIn.readInt();
+                        if (index < 0 || index >= blocks) {
+                            throw new IOException("Invalid block reference " + index);
+                        }
+                        ByteBuffer block = ByteBuffer.wrap(buffer, 0, blockSize);
+                        long position = (long) index * blockSize;
+                        while (block.hasRemaining()) {
+                            if (oldChannel.read(block, position + block.position()) == -1) {
+                                throw new EOFException("Block " + index + " is past the end of " + file);
+                            }
+                        }
+                        digest.update(buffer, 0, blockSize);
+                        tempOut.write(buffer, 0, blockSize);
+                        written += blockSize;
+                        reused++;
+                    } else {
+                        throw new IOException("Invalid delta opcode " + op);
+                    }
+                }
+                deltaIn.readFully(expected);
+                body.giveBack();
+            }
+
+            if (written != fileSize || !MessageDigest.isEqual(expected, digest.digest())) {
+                out.write("ERROR Checksum mismatch\r\n");
+                out.flush();
+                System.out.println("Delta rejected for " + file.getAbsolutePath() + ": checksum mismatch");
+                return;
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            replaced = true;
+        } finally {
+            if (!replaced) {
+                Files.deleteIfExists(temp.toPath());
+            }
+        }
+
+        out.write("OK\r\n");
+        out.flush();
+        System.out.println("File received: " + file.getAbsolutePath() + " (" + reused + " blocks reused, " + literalBytes + " literal bytes)");
+    }
+
+    /**
+     * Server-side signature: rolling checksum and MD5 of each full block of the current copy.
+     */
+    private static void writeSignature(File file, int blockSize, int blocks, DataOutputStream out) throws IOException {
+        if (blocks == 0) return;
+        MessageDigest digest = md5();
+        byte[] block = new byte[blockSize];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), TCPFileTransfer.RECEIVE_BUFFER_SIZE))) {
+            for (int i = 0; i < blocks; i++) {
+                in.readFully(block);
+                out.writeInt(weakChecksum(block, 0, blockSize));
+                out.write(digest.digest(block));
+            }
+        }
+    }
+
+    /**
+     * Scans the file one byte at a time with the rolling checksum, emitting a block reference whenever
+     * the window matches a server block and literal runs for everything in between. The scan works on
+     * a plain byte[] window refilled in WINDOW steps and the index uses primitive arrays, so the
+     * per-byte cost is a few arithmetic operations and one table probe. Returns the literal byte count.
+     */
+    private static long writeDelta(File file, int blockSize, BlockIndex index, DataOutputStream out) throws IOException {
+        MessageDigest fileDigest = md5();
+        MessageDigest blockDigest = md5();
+        byte[] buffer = new byte[WINDOW + blockSize];
+        int available = 0;
+        int position = 0;     // Start of the rolling window
+        int literalStart = 0; // Start of the pending literal run
+        boolean eof = false;
+        boolean windowValid = false;
+        int a = 0;
+        int b = 0;
+        long literalBytes = 0;
+
+        try (InputStream in = new FileInputStream(file)) {
+            while (true) {
+                if (index.isEmpty()) {
+                    position = available; // Nothing can match, everything read is literal
+                }
+                if (position + blockSize >= available && !eof) {
+                    // The window cannot roll any further: send the literal run so far and refill
+                    literalBytes += writeLiteral(out, buffer, literalStart, position - literalStart);
+                    System.arraycopy(buffer, position, buffer, 0, available - position);
+                    available -= position;
+                    position = 0;
+                    literalStart = 0;
+                    while (available < buffer.length) {
+                        int read = in.read(buffer, available, buffer.length - available);
+                        if (read == -1) {
+                            eof = true;
+                            break;
+                        }
+                        fileDigest.update(buffer, available, read);
+                        available += read;
+                    }
+                    continue; // A valid window survives the move, its content is unchanged
+                }
+                if (position + blockSize > available) break; // Tail shorter than a block
+
+                if (!windowValid) {
+                    int sum = weakChecksum(buffer, position, blockSize);
+                    a = sum & 0xffff;
+                    b = sum >>> 16;
+                    windowValid = true;
+                }
+
+                int last = available - blockSize;
+                long rolled = index.scan(buffer, position, last, (b << 16) | a);
+                position = (int) (rolled >>> 32);
+                a = (int) rolled & 0xffff;
+                b = (int) rolled >>> 16;
+
+                int match = index.find((b << 16) | a, buffer, position, blockDigest);
+                if (match >= 0) {
+                    literalBytes += writeLiteral(out, buffer, literalStart, position - literalStart);
+                    out.writeByte(BLOCK);
+                    out.writeInt(match);
+                    position += blockSize;
+                    literalStart = position;
+                    windowValid = false;
+                    continue;
+                }
+                if (position == last) {
+                    if (eof) break; // Nothing left to roll in
+                    continue;       // Refill first
+                }
+
+                int outgoing = buffer[position] & 0xff;
+                int incoming = buffer[position + blockSize] & 0xff;
+                a = (a - outgoing + incoming) & 0xffff;
+                b = (b - blockSize * outgoing + a) & 0xffff;
+                position++;
+            }
+        }
+
+        literalBytes += writeLiteral(out, buffer, literalStart, available - literalStart);
+        out.writeByte(END);
+        out.write(fileDigest.digest());
+        return literalBytes;
+    }
+
+    private static int writeLiteral(DataOutputStream out, byte[] buffer, int offset, int length) throws IOException {
+        if (length <= 0) return 0;
+        out.writeByte(LITERAL);
+        out.writeInt(length);
+        out.write(buffer, offset, length);
+        return length;
+    }
+
+    /**
+     * rsync's rolling checksum: low 16 bits are the byte sum, high 16 bits the position-weighted sum.
+     */
+    private static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xff;
+            a += x;
+            b += (length - i) * x;
+        }
+        return ((b & 0xffff) << 16) | (a & 0xffff);
+    }
+
+    /**
+     * Block size for a delta against a file of the given size: about its square root, as rsync does.
+     */
+    private static int chooseBlockSize(long fileSize) {
+        long size = ((long) Math.sqrt(fileSize) + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, size));
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Open-addressed lookup from rolling checksum to server block, kept in primitive arrays so the
+     * per-byte probe in writeDelta allocates nothing. Blocks sharing a slot are chained through next.
+     */
+    private static class BlockIndex {
+        private final int[] weak;
+        private final byte[] strong;
+        private final int blockSize;
+        private final int[] heads;
+        private final int[] next;
+        private final int mask;
+        private final long[] filter;
+        private final int filterMask;
+
+        BlockIndex(int[] weak, byte[] strong, int blockSize) {
+            this.weak = weak;
+            this.strong = strong;
+            this.blockSize = blockSize;
+            int capacity = 1;
+            while (capacity < weak.length * 2) {
+                capacity <<= 1;
+            }
+            this.mask = capacity - 1;
+            this.heads = new int[capacity];
+            this.next = new int[weak.length];
+            Arrays.fill(heads, -1);
+            for (int i = weak.length - 1; i >= 0; i--) {
+                int slot = slot(weak[i]);
+                next[i] = heads[slot];
+                heads[slot] = i;
+            }
+
+            // 16 bits per block: small enough to stay in cache, sparse enough that almost every
+            // rolling position is rejected without touching the slot table
+            int bits = 64;
+            while (bits < weak.length * 16) {
+                bits <<= 1;
+            }
+            this.filterMask = bits - 1;
+            this.filter = new long[bits >>> 6];
+            for (int sum : weak) {
+                int bit = filterBit(sum);
+                filter[bit >>> 6] |= 1L << bit;
+            }
+        }
+
+        boolean isEmpty() {
+            return weak.length == 0;
+        }
+
+        /**
+         * Rolls the checksum of the window at position forward until it may match a block or the
+         * window reaches last. Returns the final position in the high and its checksum in the low word.
+         */
+        long scan(byte[] data, int position, int last, int sum) {
+            int a = sum & 0xffff;
+            int b = sum >>> 16;
+            int blockSize = this.blockSize;
+            long[] filter = this.filter;
+            int filterMask = this.filterMask;
+            while (position < last) {
+                int h = ((b << 16) | a) * 0x85EBCA6B;
+                int bit = (h ^ (h >>> 15)) & filterMask;
+                if ((filter[bit >>> 6] & (1L << bit)) != 0) break;
+                int outgoing = data[position] & 0xff;
+                int incoming = data[position + blockSize] & 0xff;
+                a = (a - outgoing + incoming) & 0xffff;
+                b = (b - blockSize * outgoing + a) & 0xffff;
+                position++;
+            }
+            return ((long) position << 32) | ((b << 16) | a) & 0xffffffffL;
+        }
+
+        /**
+         * Returns the block whose checksums match data[offset, offset + blockSize), or -1. The MD5 is
+         * only computed when a rolling checksum actually matches.
+         */
+        int find(int sum, byte[] data, int offset, MessageDigest digest) {
+            byte[] hash = null;
+            for (int i = heads[slot(sum)]; i >= 0; i = next[i]) {
+                if (weak[i] != sum) continue;
+                if (hash == null) {
+                    digest.update(data, offset, blockSize);
+                    hash = digest.digest();
+                }
+                if (Arrays.equals(hash, 0, 16, strong, i * 16, i * 16 + 16)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private int slot(int sum) {
+            int h = sum * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        private int filterBit(int sum) {
+            int h = sum * 0x85EBCA6B;
+            return (h ^ (h >>> 15)) & filterMask;
+        }
+    }
+}
@@ -0,0 +1,400 @@
+import java.io.*;
+import java.net.*;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Local network impairment proxy, to try the transfer tools under the conditions of a real network. It
+ * listens on one port for both UDP and TCP and forwards everything to a server on another port, adding
+ * delay, jitter, loss, reordering, duplication and a bandwidth limit on the way:
+ *
+ *   java [options] ImpairmentProxy listenPort serverHost serverPort
+ *
+ *   -Ddelay=ms       one-way delay in each direction (default 0)
+ *   -Djitter=ms      extra random delay, up to this much
+ *   -Dloss=%         datagrams dropped
+ *   -Dreorder=%      datagrams held back REORDER_HOLD, so the ones after them arrive first
+ *   -Dduplicate=%    datagrams delivered twice
+ *   -Drate=Mbit/s    bottleneck rate in each direction, 0 = unlimited
+ *   -Dqueue=ms       bottleneck queue; datagrams that would wait longer are dropped (default 50)
+ *
+ * Clients are then pointed at the proxy with -Dport=listenPort. Each UDP client gets a socket of its own
+ * towards the server, so the server still tells clients apart, until it has been silent in both
+ * directions for FLOW_TIMEOUT. TCP connections get the delay, jitter
+ * and rate only, in order: a byte stream has no datagrams to lose or reorder, the kernel's TCP does that
+ * underneath. A full TCP bottleneck queue holds the sender back instead of dropping.
+ *
+ * TransferBenchmark runs it in-process and reads its counters.
+ */
+public class ImpairmentProxy implements Closeable {
+    private static final int MAX_DATAGRAM = 65535;
+    private static final int CHUNK_SIZE = 16 * 1024;       // TCP bytes forwarded per delivery
+    private static final long REORDER_HOLD = 3_000_000L;   // Extra delay of a reordered datagram, 3 ms
+    private static final long FLOW_TIMEOUT = 60_000_000_000L; // A UDP flow silent this long is closed, 60 s
+    private static final int SWEEP_INTERVAL = 1000;        // ms between checks for silent UDP flows
+
+    /**
+     * The impairments of a path, applied to each direction separately.
+     */
+    public static final class Profile {
+        final String name;
+        final double delay;      // ms
+        final double jitter;     // ms
+        final double loss;       // %
+        final double reorder;    // %
+        final double duplicate;  // %
+        final double rate;       // Mbit/s, 0 = unlimited
+        final double queue;      // ms
+
+        public Profile(String name, double delay, double jitter, double loss, double reorder, double duplicate, double rate, double queue) {
+            this.name = name;
+            this.delay = delay;
+            this.jitter = jitter;
+            this.loss = loss;
+            this.reorder = reorder;
+            this.duplicate = duplicate;
+            this.rate = rate;
+            this.queue = queue;
+        }
+
+        static Profile fromProperties() {
+            return new Profile("custom", property("delay", 0), property("jitter", 0), property("loss", 0), property("reorder", 0),
+                    property("duplicate", 0), property("rate", 0), property("queue", 50));
+        }
+
+        private static double property(String key, double defaultValue) {
+            return Double.parseDouble(System.getProperty(key, Double.toString(defaultValue)));
+        }
+
+        @Override
+        public String toString() {
+            return name + " (delay " + delay + " ms, jitter " + jitter + " ms, loss " + loss + " %, reorder " + reorder
+                    + " %, duplicate " + duplicate + " %, rate " + (rate > 0 ? rate + " Mbit/s" : "unlimited") + ")";
+        }
+    }
+
+    private final Profile profile;
+    private final InetSocketAddress server;
+    private final DatagramSocket udpSocket;
+    private final ServerSocket tcpSocket;
+    private final Map<SocketAddress, UdpFlow> udpFlows = new ConcurrentHashMap<>();
+    private final ExecutorService threads = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed;
+
+    // Counters for the benchmark, client to server (up) and back (down)
+    final AtomicLong firstPacket = new AtomicLong(); // System.nanoTime() of the first byte seen, 0 until then
+    final AtomicLong lastUp = new AtomicLong();      // System.nanoTime() of the last delivery to the server
+    final AtomicLong upBytes = new AtomicLong();
+    final AtomicLong downBytes = new AtomicLong();
+    final AtomicLong upDatagrams = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.out.println("Usage: java [-Ddelay=ms -Djitter=ms -Dloss=% -Dreorder=% -Dduplicate=% -Drate=Mbit/s -Dqueue=ms] ImpairmentProxy listenPort serverHost serverPort");
+            return;
+        }
+        Profile profile = Profile.fromProperties();
+        ImpairmentProxy proxy = new ImpairmentProxy(Integer.parseInt(args[0]), new InetSocketAddress(args[1], Integer.parseInt(args[2])), profile);
+        System.out.println("Proxy on port " + args[0] + " to " + args[1] + ":" + args[2] + ", " + profile + ".");
+        while (true) {
+            LockSupport.parkNanos(10_000_000_000L);
+            System.out.println("up " + proxy.upBytes.get() + " bytes, down " + proxy.downBytes.get() + " bytes, dropped " + proxy.dropped.get() + " datagrams");
+        }
+    }
+
+    public ImpairmentProxy(int listenPort, InetSocketAddress server, Profile profile) throws IOException {
+        this.profile = profile;
+        this.server = server;
+        this.udpSocket = new DatagramSocket(listenPort);
+        this.tcpSocket = new ServerSocket(listenPort);
+        threads.execute(this::acceptUdp);
+        threads.execute(this::acceptTcp);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        udpSocket.close();
+        try {
+            tcpSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (UdpFlow flow : udpFlows.values()) {
+            flow.close();
+        }
+        threads.shutdownNow();
+    }
+
+    private void seen() {
+        firstPacket.compareAndSet(0, System.nanoTime());
+    }
+
+    /**
+     * Reads the datagrams of every UDP client and sends each on through the client's flow, closing the
+     * flows that have gone silent along the way.
+     */
+    private void acceptUdp() {
+        byte[] buffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        long lastSweep = System.nanoTime();
+        try {
+            udpSocket.setSoTimeout(SWEEP_INTERVAL);
+            while (!closed) {
+                long now = System.nanoTime();
+                if (now - lastSweep > SWEEP_INTERVAL * 1_000_000L) {
+                    lastSweep = now;
+                    expireFlows(now);
+                }
+                packet.setLength(buffer.length);
+                try {
+                    udpSocket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                seen();
+                upBytes.addAndGet(packet.getLength());
+                upDatagrams.incrementAndGet();
+                SocketAddress client = packet.getSocketAddress();
+                UdpFlow flow = udpFlows.get(client);
+                if (flow == null) {
+                    flow = new UdpFlow(client);
+                    udpFlows.put(client, flow);
+                }
+                flow.lastActive = System.nanoTime();
+                flow.up.offer(buffer, packet.getLength());
+            }
+        } catch (IOException e) {
+            if (!closed) e.printStackTrace();
+        }
+    }
+
+    private void expireFlows(long now) {
+        udpFlows.values().removeIf(flow -> {
+            if (now - flow.lastActive < FLOW_TIMEOUT) return false;
+            flow.close();
+            return true;
+        });
+    }
+
+    private final class UdpFlow {
+        final DatagramSocket upstream;
+        final Pipe up;
+        final Pipe down;
+        volatile long lastActive = System.nanoTime(); // Of the last datagram either way
+
+        UdpFlow(SocketAddress client) throws SocketException {
+            upstream = new DatagramSocket();
+            up = new Pipe(false, (data, length) -> upstream.send(new DatagramPacket(data, length, server)), lastUp);
+            down = new Pipe(false, (data, length) -> udpSocket.send(new DatagramPacket(data, length, client)), null);
+            threads.execute(() -> {
+                byte[] buffer = new byte[MAX_DATAGRAM];
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    while (!closed) {
+                        packet.setLength(buffer.length);
+                        upstream.receive(packet);
+                        lastActive = System.nanoTime();
+                        downBytes.addAndGet(packet.getLength());
+                        down.offer(buffer, packet.getLength());
+                    }
+                } catch (IOException e) {
+                    // Flow or proxy closed
+                }
+            });
+        }
+
+        /**
+         * Ends the flow's threads: the receiver with its socket, the pipes with a stop.
+         */
+        void close() {
+            upstream.close();
+            up.stop();
+            down.stop();
+        }
+    }
+
+    private void acceptTcp() {
+        try {
+            while (!closed) {
+                Socket client = tcpSocket.accept();
+                threads.execute(() -> connect(client));
+            }
+        } catch (IOException e) {
+            if (!closed) e.printStackTrace();
+        }
+    }
+
+    private void connect(Socket client) {
+        try {
+            Socket upstream = new Socket(server.getAddress(), server.getPort());
+            client.setTcpNoDelay(true);
+            upstream.setTcpNoDelay(true);
+            Pipe up = new Pipe(true, sink(upstream), lastUp);
+            Pipe down = new Pipe(true, sink(client), null);
+            threads.execute(() -> pump(client, up, upBytes, upstream));
+            pump(upstream, down, downBytes, client);
+        } catch (IOException e) {
+            close(client);
+        }
+    }
+
+    private static Sink sink(Socket socket) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        return (data, length) -> {
+            if (length < 0) {
+                socket.shutdownOutput();
+            } else {
+                out.write(data, 0, length);
+            }
+        };
+    }
+
+    /**
+     * Forwards one direction of a TCP connection until it ends, then ends it on the other side too. The
+     * pipe's thread ends after delivering the end of the stream, or at once if the connection failed.
+     */
+    private void pump(Socket from, Pipe pipe, AtomicLong counter, Socket to) {
+        byte[] buffer = new byte[CHUNK_SIZE];
+        try (InputStream in = from.getInputStream()) {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                seen();
+                counter.addAndGet(count);
+                pipe.offer(buffer, count);
+            }
+            pipe.offer(buffer, -1);
+        } catch (IOException e) {
+            pipe.stop();
+            close(from);
+            close(to);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    private interface Sink {
+        /**
+         * Delivers length bytes of data; a negative length ends the stream.
+         */
+        void write(byte[] data, int length) throws IOException;
+    }
+
+    /**
+     * One direction of a flow: a bottleneck of profile.rate with a queue of profile.queue, then the delay
+     * and jitter, with deliveries made by a thread of their own at the time they are due. An ordered pipe
+     * carries a byte stream: nothing is dropped or duplicated, no delivery overtakes an earlier one, and
+     * a full queue makes offer wait. Its thread ends after the end of a stream, or on stop.
+     */
+    private final class Pipe {
+        private final boolean ordered;
+        private final Sink sink;
+        private final AtomicLong lastDelivery; // Set to the time of each data delivery, if not null
+        private final DelayQueue<Delivery> queue = new DelayQueue<>();
+        private long linkFree;  // When the bottleneck has sent everything queued so far
+        private long lastDue;
+        private long order;
+
+        Pipe(boolean ordered, Sink sink, AtomicLong lastDelivery) {
+            this.ordered = ordered;
+            this.sink = sink;
+            this.lastDelivery = lastDelivery;
+            threads.execute(this::deliver);
+        }
+
+        synchronized void offer(byte[] data, int length) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (!ordered && random.nextDouble() * 100 < profile.loss) {
+                dropped.incrementAndGet();
+                return;
+            }
+            long now = System.nanoTime();
+            long departure = now;
+            if (profile.rate > 0 && length > 0) {
+                long queueLimit = (long) (profile.queue * 1_000_000);
+                if (linkFree - now > queueLimit) {
+                    if (!ordered) {
+                        dropped.incrementAndGet();
+                        return;
+                    }
+                    LockSupport.parkNanos(linkFree - now - queueLimit); // Backpressure on the stream
+                    now = System.nanoTime();
+                }
+                linkFree = Math.max(linkFree, now) + (long) (length * 8 * 1000 / profile.rate);
+                departure = linkFree;
+            }
+            long due = departure + (long) (profile.delay * 1_000_000);
+            if (profile.jitter > 0) due += random.nextLong((long) (profile.jitter * 1_000_000) + 1);
+            if (ordered) {
+                due = Math.max(due, lastDue);
+                lastDue = due;
+            } else if (random.nextDouble() * 100 < profile.reorder) {
+                due += REORDER_HOLD;
+            }
+            byte[] copy = length > 0 ? java.util.Arrays.copyOf(data, length) : data;
+            queue.add(new Delivery(copy, length, due, order++));
+            if (!ordered && random.nextDouble() * 100 < profile.duplicate) {
+                queue.add(new Delivery(copy, length, due, order++));
+            }
+        }
+
+        /**
+         * Ends the pipe now, dropping whatever it still holds.
+         */
+        void stop() {
+            queue.add(new Delivery(null, -1, System.nanoTime(), -1));
+        }
+
+        private void deliver() {
+            try {
+                while (!closed) {
+                    Delivery delivery = queue.take();
+                    if (delivery.data == null) return; // Stopped
+                    sink.write(delivery.data, delivery.length);
+                    if (delivery.length < 0) return;   // End of the stream delivered
+                    if (lastDelivery != null) lastDelivery.set(System.nanoTime());
+                }
+            } catch (InterruptedException | IOException e) {
+                // Proxy closed or connection gone
+            }
+        }
+    }
+
+    private static final class Delivery implements Delayed {
+        final byte[] data;
+        final int length;
+        final long due;
+        final long order;
+
+        Delivery(byte[] data, int length, long due, long order) {
+            this.data = data;
+            this.length = length;
+            this.due = due;
+            this.order = order;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            Delivery that = (Delivery) other;
+            return due != that.due ? Long.compare(due, that.due) : Long.compare(order, that.order);
+        }
+    }
+}
@@ -0,0 +1,604 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * The TEST command: measures the link to a server. Set with arguments after the server, or with the
+ * same names as system properties (-Dtest.streams=4 for streams=4):
+ *
+ *   mode=throughput|latency
+ *   direction=updown|up|down|both  up then down, one of them, or both at once
+ *   seconds=S bytes=N              per stream, whichever ends first; 50 MB if neither is set
+ *   buffer=128K                    bytes per socket read or write
+ *   streams=1                      parallel connections per direction
+ *   size=64 requests=N             latency: message size, requests per stream (10 s if neither
+ *                                  requests nor seconds is set)
+ *   interval=1                     seconds between samples
+ *   json=file                      samples and results as JSON, "-" for standard output
+ *
+ * Uploads report what the server received over the time it took from its first byte (TEST-SEND
+ * answers RECEIVED), downloads what the client received, so neither counts data still sitting in
+ * a socket buffer. Latency mode sends one request at a time per stream and the server echoes it
+ * (TEST-ECHO); it reports the percentiles of the round trips.
+ */
+class NetworkTest {
+    static final int DATA_SIZE = 50 * 1024 * 1024; // 50 MB, TEST without a limit of its own
+    static final int BUFFER_SIZE = 128 * 1024;     // Bytes per socket read or write
+    private static final int MAX_BUFFER_SIZE = 16 * 1024 * 1024; // Largest buffer= either side allocates
+    private static final int MAX_ECHO_SIZE = 1024 * 1024; // Largest TEST-ECHO message
+    private static final int MAX_STREAMS = 256;           // Connections per direction, each with a thread
+    private static final List<String> OPTIONS = Arrays.asList("mode", "direction", "seconds", "bytes", "buffer", "streams", "size", "requests", "interval", "json");
+
+    private final Map<String, String> options;
+    private final String server;
+    private final String mode;
+    private final String direction;
+    private final long bytes;
+    private final long millis;
+    private final int bufferSize;
+    private final int streams;
+    private final int messageSize;
+    private final long requests;
+    private final long intervalNanos;
+    private final String json;
+    private final List<String> phases = new ArrayList<>(); // JSON of every phase run
+
+    /**
+     * options are the name=value arguments of TEST; each one not given there comes from -Dtest.name.
+     */
+    NetworkTest(String server, Map<String, String> options) {
+        this.options = options;
+        this.server = server;
+        mode = option("mode", "throughput");
+        if (!mode.equals("throughput") && !mode.equals("latency")) {
+            throw new IllegalArgumentException("mode=" + mode + ", use throughput or latency");
+        }
+        direction = option("direction", "updown");
+        bufferSize = bufferSize(number("buffer", String.valueOf(BUFFER_SIZE), NetworkTest::parseSize));
+        streams = (int) inRange("streams", number("streams", "1", Integer::parseInt), 1, MAX_STREAMS);
+        messageSize = (int) inRange("size", number("size", "64", NetworkTest::parseSize), 1, MAX_ECHO_SIZE);
+        requests = inRange("requests", number("requests", "0", Long::parseLong), 0, Long.MAX_VALUE);
+        intervalNanos = (long) (number("interval", "1", Double::parseDouble) * 1e9);
+        if (intervalNanos < 1_000_000) {
+            throw new IllegalArgumentException("interval=" + option("interval", "1") + ", use at least 0.001");
+        }
+        json = option("json", null);
+        long bytes = inRange("bytes", number("bytes", "0", NetworkTest::parseSize), 0, Long.MAX_VALUE);
+        long millis = (long) (number("seconds", "0", Double::parseDouble) * 1000);
+        if (millis < 0) {
+            throw new IllegalArgumentException("seconds=" + option("seconds", "0") + ", use 0 or more");
+        }
+        if (bytes == 0 && millis == 0) {
+            if (mode.equals("latency")) {
+                millis = requests == 0 ? 10_000 : 0;
+            } else {
+                bytes = DATA_SIZE;
+            }
+        }
+        this.bytes = bytes;
+        this.millis = millis;
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : System.getProperty("test." + name, defaultValue);
+    }
+
+    /**
+     * Option name read with parse, refused by name when it is not a number.
+     */
+    private <T> T number(String name, String defaultValue, Function<String, T> parse) {
+        String value = option(name, defaultValue);
+        try {
+            return parse.apply(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + "=" + value + ", not a number");
+        }
+    }
+
+    /**
+     * value as a JSON string, quotes included.
+     */
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * TEST [server] [option=value...]: runs the test, or prints what is wrong with the arguments.
+     */
+    static void start(List<String> arguments) throws IOException {
+        int first = !arguments.isEmpty() && !arguments.get(0).contains("=") ? 1 : 0;
+        Map<String, String> options = new HashMap<>();
+        for (String argument : arguments.subList(first, arguments.size())) {
+            int equals = argument.indexOf('=');
+            if (equals < 0 || !OPTIONS.contains(argument.substring(0, equals))) {
+                System.out.println("Invalid TEST option: " + argument + ". Use " + String.join("=, ", OPTIONS) + "=.");
+                return;
+            }
+            options.put(argument.substring(0, equals), argument.substring(equals + 1));
+        }
+        NetworkTest test;
+        try {
+            test = new NetworkTest(first == 1 ? arguments.get(0) : "localhost", options);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid TEST option: " + e.getMessage());
+            return;
+        }
+        test.run();
+    }
+
+    /**
+     * value of option name, refused outside min..max like a bad buffer=.
+     */
+    private static long inRange(String name, long value, long min, long max) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(name + "=" + value + (max == Long.MAX_VALUE ? ", use " + min + " or more" : ", use " + min + " to " + max));
+        }
+        return value;
+    }
+
+    /**
+     * size as a buffer size, refused outside 1..MAX_BUFFER_SIZE: 0 would never move a byte, and the
+     * server only takes what it can allocate.
+     */
+    private static int bufferSize(long size) {
+        if (size < 1 || size > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("buffer=" + size + ", use 1 to " + (MAX_BUFFER_SIZE >> 20) + "M");
+        }
+        return (int) size;
+    }
+
+    void run() throws IOException {
+        if (mode.equals("latency")) {
+            latency();
+        } else if (direction.equals("updown")) {
+            throughput(true, false);
+            throughput(false, true);
+        } else if (direction.equals("up") || direction.equals("down") || direction.equals("both")) {
+            throughput(!direction.equals("down"), !direction.equals("up"));
+        } else {
+            System.out.println("Invalid test direction: use updown, up, down or both.");
+            return;
+        }
+
+        if (json != null) {
+            String document = "{\"server\": " + quote(server) + ", \"mode\": " + quote(mode) + ", \"streams\": " + streams
+                    + ", \"buffer\": " + bufferSize + ", \"bytes\": " + bytes + ", \"seconds\": " + millis / 1000.0
+                    + ", \"phases\": [" + String.join(", ", phases) + "]}\n";
+            if (json.equals("-")) {
+                System.out.print(document);
+            } else {
+                Files.write(new File(json).toPath(), document.getBytes());
+            }
+        }
+    }
+
+    /**
+     * Server side of the TEST-SEND, TEST-RECEIVE and TEST-ECHO commands. The session ends with them.
+     */
+    static void serve(String command, Socket socket, BufferedWriter out) throws IOException {
+        if (command.startsWith("TEST-SEND")) {
+            serveSend(command, socket, out);
+        } else if (command.startsWith("TEST-RECEIVE")) {
+            serveReceive(command, socket, out);
+        } else if (command.startsWith("TEST-ECHO")) {
+            serveEcho(command, socket, out);
+        } else {
+            out.write("ERROR Invalid command\r\n");
+            out.flush();
+        }
+    }
+
+    /**
+     * TEST-SEND [bytes buffer]: reads the client's dummy data until it half-closes the connection, or
+     * until bytes when given, and answers "RECEIVED bytes nanos" with what arrived and how long it took
+     * from the first byte, so the client reports the receiver's measurement rather than how fast its
+     * socket buffer filled. The bare command reads DATA_SIZE bytes and answers nothing.
+     */
+    private static void serveSend(String command, Socket socket, BufferedWriter out) throws IOException {
+        String[] parts = command.split(" ");
+        if (parts.length != 1 && parts.length != 3) {
+            out.write("ERROR Invalid TEST-SEND command\r\n");
+            out.flush();
+            return;
+        }
+        long limit = DATA_SIZE;
+        int bufferSize = BUFFER_SIZE;
+        try {
+            if (parts.length == 3) {
+                limit = Long.parseLong(parts[1]);
+                bufferSize = bufferSize(Long.parseLong(parts[2]));
+            }
+        } catch (IllegalArgumentException e) {
+            limit = -1;
+        }
+        if (limit < 0) {
+            out.write("ERROR Invalid TEST-SEND command\r\n");
+            out.flush();
+            return;
+        }
+        out.write("READY\r\n");
+        out.flush();
+
+        ReadableByteChannel source = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        long received = 0;
+        long startTime = 0;
+        while (limit == 0 || received < limit) {
+            buffer.clear();
+            if (limit > 0) buffer.limit((int) Math.min(bufferSize, limit - received));
+            int read = source.read(buffer);
+            if (read == -1) break;
+            if (received == 0) startTime = System.nanoTime();
+            received += read;
+        }
+        long duration = received == 0 ? 0 : System.nanoTime() - startTime;
+        if (parts.length == 3) {
+            out.write("RECEIVED " + received + " " + duration + "\r\n");
+            out.flush();
+        }
+        System.out.printf("Upload throughput: %.2f Mbps\n", TCPFileTransfer.mbps(received, duration));
+    }
+
+    /**
+     * TEST-RECEIVE [bytes millis buffer]: sends dummy data in writes of buffer bytes until bytes have
+     * gone or millis have passed, whichever comes first, 0 meaning no limit, then closes. The bare command
+     * sends DATA_SIZE bytes.
+     */
+    private static void serveReceive(String command, Socket socket, BufferedWriter out) throws IOException {
+        String[] parts = command.split(" ");
+        if (parts.length != 1 && parts.length != 4) {
+            out.write("ERROR Invalid TEST-RECEIVE command\r\n");
+            out.flush();
+            return;
+        }
+        long limit = DATA_SIZE;
+        long millis = 0;
+        int bufferSize = BUFFER_SIZE;
+        try {
+            if (parts.length == 4) {
+                limit = Long.parseLong(parts[1]);
+                millis = Long.parseLong(parts[2]);
+                bufferSize = bufferSize(Long.parseLong(parts[3]));
+            }
+        } catch (IllegalArgumentException e) {
+            limit = -1;
+        }
+        if (limit < 0 || millis < 0) {
+            out.write("ERROR Invalid TEST-RECEIVE command\r\n");
+            out.flush();
+            return;
+        }
+        if (limit == 0 && millis == 0) {
+            out.write("ERROR TEST-RECEIVE needs a byte or time limit\r\n");
+            out.flush();
+            return;
+        }
+        out.write("READY\r\n");
+        out.flush();
+
+        WritableByteChannel target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        long sent = 0;
+        long startTime = System.nanoTime();
+        long deadline = millis > 0 ? startTime + millis * 1_000_000 : Long.MAX_VALUE;
+        while ((limit == 0 || sent < limit) && System.nanoTime() < deadline) {
+            buffer.clear();
+            if (limit > 0) buffer.limit((int) Math.min(bufferSize, limit - sent));
+            while (buffer.hasRemaining()) {
+                sent += target.write(buffer);
+            }
+        }
+        socket.shutdownOutput();
+        System.out.printf("Download throughput: %.2f Mbps\n", TCPFileTransfer.mbps(sent, System.nanoTime() - startTime));
+    }
+
+    /**
+     * TEST-ECHO size: answers every size-byte message with the same bytes until the client closes. The
+     * latency test's requests and responses; Nagle is turned off so neither waits for the other's ACK.
+     */
+    private static void serveEcho(String command, Socket socket, BufferedWriter out) throws IOException {
+        String[] parts = command.split(" ");
+        int size = 0;
+        try {
+            if (parts.length == 2) size = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            // Refused below
+        }
+        if (size <= 0 || size > MAX_ECHO_SIZE) {
+            out.write("ERROR Invalid TEST-ECHO command\r\n");
+            out.flush();
+            return;
+        }
+        socket.setTcpNoDelay(true);
+        out.write("READY\r\n");
+        out.flush();
+
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        OutputStream echo = socket.getOutputStream();
+        byte[] message = new byte[size];
+        long requests = 0;
+        try {
+            while (true) {
+                in.readFully(message);
+                echo.write(message);
+                requests++;
+            }
+        } catch (EOFException e) {
+            // Client done
+        }
+        System.out.println("Echoed " + requests + " requests of " + size + " bytes");
+    }
+
+    private void throughput(boolean up, boolean down) throws IOException {
+        LongAdder sent = new LongAdder();
+        LongAdder received = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(streams * ((up ? 1 : 0) + (down ? 1 : 0)));
+        List<Future<long[]>> uploads = new ArrayList<>();
+        List<Future<long[]>> downloads = new ArrayList<>();
+        try {
+            for (int i = 0; i < streams; i++) {
+                if (up) uploads.add(pool.submit(() -> upload(sent)));
+                if (down) downloads.add(pool.submit(() -> download(received)));
+            }
+            List<Future<long[]>> all = new ArrayList<>(uploads);
+            all.addAll(downloads);
+            String name = up && down ? "both" : up ? "up" : "down";
+            String intervals = sample(all, up && down ? new String[] {"up_mbps", "down_mbps"} : new String[] {name + "_mbps"},
+                    8e-6, up && down ? new LongAdder[] {sent, received} : new LongAdder[] {up ? sent : received});
+
+            StringBuilder phase = new StringBuilder("{\"direction\": \"" + name + "\", \"intervals\": " + intervals);
+            if (up) phase.append(", \"up\": ").append(total("Upload", uploads));
+            if (down) phase.append(", \"down\": ").append(total("Download", downloads));
+            phases.add(phase.append('}').toString());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Adds up the {bytes, nanos} of the streams: the bytes of all of them over the time of the slowest.
+     */
+    private String total(String label, List<Future<long[]>> results) throws IOException {
+        long total = 0;
+        long nanos = 0;
+        for (Future<long[]> result : results) {
+            long[] stream = awaitStream(result);
+            total += stream[0];
+            nanos = Math.max(nanos, stream[1]);
+        }
+        System.out.printf("%s throughput: %.2f Mbps (%d bytes in %.3f s)%n", label, TCPFileTransfer.mbps(total, nanos), total, nanos / 1e9);
+        return String.format(Locale.ROOT, "{\"bytes\": %d, \"seconds\": %.6f, \"mbps\": %.3f}", total, nanos / 1e9, TCPFileTransfer.mbps(total, nanos));
+    }
+
+    /**
+     * One upload stream: sends until the byte or time limit, half-closes and returns the server's
+     * RECEIVED count and time.
+     */
+    private long[] upload(LongAdder sent) throws IOException {
+        try (Socket socket = TCPFileTransfer.connect(server)) {
+            String response = request(socket, "TEST-SEND " + bytes + " " + bufferSize);
+            if (!response.equals("READY")) {
+                throw new IOException("Error from server: " + response);
+            }
+            WritableByteChannel target = socket.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            long total = 0;
+            long deadline = millis > 0 ? System.nanoTime() + millis * 1_000_000 : Long.MAX_VALUE;
+            while ((bytes == 0 || total < bytes) && System.nanoTime() < deadline) {
+                buffer.clear();
+                if (bytes > 0) buffer.limit((int) Math.min(bufferSize, bytes - total));
+                int written = 0;
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+                total += written;
+                sent.add(written);
+            }
+            socket.shutdownOutput();
+
+            String report = TCPFileTransfer.readLine(socket.getInputStream());
+            String[] parts = report == null ? new String[0] : report.split(" ");
+            if (parts.length != 3 || !parts[0].equals("RECEIVED")) {
+                throw new IOException("Error from server: " + report);
+            }
+            return new long[] {Long.parseLong(parts[1]), Long.parseLong(parts[2])};
+        }
+    }
+
+    /**
+     * One download stream: reads until the server closes and returns the bytes and the time from the first one.
+     */
+    private long[] download(LongAdder received) throws IOException {
+        try (Socket socket = TCPFileTransfer.connect(server)) {
+            String response = request(socket, "TEST-RECEIVE " + bytes + " " + millis + " " + bufferSize);
+            if (!response.equals("READY")) {
+                throw new IOException("Error from server: " + response);
+            }
+            ReadableByteChannel source = socket.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            long total = 0;
+            long startTime = 0;
+            int read;
+            while ((read = source.read(buffer.clear())) != -1) {
+                if (total == 0) startTime = System.nanoTime();
+                total += read;
+                received.add(read);
+            }
+            return new long[] {total, total == 0 ? 0 : System.nanoTime() - startTime};
+        }
+    }
+
+    private void latency() throws IOException {
+        LongAdder completed = new LongAdder();
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        List<Future<long[]>> results = new ArrayList<>();
+        try {
+            for (int i = 0; i < streams; i++) {
+                results.add(pool.submit(() -> echo(completed)));
+            }
+            String intervals = sample(results, new String[] {"requests_per_s"}, 1, completed);
+
+            long[][] streamSamples = new long[results.size()][];
+            int count = 0;
+            for (int i = 0; i < streamSamples.length; i++) {
+                streamSamples[i] = awaitStream(results.get(i));
+                count += streamSamples[i].length;
+            }
+            long[] samples = new long[count];
+            count = 0;
+            for (long[] stream : streamSamples) {
+                System.arraycopy(stream, 0, samples, count, stream.length);
+                count += stream.length;
+            }
+            Arrays.sort(samples);
+            if (samples.length == 0) {
+                System.out.println("No requests completed.");
+                return;
+            }
+            double mean = Arrays.stream(samples).average().orElse(0) / 1000;
+            System.out.printf("Latency of %d requests of %d bytes: p50 %.1f us, p99 %.1f us, p99.9 %.1f us (min %.1f, mean %.1f, max %.1f)%n",
+                    samples.length, messageSize, percentile(samples, 0.5), percentile(samples, 0.99), percentile(samples, 0.999),
+                    samples[0] / 1000.0, mean, samples[samples.length - 1] / 1000.0);
+            phases.add(String.format(Locale.ROOT, "{\"direction\": \"latency\", \"size\": %d, \"intervals\": %s, \"requests\": %d, "
+                            + "\"latency_us\": {\"min\": %.1f, \"mean\": %.1f, \"p50\": %.1f, \"p99\": %.1f, \"p999\": %.1f, \"max\": %.1f}}",
+                    messageSize, intervals, samples.length, samples[0] / 1000.0, mean, percentile(samples, 0.5),
+                    percentile(samples, 0.99), percentile(samples, 0.999), samples[samples.length - 1] / 1000.0));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * One latency stream: request and response in turn until the request count or time limit.
+     * Returns the round trip of every request in nanoseconds.
+     */
+    private long[] echo(LongAdder completed) throws IOException {
+        try (Socket socket = TCPFileTransfer.connect(server)) {
+            socket.setTcpNoDelay(true);
+            String response = request(socket, "TEST-ECHO " + messageSize);
+            if (!response.equals("READY")) {
+                throw new IOException("Error from server: " + response);
+            }
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            byte[] message = new byte[messageSize];
+            long[] samples = new long[1024];
+            int count = 0;
+            long deadline = millis > 0 ? System.nanoTime() + millis * 1_000_000 : Long.MAX_VALUE;
+            for (long start = System.nanoTime(); (requests == 0 || count < requests) && start < deadline; start = System.nanoTime()) {
+                out.write(message);
+                in.readFully(message);
+                if (count == samples.length) samples = Arrays.copyOf(samples, count * 2);
+                samples[count++] = System.nanoTime() - start;
+                completed.increment();
+            }
+            return Arrays.copyOf(samples, count);
+        }
+    }
+
+    /**
+     * Prints a line every interval until the work is done, with each counter's rate over the interval
+     * times scale, and returns the samples as a JSON array.
+     */
+    private String sample(List<Future<long[]>> work, String[] names, double scale, LongAdder... counters) {
+        StringBuilder header = new StringBuilder(String.format("%-17s", "Interval"));
+        for (String name : names) {
+            header.append(String.format("%16s", name));
+        }
+        System.out.println(header);
+
+        StringBuilder samples = new StringBuilder("[");
+        long startTime = System.nanoTime();
+        long intervalStart = startTime;
+        long[] last = new long[counters.length];
+        boolean done = false;
+        while (!done) {
+            long now = System.nanoTime();
+            done = work.stream().allMatch(Future::isDone);
+            if (now - intervalStart < intervalNanos && !done) {
+                LockSupport.parkNanos(Math.min(intervalStart + intervalNanos - now, 10_000_000L));
+                continue;
+            }
+            double seconds = (now - intervalStart) / 1e9;
+            if (seconds <= 0) break;
+            StringBuilder line = new StringBuilder(String.format("%6.2f-%6.2f s   ", (intervalStart - startTime) / 1e9, (now - startTime) / 1e9));
+            StringBuilder sample = new StringBuilder(String.format(Locale.ROOT, "{\"start\": %.3f, \"end\": %.3f",
+                    (intervalStart - startTime) / 1e9, (now - startTime) / 1e9));
+            for (int i = 0; i < counters.length; i++) {
+                long value = counters[i].sum();
+                double rate = (value - last[i]) / seconds * scale;
+                last[i] = value;
+                line.append(String.format("%16.2f", rate));
+                sample.append(String.format(Locale.ROOT, ", \"%s\": %.3f", names[i], rate));
+            }
+            System.out.println(line);
+            samples.append(samples.length() > 1 ? ", " : "").append(sample).append('}');
+            intervalStart = now;
+        }
+        return samples.append(']').toString();
+    }
+
+    private static String request(Socket socket, String command) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write((command + "\r\n").getBytes());
+        out.flush();
+        String response = TCPFileTransfer.readLine(socket.getInputStream());
+        return response == null ? "no answer" : response;
+    }
+
+    private static long[] awaitStream(Future<long[]> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a stream");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Value at quantile q of sorted nanosecond samples, in microseconds.
+     */
+    private static double percentile(long[] sorted, double q) {
+        return sorted[(int) Math.max(0, Math.min(sorted.length - 1, Math.ceil(q * sorted.length) - 1))] / 1000.0;
+    }
+
+    /**
+     * A byte count with an optional K, M or G suffix, powers of 1024.
+     */
+    private static long parseSize(String size) {
+        String value = size.trim().toUpperCase();
+        int shift = value.endsWith("K") ? 10 : value.endsWith("M") ? 20 : value.endsWith("G") ? 30 : 0;
+        return Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1)) << shift;
+    }
+}
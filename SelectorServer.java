@@ -0,0 +1,604 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import metrics.TransferMetrics;
+import transfer.Compression;
+import transfer.Journal;
+
+/**
+ * SERVER-NIO: the event-driven server. The main thread only accepts; connections are spread
+ * round-robin over a few selector threads, each running many non-blocking connection state machines.
+ * SEND, RECEIVE, their ranges and bare TEST commands are served on the selector; anything with a
+ * multi-round exchange or a codec between socket and file is handed to the blocking handlers of
+ * TCPFileTransfer on a HANDOFFS thread, and the connection goes back to its selector once that
+ * command is done.
+ */
+class SelectorServer {
+    private static final TransferMetrics METRICS = TransferMetrics.of("tcp");
+    // Blocking commands of all selector threads, at most -Dmax.connections at once like SERVER's
+    // sessions; more wait for a thread
+    private static final ExecutorService HANDOFFS = Executors.newFixedThreadPool(TCPFileTransfer.MAX_CONNECTIONS, r -> {
+        Thread thread = new Thread(r, "handoff");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private SelectorServer() {
+    }
+
+    /**
+     * Accepts on the main thread and hands the connections round-robin to threads selector threads.
+     */
+    static void start(String folder, int threads) throws IOException {
+        File baseFolder = new File(folder);
+        if (!baseFolder.exists() && !baseFolder.mkdirs()) {
+            throw new IOException("Failed to create base folder: " + folder);
+        }
+
+        SelectorWorker[] workers = new SelectorWorker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new SelectorWorker(baseFolder, "selector-" + i);
+            Thread thread = new Thread(workers[i], "selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(TCPFileTransfer.DEFAULT_PORT), 1024);
+        System.out.println("Server started on port " + TCPFileTransfer.DEFAULT_PORT + " with " + workers.length + " selector threads.");
+        TransferMetrics.export();
+
+        int next = 0;
+        while (true) {
+            SocketChannel channel = null;
+            try {
+                channel = serverChannel.accept();
+                channel.configureBlocking(false);
+            } catch (IOException e) {
+                // One failed accept, out of file descriptors for instance, must not stop the server
+                System.out.println("Accept failed: " + e.getMessage());
+                if (channel != null) channel.close();
+                continue;
+            }
+            workers[next].register(channel);
+            next = (next + 1) % workers.length;
+        }
+    }
+
+    private enum Phase { COMMAND, HEADER, UPLOAD, DOWNLOAD }
+
+    /**
+     * Per-connection state for the selector server: the command being assembled, the response header
+     * being written, and the progress of the body in either direction.
+     */
+    private static class Connection {
+        final SocketChannel channel;
+        ByteBuffer command = ByteBuffer.allocate(1024); // Grown for pipelined commands a handoff gives back
+        Phase phase = Phase.COMMAND;
+        Phase next;          // Phase entered once the header is written, null to close
+        ByteBuffer header;
+        String request;
+        File file;           // null for TEST transfers
+        FileChannel fileChannel;
+        Journal journal;     // Uploads only
+        boolean locked;      // file is held in WriteLocks
+        long[] interval;
+        boolean range;       // SEND-RANGE/RECEIVE-RANGE: position starts at offset
+        long offset;
+        long position;
+        long length;         // End offset of the body
+        long startTime;
+        boolean keepAlive;   // Back to COMMAND once the request is done
+        long lastActive;     // System.nanoTime() of the last event, for the idle timeout
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            this.lastActive = System.nanoTime();
+        }
+
+        /**
+         * Forgets the finished request. The command buffer is kept, it may hold pipelined commands.
+         */
+        void reset() {
+            phase = Phase.COMMAND;
+            next = null;
+            header = null;
+            request = null;
+            file = null;
+            fileChannel = null;
+            journal = null;
+            locked = false;
+            interval = null;
+            range = false;
+            offset = 0;
+            position = 0;
+            length = 0;
+        }
+    }
+
+    private static class SelectorWorker implements Runnable {
+        private final File baseFolder;
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        private final List<Connection> handoffs = new ArrayList<>();
+        private final Queue<Connection> returned = new ConcurrentLinkedQueue<>(); // Back from a handoff
+        // Shared by every connection on this thread, only ever used within a single event
+        private final ByteBuffer ioBuffer = ByteBuffer.allocateDirect(TCPFileTransfer.RECEIVE_BUFFER_SIZE);
+        // Body of TEST-RECEIVE: zeros that nothing writes to, never ioBuffer, which holds other clients' uploads
+        private final ByteBuffer testData = ByteBuffer.allocateDirect(NetworkTest.BUFFER_SIZE).asReadOnlyBuffer();
+        // Journal saves and the final close of uploads, in order, so the selector never waits on a sync
+        private final ExecutorService journalSync;
+        private long lastIdleCheck = System.nanoTime();
+
+        SelectorWorker(File baseFolder, String name) throws IOException {
+            this.baseFolder = baseFolder;
+            this.selector = Selector.open();
+            this.journalSync = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, name + "-journal");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void register(SocketChannel channel) {
+            pending.add(channel);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(1000); // Wakes up at least every second for the idle check
+                    // Keys cancelled for a handoff are deregistered by now, so the channel can block again
+                    for (Connection connection : handoffs) {
+                        handOff(connection);
+                    }
+                    handoffs.clear();
+
+                    Connection back;
+                    while ((back = returned.poll()) != null) {
+                        SelectionKey key = back.channel.register(selector, SelectionKey.OP_READ, back);
+                        back.lastActive = System.nanoTime();
+                        try {
+                            nextCommand(key, back);
+                        } catch (IOException | RuntimeException e) {
+                            System.out.println("Connection error: " + e.getMessage());
+                            close(key, back);
+                        }
+                    }
+
+                    SocketChannel accepted;
+                    while ((accepted = pending.poll()) != null) {
+                        accepted.register(selector, SelectionKey.OP_READ, new Connection(accepted));
+                        METRICS.activeSessions.increment();
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        connection.lastActive = System.nanoTime();
+                        try {
+                            if (key.isValid() && key.isReadable()) onReadable(key, connection);
+                            if (key.isValid() && key.isWritable()) onWritable(key, connection);
+                        } catch (IOException | RuntimeException e) {
+                            System.out.println("Connection error: " + e.getMessage());
+                            close(key, connection);
+                        }
+                    }
+                    closeIdle();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void onReadable(SelectionKey key, Connection c) throws IOException {
+            if (c.phase == Phase.COMMAND) {
+                if (c.channel.read(c.command) == -1) {
+                    close(key, c);
+                    return;
+                }
+                nextCommand(key, c);
+            } else if (c.phase == Phase.UPLOAD) {
+                ioBuffer.clear();
+                ioBuffer.limit((int) Math.min(ioBuffer.capacity(), c.length - c.position));
+                int read = c.channel.read(ioBuffer);
+                if (read == -1) {
+                    finish(key, c);
+                    return;
+                }
+                ioBuffer.flip();
+                consume(key, c, ioBuffer);
+            }
+        }
+
+        private void onWritable(SelectionKey key, Connection c) throws IOException {
+            if (c.phase == Phase.HEADER) {
+                c.channel.write(c.header);
+                if (c.header.hasRemaining()) return;
+                if (c.next == null) {
+                    done(key, c);
+                    return;
+                }
+                c.phase = c.next;
+                c.startTime = System.nanoTime();
+                if (c.phase == Phase.UPLOAD) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    // Bytes that arrived behind the command line already belong to the body, up to its
+                    // end; anything after that is the next command and stays in the command buffer
+                    c.command.flip();
+                    byte[] early = new byte[(int) Math.min(c.command.remaining(), c.length - c.position)];
+                    c.command.get(early);
+                    c.command.compact();
+                    consume(key, c, ByteBuffer.wrap(early));
+                    return;
+                }
+            }
+
+            if (c.phase == Phase.DOWNLOAD) {
+                long written;
+                do {
+                    long chunk = Math.min(TCPFileTransfer.TRANSFER_CHUNK_SIZE, c.length - c.position);
+                    if (c.fileChannel != null) {
+                        written = c.fileChannel.transferTo(c.position, chunk, c.channel);
+                        METRICS.bytesSent.add(written);
+                    } else {
+                        testData.clear();
+                        testData.limit((int) Math.min(testData.capacity(), chunk));
+                        written = c.channel.write(testData);
+                    }
+                    c.position += written;
+                } while (written > 0 && c.position < c.length);
+
+                if (c.position >= c.length) {
+                    finish(key, c);
+                }
+            }
+        }
+
+        /**
+         * Serves the next complete command line in the buffer, if there is one yet.
+         */
+        private void nextCommand(SelectionKey key, Connection c) throws IOException {
+            String line = takeLine(c.command);
+            if (line != null) {
+                dispatch(key, c, line);
+            } else if (!c.command.hasRemaining()) {
+                c.keepAlive = false; // No line end in sight, the stream cannot be followed any more
+                respond(key, c, "ERROR Invalid command", null);
+            }
+        }
+
+        private void dispatch(SelectionKey key, Connection c, String command) throws IOException {
+            c.request = command;
+            c.keepAlive = !command.startsWith("TEST-");
+            if (command.startsWith("SEND-DELTA") || command.startsWith("SEND-DIR") || command.endsWith(" " + Compression.TOKEN) || (command.startsWith("TEST-") && command.contains(" "))) {
+                // Multi-round exchange or a codec between socket and file, or a TEST with limits of its
+                // own: served by the blocking handlers on their own thread
+                key.cancel();
+                handoffs.add(c);
+                selector.wakeup();
+            } else if (command.startsWith("SEND-RANGE") || command.startsWith("RECEIVE-RANGE")) {
+                dispatchRange(key, c, command);
+            } else if (command.startsWith("SEND")) {
+                String[] parts = command.split(" ");
+                if (parts.length < 3 || parts.length > 4) {
+                    respond(key, c, "ERROR Invalid SEND command", null);
+                    return;
+                }
+                boolean resume = parts.length == 4 && parts[3].equals("RESUME");
+                c.file = new File(baseFolder, parts[1]);
+                c.length = Long.parseLong(parts[2]);
+                if (!openUpload(c, 0, resume)) {
+                    respond(key, c, "ERROR File busy", null);
+                    return;
+                }
+                respond(key, c, "FILE " + parts[1] + " " + c.length + (resume ? " " + c.position : ""), Phase.UPLOAD);
+            } else if (command.startsWith("RECEIVE")) {
+                String[] parts = command.split(" ", 2);
+                if (parts.length < 2) {
+                    respond(key, c, "ERROR Invalid RECEIVE command", null);
+                    return;
+                }
+                c.file = new File(baseFolder, parts[1]);
+                if (!c.file.exists()) {
+                    respond(key, c, "ERROR File not found", null);
+                    return;
+                }
+                c.fileChannel = FileChannel.open(c.file.toPath(), StandardOpenOption.READ);
+                c.length = c.fileChannel.size();
+                respond(key, c, "FILE " + parts[1] + " " + c.length, Phase.DOWNLOAD);
+            } else if (command.equals("TEST-SEND")) {
+                c.length = NetworkTest.DATA_SIZE;
+                respond(key, c, "READY", Phase.UPLOAD);
+            } else if (command.equals("TEST-RECEIVE")) {
+                c.length = NetworkTest.DATA_SIZE;
+                respond(key, c, "READY", Phase.DOWNLOAD);
+            } else {
+                respond(key, c, "ERROR Invalid command", null);
+            }
+        }
+
+        private void dispatchRange(SelectionKey key, Connection c, String command) throws IOException {
+            String[] parts = command.split(" ");
+            boolean upload = parts[0].equals("SEND-RANGE");
+            if (upload ? parts.length < 5 || parts.length > 6 : parts.length != 4) {
+                respond(key, c, "ERROR Invalid " + parts[0] + " command", null);
+                return;
+            }
+            c.range = true;
+            c.file = new File(baseFolder, parts[1]);
+            if (!upload && !c.file.exists()) {
+                respond(key, c, "ERROR File not found", null);
+                return;
+            }
+            long fileSize = upload ? Long.parseLong(parts[2]) : c.file.length();
+            long offset = Long.parseLong(parts[upload ? 3 : 2]);
+            long length = Long.parseLong(parts[upload ? 4 : 3]);
+            if (offset < 0 || length < 0 || offset + length > fileSize) {
+                respond(key, c, "ERROR Invalid range", null);
+                return;
+            }
+            c.offset = offset;
+            c.position = offset;
+            c.length = offset + length;
+
+            if (upload) {
+                boolean resume = parts.length == 6 && parts[5].equals("RESUME");
+                if (!openUpload(c, fileSize, resume)) {
+                    respond(key, c, "ERROR File busy", null);
+                    return;
+                }
+                respond(key, c, "FILE " + parts[1] + " " + fileSize + (resume ? " " + c.position : ""), Phase.UPLOAD);
+            } else {
+                c.fileChannel = FileChannel.open(c.file.toPath(), StandardOpenOption.READ);
+                respond(key, c, "FILE " + parts[1] + " " + fileSize, Phase.DOWNLOAD);
+            }
+        }
+
+        /**
+         * Opens the journal and the preallocated target of an upload of [c.position, c.length), moving
+         * c.position past data already on disk when the client asked to resume. fileSize 0 means the
+         * upload is the whole file. Returns false, with nothing opened, when another upload holds the file.
+         */
+        private boolean openUpload(Connection c, long fileSize, boolean resume) throws IOException {
+            if (fileSize == 0) {
+                fileSize = c.length;
+            }
+            if (!WriteLocks.lock(c.file, c.range)) return false;
+            c.locked = true;
+            c.journal = Journal.open(c.file, fileSize, resume, METRICS);
+            if (resume) {
+                c.position = c.journal.resumePoint(c.position, c.length);
+            }
+            RandomAccessFile raf = new RandomAccessFile(c.file, "rw");
+            if (raf.length() != fileSize) {
+                raf.setLength(fileSize);
+            }
+            c.fileChannel = raf.getChannel();
+            c.interval = c.journal.begin(c.position);
+            return true;
+        }
+
+        /**
+         * Serves c.request with the blocking handlers on a HANDOFFS thread. A kept-alive connection then
+         * comes back to this selector, the others are closed.
+         */
+        private void handOff(Connection c) {
+            HANDOFFS.execute(() -> {
+                Socket socket = c.channel.socket();
+                boolean back = false;
+                try {
+                    c.channel.configureBlocking(true);
+                    socket.setSoTimeout(TCPFileTransfer.IDLE_TIMEOUT); // A stalled client must not keep the thread
+                    // Commands the client pipelined behind this one were read by the selector already
+                    c.command.flip();
+                    byte[] pipelined = new byte[c.command.remaining()];
+                    c.command.get(pipelined);
+                    PushbackInputStream session = TCPFileTransfer.session(new SequenceInputStream(new ByteArrayInputStream(pipelined), socket.getInputStream()));
+                    TCPFileTransfer.handleCommand(c.request, socket, baseFolder, session);
+                    if (c.keepAlive) {
+                        giveBack(c, session);
+                        back = true;
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Connection error: " + e.getMessage());
+                } finally {
+                    if (!back) {
+                        METRICS.activeSessions.decrement();
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            System.out.println("Failed to close connection: " + e.getMessage());
+                        }
+                    }
+                }
+            });
+        }
+
+        /**
+         * Returns a connection to this selector after a handoff, with the bytes the session holds past
+         * the command in its command buffer: commands the client pipelined, read ahead by the selector
+         * or pushed back by the handler. Only those are taken, anything else stays in the socket.
+         */
+        private void giveBack(Connection c, InputStream session) throws IOException {
+            byte[] rest = new byte[session.available()];
+            int taken = 0;
+            while (taken < rest.length) {
+                int read = session.read(rest, taken, rest.length - taken);
+                if (read <= 0) break;
+                taken += read;
+            }
+            if (taken > c.command.capacity()) {
+                c.command = ByteBuffer.allocate(taken);
+            }
+            c.command.clear();
+            c.command.put(rest, 0, taken);
+            c.channel.configureBlocking(false);
+            c.reset();
+            returned.add(c);
+            selector.wakeup();
+        }
+
+        private void respond(SelectionKey key, Connection c, String line, Phase next) throws IOException {
+            c.header = ByteBuffer.wrap((line + "\r\n").getBytes());
+            c.phase = Phase.HEADER;
+            c.next = next;
+            key.interestOps(SelectionKey.OP_WRITE);
+            onWritable(key, c);
+        }
+
+        private void consume(SelectionKey key, Connection c, ByteBuffer data) throws IOException {
+            if (data.remaining() > c.length - c.position) {
+                data.limit((int) (data.position() + (c.length - c.position)));
+            }
+            while (data.hasRemaining()) {
+                if (c.fileChannel != null) {
+                    long writeStart = System.nanoTime();
+                    int written = c.fileChannel.write(data, c.position);
+                    METRICS.diskWrite.since(writeStart);
+                    METRICS.bytesReceived.add(written);
+                    c.position += written;
+                    c.journal.advance(c.interval, c.position, c.fileChannel, journalSync);
+                } else {
+                    c.position += data.remaining();
+                    data.position(data.limit());
+                }
+            }
+            if (c.position >= c.length) {
+                finish(key, c);
+            }
+        }
+
+        private void finish(SelectionKey key, Connection c) throws IOException {
+            long duration = System.nanoTime() - c.startTime;
+            double throughput = (c.position * 8.0 / 1_000_000) / (duration / 1_000_000_000.0);
+            if (c.request.equals("TEST-SEND")) {
+                System.out.printf("Upload throughput: %.2f Mbps\n", throughput);
+            } else if (c.request.equals("TEST-RECEIVE")) {
+                System.out.printf("Download throughput: %.2f Mbps\n", throughput);
+            } else if (c.range) {
+                String range = c.file.getAbsolutePath() + " [" + c.offset + ", " + c.length + ")";
+                if (c.position < c.length) {
+                    System.out.println("Incomplete range of " + range + ", stopped at " + c.position);
+                } else if (c.length > c.offset) {
+                    System.out.println((c.phase == Phase.UPLOAD ? "Range received: " : "Range sent: ") + range);
+                }
+            } else if (c.phase == Phase.DOWNLOAD) {
+                System.out.println("File sent: " + c.file.getAbsolutePath());
+            } else if (c.position < c.length) {
+                System.out.println("Incomplete file: " + c.file.getAbsolutePath() + " (" + c.position + " of " + c.length + " bytes)");
+            } else {
+                System.out.println("File received: " + c.file.getAbsolutePath());
+            }
+            done(key, c);
+        }
+
+        /**
+         * Ends the current request: a kept-alive connection goes back to reading commands, starting with
+         * any the client has pipelined already, the others are closed.
+         */
+        private void done(SelectionKey key, Connection c) throws IOException {
+            if (!c.keepAlive) {
+                close(key, c);
+                return;
+            }
+            release(c);
+            c.reset();
+            key.interestOps(SelectionKey.OP_READ);
+            nextCommand(key, c);
+        }
+
+        /**
+         * Closes connections that had no traffic for the idle timeout, at most once a second.
+         */
+        private void closeIdle() {
+            long now = System.nanoTime();
+            if (now - lastIdleCheck < TimeUnit.SECONDS.toNanos(1)) return;
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection c = (Connection) key.attachment();
+                if (key.isValid() && now - c.lastActive > TimeUnit.MILLISECONDS.toNanos(TCPFileTransfer.IDLE_TIMEOUT)) {
+                    close(key, c);
+                }
+            }
+        }
+
+        private void close(SelectionKey key, Connection c) {
+            if (!key.isValid()) return; // Closed already
+            key.cancel();
+            METRICS.activeSessions.decrement();
+            release(c);
+            try {
+                c.channel.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close connection: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Saves the journal and closes the file of the current request. An upload's file is closed, and
+         * its write lock released, on journalSync, behind any save still queued for it.
+         */
+        private void release(Connection c) {
+            Journal journal = c.journal;
+            FileChannel fileChannel = c.fileChannel;
+            File locked = c.locked ? c.file : null;
+            c.journal = null;
+            c.fileChannel = null;
+            c.locked = false;
+            if (journal == null) {
+                closeFile(fileChannel);
+                if (locked != null) WriteLocks.unlock(locked);
+                return;
+            }
+            journalSync.execute(() -> {
+                try {
+                    journal.close(fileChannel);
+                } catch (IOException e) {
+                    System.out.println("Failed to save journal: " + e.getMessage());
+                }
+                closeFile(fileChannel);
+                if (locked != null) WriteLocks.unlock(locked);
+            });
+        }
+
+        private static void closeFile(FileChannel fileChannel) {
+            try {
+                if (fileChannel != null) fileChannel.close();
+            } catch (IOException e) {
+                System.out.println("Failed to close file: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Extracts the first line from the buffer (in write mode) and compacts the rest, or returns null
+         * if no complete line has arrived yet.
+         */
+        private static String takeLine(ByteBuffer buffer) {
+            for (int i = 0; i < buffer.position(); i++) {
+                if (buffer.get(i) == '\n') {
+                    int end = (i > 0 && buffer.get(i - 1) == '\r') ? i - 1 : i;
+                    byte[] line = new byte[end];
+                    buffer.flip();
+                    buffer.get(line);
+                    buffer.position(i + 1);
+                    buffer.compact();
+                    return new String(line);
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -1,14 +1,38 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import metrics.TransferMetrics;
+import transfer.Compression;
+import transfer.ConnectionPool;
+import transfer.DirectoryTransfer;
+import transfer.Journal;
 
 public class TCPFileTransfer {
 
-    private static final int DEFAULT_PORT = 9876;
-    private static final int TEST_DATA_SIZE = 50 * 1024 * 1024; // 50 MB
+    static final int DEFAULT_PORT = Integer.parseInt(System.getProperty("port", "9876"));
+    static final int IDLE_TIMEOUT = Integer.getInteger("idle.timeout", 60) * 1000; // ms a session may wait for its next command
+    static final int MAX_CONNECTIONS = Integer.getInteger("max.connections", 256); // SERVER sessions at once, more wait to be accepted; SERVER-NIO blocking commands
+    private static final int PIPELINE_DEPTH = 16; // RECEIVE commands RECEIVE-FILES keeps ahead of the answer it reads
+    static final long TRANSFER_CHUNK_SIZE = 64L * 1024 * 1024; // Per transferTo/transferFrom call, keeps files > 2 GB moving
+    static final int RECEIVE_BUFFER_SIZE = 256 * 1024; // Direct buffer used when transferFrom is disabled
+    private static final boolean ZERO_COPY = Boolean.parseBoolean(System.getProperty("zerocopy", "true"));
+    private static final long BYTES_PER_STREAM = 64L * 1024 * 1024; // Automatic stream count: one stream per 64 MB
+    private static final int MAX_AUTO_STREAMS = 8;
+    private static final TransferMetrics METRICS = TransferMetrics.of("tcp");
+    private static final ConnectionPool POOL = new ConnectionPool();
 
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.out.println("Usage: java TCPFileTransfer [SERVER folder | SEND filename [server] | RECEIVE filename [server] | TEST [server]]");
+            System.out.println("Usage: java TCPFileTransfer [SERVER folder | SERVER-NIO folder [threads] | SEND filename [server] [streams] | SEND-DELTA filename [server] | SEND-DIR folder [server] | SEND-FILES server filename... | RECEIVE filename [server] [streams] | RECEIVE-FILES server filename... | TEST [server] [option=value...]]");
             return;
         }
 
@@ -17,25 +41,59 @@ public class TCPFileTransfer {
                 case "SERVER":
                     startServer(args.length > 1 ? args[1] : ".");
                     break;
+                case "SERVER-NIO":
+                    SelectorServer.start(args.length > 1 ? args[1] : ".",
+                            args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors());
+                    break;
                 case "SEND":
                     if (args.length < 2) {
-                        System.out.println("Usage: SEND filename [server]");
+                        System.out.println("Usage: SEND filename [server] [streams]");
                         return;
                     }
-                    sendFile(args[1], args.length > 2 ? args[2] : "localhost");
+                    sendFile(args[1], args.length > 2 ? args[2] : "localhost", args.length > 3 ? Integer.parseInt(args[3]) : 0);
                     break;
                 case "RECEIVE":
                     if (args.length < 2) {
-                        System.out.println("Usage: RECEIVE filename [server]");
+                        System.out.println("Usage: RECEIVE filename [server] [streams]");
+                        return;
+                    }
+                    receiveFile(args[1], args.length > 2 ? args[2] : "localhost", args.length > 3 ? Integer.parseInt(args[3]) : 0);
+                    break;
+                case "SEND-DELTA":
+                    if (args.length < 2) {
+                        System.out.println("Usage: SEND-DELTA filename [server]");
                         return;
                     }
-                    receiveFile(args[1], args.length > 2 ? args[2] : "localhost");
+                    DeltaTransfer.send(args[1], args.length > 2 ? args[2] : "localhost");
+                    break;
+                case "SEND-DIR":
+                    if (args.length < 2) {
+                        System.out.println("Usage: SEND-DIR folder [server]");
+                        return;
+                    }
+                    sendDirectory(args[1], args.length > 2 ? args[2] : "localhost");
+                    break;
+                case "SEND-FILES":
+                    if (args.length < 3) {
+                        System.out.println("Usage: SEND-FILES server filename...");
+                        return;
+                    }
+                    for (int i = 2; i < args.length; i++) {
+                        sendFile(args[i], args[1], 0); // One pooled connection for all of them
+                    }
+                    break;
+                case "RECEIVE-FILES":
+                    if (args.length < 3) {
+                        System.out.println("Usage: RECEIVE-FILES server filename...");
+                        return;
+                    }
+                    receiveFiles(args[1], Arrays.asList(args).subList(2, args.length));
                     break;
                 case "TEST":
-                    testThroughput(args.length > 1 ? args[1] : "localhost");
+                    NetworkTest.start(Arrays.asList(args).subList(1, args.length));
                     break;
                 default:
-                    System.out.println("Invalid mode. Use SERVER, SEND, RECEIVE, or TEST.");
+                    System.out.println("Invalid mode. Use SERVER, SERVER-NIO, SEND, SEND-DELTA, SEND-DIR, SEND-FILES, RECEIVE, RECEIVE-FILES, or TEST.");
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -43,42 +101,141 @@ public class TCPFileTransfer {
     }
 
     private static void startServer(String folder) throws IOException {
-        ServerSocket serverSocket = new ServerSocket(DEFAULT_PORT);
+        // Channel-backed sockets so file data can be handed to the kernel with transferTo
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(DEFAULT_PORT));
         System.out.println("Server started on port " + DEFAULT_PORT + ".");
+        TransferMetrics.export();
         File baseFolder = new File(folder);
         if (!baseFolder.exists() && !baseFolder.mkdirs()) {
             throw new IOException("Failed to create base folder: " + folder);
         }
 
+        // A thread per connection, so a kept-alive session waiting for its next command holds up no one,
+        // but at most MAX_CONNECTIONS of them: the next client is only accepted once a session has ended
+        Semaphore sessions = new Semaphore(MAX_CONNECTIONS);
+        ExecutorService clients = Executors.newFixedThreadPool(MAX_CONNECTIONS, r -> new Thread(r, "client"));
+        while (true) {
+            sessions.acquireUninterruptibly();
+            Socket clientSocket;
+            try {
+                clientSocket = serverChannel.accept().socket();
+            } catch (IOException e) {
+                sessions.release();
+                System.out.println("Accept failed: " + e.getMessage());
+                continue;
+            }
+            METRICS.activeSessions.increment();
+            clients.execute(() -> {
+                try (Socket socket = clientSocket) {
+                    handleClient(socket, baseFolder, session(socket.getInputStream()));
+                } catch (IOException | RuntimeException e) {
+                    // A dropped client must not take the server down; its partial upload stays journaled
+                    System.out.println("Connection error: " + e.getMessage());
+                } finally {
+                    METRICS.activeSessions.decrement();
+                    sessions.release();
+                }
+            });
+        }
+    }
+
+    /**
+     * Serves commands one after another until the client closes the connection, so a client can reuse
+     * it for many transfers and send its next command before it has read the previous answer. Lines
+     * are read from commands without buffering past them: bodies are read from the socket itself, and
+     * pipelined commands have to stay there until their turn. The SEND-DELTA and SEND-DIR bodies are
+     * read through a BodyInputStream on commands instead, which pushes back what it read past the
+     * body. A TEST command, whose body may end with the connection, ends the session, and so does
+     * IDLE_TIMEOUT without traffic.
+     */
+    static void handleClient(Socket clientSocket, File baseFolder, PushbackInputStream commands) throws IOException {
+        clientSocket.setSoTimeout(IDLE_TIMEOUT);
         while (true) {
-            try (Socket clientSocket = serverSocket.accept()) {
-                handleClient(clientSocket, baseFolder);
+            String command;
+            try {
+                command = readLine(commands);
+            } catch (SocketTimeoutException e) {
+                return; // Idle session
+            }
+            if (command == null) return;
+            handleCommand(command, clientSocket, baseFolder, commands);
+            if (command.startsWith("TEST-")) return;
+        }
+    }
+
+    /**
+     * The command stream of a session over in, with room to push back a BodyInputStream's read-ahead.
+     */
+    static PushbackInputStream session(InputStream in) {
+        return new PushbackInputStream(in, RECEIVE_BUFFER_SIZE);
+    }
+
+    /**
+     * Buffered reader of a body that ends inside the stream, not with it. Whatever it read past the
+     * end may be commands pipelined behind the body; giveBack returns it to the session.
+     */
+    static class BodyInputStream extends BufferedInputStream {
+        private final PushbackInputStream session;
+
+        BodyInputStream(PushbackInputStream session) {
+            // No larger than the pushback buffer, so the read-ahead always fits back in
+            super(session, RECEIVE_BUFFER_SIZE);
+            this.session = session;
+        }
+
+        void giveBack() throws IOException {
+            if (count > pos) {
+                session.unread(buf, pos, count - pos);
+                pos = count;
             }
         }
     }
 
-    private static void handleClient(Socket clientSocket, File baseFolder) throws IOException {
-        BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+    static void handleCommand(String command, Socket clientSocket, File baseFolder, PushbackInputStream commands) throws IOException {
         BufferedWriter out = new BufferedWriter(new OutputStreamWriter(clientSocket.getOutputStream()));
-        String command = in.readLine();
+        if (command.startsWith("TEST-")) {
+            NetworkTest.serve(command, clientSocket, out);
+        } else {
+            handleFileCommand(command, clientSocket, baseFolder, commands, out);
+        }
+    }
 
-        if (command.startsWith("SEND")) {
-            handleSendCommand(command, in, clientSocket.getInputStream(), baseFolder, out);
+    /**
+     * Serves one file command. A trailing DEFLATE asks for a compressed body; the server agrees by
+     * ending its FILE answer with DEFLATE too, and both sides then code the body with Compression.
+     */
+    private static void handleFileCommand(String command, Socket clientSocket, File baseFolder, PushbackInputStream commands, BufferedWriter out) throws IOException {
+        boolean compressed = command.endsWith(" " + Compression.TOKEN);
+        if (compressed) {
+            command = command.substring(0, command.length() - Compression.TOKEN.length() - 1);
+        }
+
+        if (command.startsWith("SEND-DELTA")) {
+            handleSendDeltaCommand(command, clientSocket, baseFolder, commands, out);
+        } else if (command.startsWith("SEND-DIR")) {
+            handleSendDirCommand(command, baseFolder, commands, out);
+        } else if (command.startsWith("SEND-RANGE")) {
+            handleSendRangeCommand(command, compressed, clientSocket, baseFolder, out);
+        } else if (command.startsWith("RECEIVE-RANGE")) {
+            handleReceiveRangeCommand(command, compressed, clientSocket, baseFolder, out);
+        } else if (command.startsWith("SEND")) {
+            handleSendCommand(command, compressed, clientSocket, baseFolder, out);
         } else if (command.startsWith("RECEIVE")) {
-            handleReceiveCommand(command, clientSocket.getOutputStream(), baseFolder, out);
-        } else if (command.equals("TEST-SEND")) {
-            handleTestSend(in, clientSocket.getInputStream(), out);
-        } else if (command.equals("TEST-RECEIVE")) {
-            handleTestReceive(clientSocket.getOutputStream(), out);
+            handleReceiveCommand(command, compressed, clientSocket, baseFolder, out);
         } else {
             out.write("ERROR Invalid command\r\n");
             out.flush();
         }
     }
 
-    private static void handleSendCommand(String command, BufferedReader in, InputStream clientIn, File baseFolder, BufferedWriter out) throws IOException {
-        String[] parts = command.split(" ", 3);
-        if (parts.length < 3) {
+    /**
+     * SEND filename filesize [RESUME]: with RESUME the FILE answer carries a fourth field, the offset
+     * the client should continue from according to the partial-file journal.
+     */
+    private static void handleSendCommand(String command, boolean compressed, Socket clientSocket, File baseFolder, BufferedWriter out) throws IOException {
+        String[] parts = command.split(" ");
+        if (parts.length < 3 || parts.length > 4) {
             out.write("ERROR Invalid SEND command\r\n");
             out.flush();
             return;
@@ -86,26 +243,36 @@ public class TCPFileTransfer {
 
         String filename = parts[1];
         long fileSize = Long.parseLong(parts[2]);
+        boolean resume = parts.length == 4 && parts[3].equals("RESUME");
         File file = new File(baseFolder, filename);
+        if (!WriteLocks.lock(file, false)) {
+            out.write("ERROR File busy\r\n");
+            out.flush();
+            return;
+        }
 
-        try (FileOutputStream fos = new FileOutputStream(file)) {
-            out.write("FILE " + filename + " " + fileSize + "\r\n");
+        try {
+            Journal journal = Journal.open(file, fileSize, resume, METRICS);
+            long start = resume ? journal.resumePoint(0, fileSize) : 0;
+            out.write("FILE " + filename + " " + fileSize + (resume ? " " + start : "") + (compressed ? " " + Compression.TOKEN : "") + "\r\n");
             out.flush();
 
-            byte[] buffer = new byte[8192];
-            long received = 0;
-            while (received < fileSize) {
-                int read = clientIn.read(buffer);
-                if (read == -1) break;
-                fos.write(buffer, 0, read);
-                received += read;
+            if (start > 0) {
+                System.out.println("Resuming " + file.getAbsolutePath() + " at " + start);
             }
+            long reached = receiveJournaled(file, journal, start, fileSize, clientSocket, compressed);
+            if (reached < fileSize) {
+                System.out.println("Incomplete file: " + file.getAbsolutePath() + " (" + reached + " of " + fileSize + " bytes)");
+                return;
+            }
+        } finally {
+            WriteLocks.unlock(file);
         }
 
         System.out.println("File received: " + file.getAbsolutePath());
     }
 
-    private static void handleReceiveCommand(String command, OutputStream clientOut, File baseFolder, BufferedWriter out) throws IOException {
+    private static void handleReceiveCommand(String command, boolean compressed, Socket clientSocket, File baseFolder, BufferedWriter out) throws IOException {
         String[] parts = command.split(" ", 2);
         if (parts.length < 2) {
             out.write("ERROR Invalid RECEIVE command\r\n");
@@ -121,170 +288,665 @@ public class TCPFileTransfer {
             return;
         }
 
-        out.write("FILE " + filename + " " + file.length() + "\r\n");
+        out.write("FILE " + filename + " " + file.length() + (compressed ? " " + Compression.TOKEN : "") + "\r\n");
         out.flush();
 
-        try (FileInputStream fis = new FileInputStream(file)) {
-            byte[] buffer = new byte[8192];
-            int read;
-            while ((read = fis.read(buffer)) != -1) {
-                clientOut.write(buffer, 0, read);
+        sendFileData(file, clientSocket, compressed);
+
+        System.out.println("File sent: " + file.getAbsolutePath());
+    }
+
+    /**
+     * SEND-RANGE filename filesize offset length [RESUME]: receives one slice of a parallel upload and
+     * writes it in place. The file is sized to filesize but never truncated, so slices can arrive in any order.
+     */
+    private static void handleSendRangeCommand(String command, boolean compressed, Socket clientSocket, File baseFolder, BufferedWriter out) throws IOException {
+        String[] parts = command.split(" ");
+        if (parts.length < 5 || parts.length > 6) {
+            out.write("ERROR Invalid SEND-RANGE command\r\n");
+            out.flush();
+            return;
+        }
+
+        String filename = parts[1];
+        long fileSize = Long.parseLong(parts[2]);
+        long offset = Long.parseLong(parts[3]);
+        long length = Long.parseLong(parts[4]);
+        if (offset < 0 || length < 0 || offset + length > fileSize) {
+            out.write("ERROR Invalid range\r\n");
+            out.flush();
+            return;
+        }
+        boolean resume = parts.length == 6 && parts[5].equals("RESUME");
+        File file = new File(baseFolder, filename);
+        if (!WriteLocks.lock(file, true)) {
+            out.write("ERROR File busy\r\n");
+            out.flush();
+            return;
+        }
+
+        try {
+            Journal journal = Journal.open(file, fileSize, resume, METRICS);
+            long start = resume ? journal.resumePoint(offset, offset + length) : offset;
+            out.write("FILE " + filename + " " + fileSize + (resume ? " " + start : "") + (compressed ? " " + Compression.TOKEN : "") + "\r\n");
+            out.flush();
+
+            long reached = receiveJournaled(file, journal, start, offset + length, clientSocket, compressed);
+            if (reached < offset + length) {
+                System.out.println("Incomplete range of " + file.getAbsolutePath() + " [" + offset + ", " + (offset + length) + "), stopped at " + reached);
+                return;
             }
+        } finally {
+            WriteLocks.unlock(file);
         }
 
-        System.out.println("File sent: " + file.getAbsolutePath());
+        System.out.println("Range received: " + file.getAbsolutePath() + " [" + offset + ", " + (offset + length) + ")");
     }
 
-    private static void handleTestSend(BufferedReader in, InputStream clientIn, BufferedWriter out) throws IOException {
-        out.write("READY\r\n");
+    /**
+     * RECEIVE-RANGE filename offset length: answers with the full file size and then sends only the
+     * requested slice. A zero length request is used by clients to learn the size before splitting.
+     */
+    private static void handleReceiveRangeCommand(String command, boolean compressed, Socket clientSocket, File baseFolder, BufferedWriter out) throws IOException {
+        String[] parts = command.split(" ");
+        if (parts.length != 4) {
+            out.write("ERROR Invalid RECEIVE-RANGE command\r\n");
+            out.flush();
+            return;
+        }
+
+        String filename = parts[1];
+        long offset = Long.parseLong(parts[2]);
+        long length = Long.parseLong(parts[3]);
+        File file = new File(baseFolder, filename);
+        if (!file.exists()) {
+            out.write("ERROR File not found\r\n");
+            out.flush();
+            return;
+        }
+        if (offset < 0 || length < 0 || offset + length > file.length()) {
+            out.write("ERROR Invalid range\r\n");
+            out.flush();
+            return;
+        }
+
+        out.write("FILE " + filename + " " + file.length() + (compressed ? " " + Compression.TOKEN : "") + "\r\n");
         out.flush();
 
-        byte[] buffer = new byte[8192];
-        long received = 0;
-        long startTime = System.nanoTime();
-        while (received < TEST_DATA_SIZE) {
-            int read = clientIn.read(buffer);
-            if (read == -1) break;
-            received += read;
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            sendRange(fileChannel, clientSocket, offset, length, compressed);
+        }
+
+        if (length > 0) {
+            System.out.println("Range sent: " + file.getAbsolutePath() + " [" + offset + ", " + (offset + length) + ")");
         }
-        long duration = System.nanoTime() - startTime;
-        double throughput = (received * 8.0 / 1_000_000) / (duration / 1_000_000_000.0);
-        System.out.printf("Upload throughput: %.2f Mbps\n", throughput);
     }
 
-    private static void handleTestReceive(OutputStream clientOut, BufferedWriter out) throws IOException {
-        out.write("READY\r\n");
-        out.flush();
+    /**
+     * SEND-DELTA filename filesize: an rsync-style update of a file the server may already hold, see
+     * DeltaTransfer. The file is locked against other uploads for the whole exchange.
+     */
+    private static void handleSendDeltaCommand(String command, Socket clientSocket, File baseFolder, PushbackInputStream commands, BufferedWriter out) throws IOException {
+        String[] parts = command.split(" ");
+        if (parts.length != 3) {
+            out.write("ERROR Invalid SEND-DELTA command\r\n");
+            out.flush();
+            return;
+        }
 
-        byte[] buffer = new byte[8192];
-        long sent = 0;
-        long startTime = System.nanoTime();
-        while (sent < TEST_DATA_SIZE) {
-            int toSend = (int) Math.min(buffer.length, TEST_DATA_SIZE - sent);
-            clientOut.write(buffer, 0, toSend);
-            clientOut.flush();
-            sent += toSend;
-        }
-        long duration = System.nanoTime() - startTime;
-        double throughput = (sent * 8.0 / 1_000_000) / (duration / 1_000_000_000.0);
-        System.out.printf("Download throughput: %.2f Mbps\n", throughput);
-    }
-
-    private static void sendFile(String filename, String server) throws IOException {
-        try (Socket socket = new Socket(server, DEFAULT_PORT)) {
-            File file = new File(filename);
-            if (!file.exists()) {
-                System.out.println("File not found: " + filename);
+        String filename = parts[1];
+        long fileSize = Long.parseLong(parts[2]);
+        File file = new File(baseFolder, filename);
+        if (!WriteLocks.lock(file, false)) {
+            out.write("ERROR File busy\r\n");
+            out.flush();
+            return;
+        }
+        try {
+            DeltaTransfer.receive(filename, file, fileSize, clientSocket, commands, out);
+        } finally {
+            WriteLocks.unlock(file);
+        }
+    }
+
+    /**
+     * SEND-DIR name: a whole tree into baseFolder/name, see DirectoryTransfer. The name must stay inside
+     * baseFolder, and the tree is locked against a second SEND-DIR of the same name.
+     */
+    private static void handleSendDirCommand(String command, File baseFolder, PushbackInputStream commands, BufferedWriter out) throws IOException {
+        String[] parts = command.split(" ", 2);
+        Path base = baseFolder.toPath().toAbsolutePath().normalize();
+        Path root = parts.length == 2 ? DirectoryTransfer.entryPath(base, parts[1]) : null;
+        if (root == null || root.equals(base)) {
+            out.write("ERROR Invalid SEND-DIR command\r\n");
+            out.flush();
+            return;
+        }
+        if (!WriteLocks.lock(root.toFile(), false)) {
+            out.write("ERROR Directory busy\r\n");
+            out.flush();
+            return;
+        }
+        try {
+            Files.createDirectories(root);
+            out.write("READY\r\n");
+            out.flush();
+            DirectoryTransfer.Summary tree = DirectoryTransfer.receive(root, commands, METRICS);
+            if (tree.failed > 0) {
+                out.write("ERROR " + tree.failed + " files not written, first " + tree.firstFailure + "\r\n");
+                out.flush();
+                System.out.println("Incomplete directory: " + root + " (" + tree.failed + " of " + tree.files + " files not written)");
                 return;
             }
+            out.write("OK " + tree.files + " " + tree.bytes + "\r\n");
+            out.flush();
+            System.out.println("Directory received: " + root + " (" + tree.files + " files, " + tree.bytes + " bytes)");
+        } finally {
+            WriteLocks.unlock(root.toFile());
+        }
+    }
 
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    /**
+     * Client side of SEND-DIR: the tree goes out behind the server's READY without waiting for
+     * answers, its large files through sendRange, and the server answers once everything is written.
+     */
+    private static void sendDirectory(String dirname, String server) throws IOException {
+        Path root = Paths.get(dirname).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root) || root.getFileName() == null) {
+            System.out.println("Directory not found: " + dirname);
+            return;
+        }
 
-            out.write("SEND " + file.getName() + " " + file.length() + "\r\n");
+        long startTime = System.nanoTime();
+        try (Socket socket = connect(server)) {
+            OutputStream out = socket.getOutputStream();
+            out.write((DirectoryTransfer.COMMAND + " " + root.getFileName() + "\r\n").getBytes());
             out.flush();
-
-            String response = in.readLine();
-            if (!response.startsWith("FILE")) {
+            String response = readLine(socket.getInputStream());
+            if (response == null || !response.equals("READY")) {
                 System.out.println("Error from server: " + response);
                 return;
             }
 
-            try (FileInputStream fis = new FileInputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int read;
-                while ((read = fis.read(buffer)) != -1) {
-                    socket.getOutputStream().write(buffer, 0, read);
-                }
+            DirectoryTransfer.Summary tree = DirectoryTransfer.send(root, socket,
+                    (fileChannel, target, length) -> sendRange(fileChannel, target, 0, length, false), METRICS);
+            response = readLine(socket.getInputStream());
+            if (response == null || !response.startsWith("OK")) {
+                System.out.println("Error from server: " + response);
+                return;
             }
+            long nanos = System.nanoTime() - startTime;
+            System.out.printf("Directory sent: %s (%d files, %d bytes, %.2f Mbps)%n", dirname, tree.files, tree.bytes, mbps(tree.bytes, nanos));
+        }
+    }
+
+    private static void sendFile(String filename, String server, int streams) throws IOException {
+        File file = new File(filename);
+        if (!file.exists()) {
+            System.out.println("File not found: " + filename);
+            return;
+        }
+        if (streams <= 0) {
+            streams = chooseStreams(file.length());
+        }
+        // A server that does not know SEND-RANGE gets the whole file as a plain SEND
+        if (streams > 1 && sendFileParallel(file, server, streams)) {
+            return;
+        }
 
-            System.out.println("File sent: " + filename);
+        String refused = sendWholeFile(file, server, " RESUME" + Compression.request());
+        if (refused != null) {
+            // A server that only knows SEND name size answers ERROR or drops the connection
+            System.out.println("Server refused SEND RESUME (" + refused + "), sending the plain command");
+            refused = sendWholeFile(file, server, "");
+        }
+        if (refused != null) {
+            System.out.println("Error from server: " + refused);
         }
     }
 
-    private static void receiveFile(String filename, String server) throws IOException {
-        try (Socket socket = new Socket(server, DEFAULT_PORT)) {
+    /**
+     * SEND of the file with options after its size, from where the server's FILE answer says to start.
+     * Returns null once the file has gone, otherwise the answer that was not FILE.
+     */
+    private static String sendWholeFile(File file, String server, String options) throws IOException {
+        Socket socket = POOL.borrow(server, DEFAULT_PORT);
+        boolean reusable = false;
+        try {
             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            out.write("RECEIVE " + filename + "\r\n");
+            out.write("SEND " + file.getName() + " " + file.length() + options + "\r\n");
             out.flush();
 
-            String response = in.readLine();
-            if (!response.startsWith("FILE")) {
-                System.out.println("Error from server: " + response);
-                return;
+            String response = readLine(socket.getInputStream());
+            if (response == null || !response.startsWith("FILE")) {
+                reusable = response != null;
+                return response != null ? response : "connection closed";
             }
 
-            String[] parts = response.split(" ", 3);
-            long fileSize = Long.parseLong(parts[2]);
-            File file = new File(filename);
-
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                byte[] buffer = new byte[8192];
-                long received = 0;
-                while (received < fileSize) {
-                    int read = socket.getInputStream().read(buffer);
-                    if (read == -1) break;
-                    fos.write(buffer, 0, read);
-                    received += read;
-                }
+            String[] parts = response.split(" ");
+            long start = parts.length > 3 ? Long.parseLong(parts[3]) : 0;
+            if (start > 0) {
+                System.out.println("Resuming at byte " + start);
+            }
+            try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                reusable = sendRange(fileChannel, socket, start, file.length() - start, Compression.accepted(response)) == file.length() - start;
             }
 
-            System.out.println("File received: " + filename);
+            System.out.println("File sent: " + file.getPath());
+            return null;
+        } finally {
+            POOL.release(server, DEFAULT_PORT, socket, reusable);
         }
     }
 
-    private static void testThroughput(String server) throws IOException {
-        try (Socket socket = new Socket(server, DEFAULT_PORT)) {
-            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+    /**
+     * Without streams the size is not known up front, so the file comes as a plain RECEIVE that every
+     * server understands; RECEIVE-RANGE is only used for more streams or to resume from a journal, and
+     * a server that answers it with ERROR gets the plain command after all.
+     */
+    private static void receiveFile(String filename, String server, int streams) throws IOException {
+        // A journal left by an interrupted download means only the missing ranges are fetched
+        if ((streams > 1 || Journal.exists(new File(filename))) && receiveFileParallel(filename, server, streams)) {
+            return;
+        }
 
-            // Test upload
-            out.write("TEST-SEND\r\n");
+        Socket socket = POOL.borrow(server, DEFAULT_PORT);
+        boolean reusable = false;
+        try {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            out.write("RECEIVE " + filename + Compression.request() + "\r\n");
             out.flush();
-            String response = in.readLine();
-            if (!response.equals("READY")) {
-                System.out.println("Error from server: " + response);
-                return;
+            reusable = receiveAnswer(filename, socket);
+        } finally {
+            POOL.release(server, DEFAULT_PORT, socket, reusable);
+        }
+    }
+
+    /**
+     * RECEIVE-FILES: downloads the files in turn over one pooled connection, keeping up to
+     * PIPELINE_DEPTH RECEIVE commands ahead of the answer being read, so the server moves on to the
+     * next file without waiting a round trip for the request.
+     */
+    private static void receiveFiles(String server, List<String> filenames) throws IOException {
+        Socket socket = POOL.borrow(server, DEFAULT_PORT);
+        boolean reusable = false;
+        try {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            int requested = 0;
+            for (int i = 0; i < filenames.size(); i++) {
+                while (requested < filenames.size() && requested < i + PIPELINE_DEPTH) {
+                    out.write("RECEIVE " + filenames.get(requested++) + Compression.request() + "\r\n");
+                }
+                out.flush();
+                if (!receiveAnswer(filenames.get(i), socket)) return;
+            }
+            reusable = true;
+        } finally {
+            POOL.release(server, DEFAULT_PORT, socket, reusable);
+        }
+    }
+
+    /**
+     * Reads the answer to a RECEIVE and the file that follows it. Returns whether the connection is
+     * still in step with the server: true after an ERROR answer or a complete file.
+     */
+    private static boolean receiveAnswer(String filename, Socket socket) throws IOException {
+        // File data follows the header immediately, so it must not be read through a BufferedReader
+        String response = readLine(socket.getInputStream());
+        if (response == null || !response.startsWith("FILE")) {
+            System.out.println("Error from server: " + response);
+            return response != null;
+        }
+
+        String[] parts = response.split(" ");
+        long fileSize = Long.parseLong(parts[2]);
+        File file = new File(filename);
+
+        long received = receiveFileData(file, socket, fileSize, Compression.accepted(response));
+        if (received < fileSize) {
+            System.out.println("Incomplete file: " + filename + " (" + received + " of " + fileSize + " bytes)");
+            return false;
+        }
+
+        System.out.println("File received: " + filename);
+        return true;
+    }
+
+    private static int chooseStreams(long fileSize) {
+        return (int) Math.max(1, Math.min(MAX_AUTO_STREAMS, fileSize / BYTES_PER_STREAM));
+    }
+
+    /**
+     * Splits the file into one contiguous range per stream and uploads every range on its own
+     * connection with SEND-RANGE. The server writes each range in place. Returns false when the server
+     * answered SEND-RANGE with ERROR, or for an empty file, which has no ranges, so the caller can fall
+     * back to SEND.
+     */
+    private static boolean sendFileParallel(File file, String server, int streams) throws IOException {
+        long fileSize = file.length();
+        if (fileSize == 0) return false;
+        long rangeSize = (fileSize + streams - 1) / streams;
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<Future<Long>> results = new ArrayList<>();
+            for (long offset = 0; offset < fileSize; offset += rangeSize) {
+                long rangeOffset = offset;
+                long rangeLength = Math.min(rangeSize, fileSize - offset);
+                results.add(pool.submit(() -> {
+                    Socket socket = POOL.borrow(server, DEFAULT_PORT);
+                    boolean reusable = false;
+                    try {
+                        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                        out.write("SEND-RANGE " + file.getName() + " " + fileSize + " " + rangeOffset + " " + rangeLength + " RESUME" + Compression.request() + "\r\n");
+                        out.flush();
+
+                        String response = readLine(socket.getInputStream());
+                        if (response != null && response.startsWith("ERROR")) {
+                            reusable = true;
+                            throw new RangeRefusedException(response);
+                        }
+                        if (response == null || !response.startsWith("FILE")) {
+                            throw new IOException("Error from server: " + response);
+                        }
+                        String[] parts = response.split(" ");
+                        long start = parts.length > 3 ? Long.parseLong(parts[3]) : rangeOffset;
+                        long sent = sendRange(fileChannel, socket, start, rangeOffset + rangeLength - start, Compression.accepted(response));
+                        reusable = sent == rangeOffset + rangeLength - start;
+                        return sent;
+                    } finally {
+                        POOL.release(server, DEFAULT_PORT, socket, reusable);
+                    }
+                }));
             }
 
-            byte[] buffer = new byte[8192];
             long sent = 0;
-            long startTime = System.nanoTime();
-            while (sent < TEST_DATA_SIZE) {
-                int toSend = (int) Math.min(buffer.length, TEST_DATA_SIZE - sent);
-                socket.getOutputStream().write(buffer, 0, toSend);
-                sent += toSend;
+            for (Future<Long> result : results) {
+                try {
+                    sent += await(result);
+                } catch (RangeRefusedException e) {
+                    System.out.println("Server refused SEND-RANGE (" + e.getMessage() + "), sending over one stream");
+                    return false;
+                }
             }
-            long duration = System.nanoTime() - startTime;
-            double uploadThroughput = (sent * 8.0 / 1_000_000) / (duration / 1_000_000_000.0);
-            System.out.printf("Upload throughput: %.2f Mbps\n", uploadThroughput);
+            System.out.println("File sent: " + file.getPath() + " (" + sent + " bytes over " + results.size() + " streams)");
+            return true;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-            // Test download
-            socket.close(); // Close and re-establish connection for download test
-            Socket socket2 = new Socket(server, DEFAULT_PORT);
-            out = new BufferedWriter(new OutputStreamWriter(socket2.getOutputStream()));
-            in = new BufferedReader(new InputStreamReader(socket2.getInputStream()));
+    /**
+     * An ERROR answer to SEND-RANGE or RECEIVE-RANGE, from a server that may only know SEND and RECEIVE.
+     */
+    private static class RangeRefusedException extends IOException {
+        private static final long serialVersionUID = 1L;
 
-            out.write("TEST-RECEIVE\r\n");
+        RangeRefusedException(String response) {
+            super(response);
+        }
+    }
+
+    /**
+     * Learns the file size with an empty RECEIVE-RANGE, preallocates the local file and then fetches
+     * the ranges still missing according to the local journal (all of it on a fresh download), split
+     * over the streams and each written in place with positional writes. Returns false when the server
+     * answered the RECEIVE-RANGE with ERROR, so the caller can fall back to RECEIVE.
+     */
+    private static boolean receiveFileParallel(String filename, String server, int streams) throws IOException {
+        long fileSize;
+        Socket probe = POOL.borrow(server, DEFAULT_PORT);
+        String response = null;
+        try {
+            BufferedWriter out = new BufferedWriter(new OutputStreamWriter(probe.getOutputStream()));
+            out.write("RECEIVE-RANGE " + filename + " 0 0\r\n");
             out.flush();
-            response = in.readLine();
-            if (!response.equals("READY")) {
+
+            response = readLine(probe.getInputStream());
+            if (response != null && response.startsWith("ERROR")) {
+                return false;
+            }
+            if (response == null || !response.startsWith("FILE")) {
                 System.out.println("Error from server: " + response);
-                return;
+                return true;
+            }
+            fileSize = Long.parseLong(response.split(" ", 3)[2]);
+        } finally {
+            // The empty range has no body, the connection can serve one of the ranges
+            POOL.release(server, DEFAULT_PORT, probe, response != null);
+        }
+        if (streams <= 0) {
+            streams = chooseStreams(fileSize);
+        }
+
+        File file = new File(filename);
+        Journal journal = Journal.open(file, fileSize, true, METRICS);
+        List<long[]> missing = journal.missing();
+        long remaining = 0;
+        for (long[] gap : missing) {
+            remaining += gap[1] - gap[0];
+        }
+        if (remaining < fileSize) {
+            System.out.println("Resuming download, " + remaining + " of " + fileSize + " bytes missing");
+        }
+
+        // Split the missing bytes into at most one range per stream, never crossing a gap boundary
+        long rangeSize = Math.max(1, (remaining + streams - 1) / streams);
+        List<long[]> ranges = new ArrayList<>();
+        for (long[] gap : missing) {
+            for (long offset = gap[0]; offset < gap[1]; offset += rangeSize) {
+                ranges.add(new long[] {offset, Math.min(rangeSize, gap[1] - offset)});
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(streams);
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() != fileSize) {
+                raf.setLength(fileSize);
+            }
+            FileChannel fileChannel = raf.getChannel();
+            List<Future<Long>> results = new ArrayList<>();
+            for (long[] range : ranges) {
+                results.add(pool.submit(() -> {
+                    Socket socket = POOL.borrow(server, DEFAULT_PORT);
+                    boolean reusable = false;
+                    try {
+                        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                        out.write("RECEIVE-RANGE " + filename + " " + range[0] + " " + range[1] + Compression.request() + "\r\n");
+                        out.flush();
+
+                        String answer = readLine(socket.getInputStream());
+                        if (answer == null || !answer.startsWith("FILE")) {
+                            throw new IOException("Error from server: " + answer);
+                        }
+                        if (Long.parseLong(answer.split(" ")[2]) != fileSize) {
+                            throw new IOException("File changed on the server, delete " + filename + " and retry");
+                        }
+                        long received = receiveRange(fileChannel, socket, range[0], range[1], journal, Compression.accepted(answer));
+                        reusable = received == range[1];
+                        return received;
+                    } finally {
+                        POOL.release(server, DEFAULT_PORT, socket, reusable);
+                    }
+                }));
             }
 
             long received = 0;
-            startTime = System.nanoTime();
-            while (received < TEST_DATA_SIZE) {
-                int read = socket2.getInputStream().read(buffer);
+            for (Future<Long> result : results) {
+                received += await(result);
+            }
+            if (received < remaining) {
+                System.out.println("Incomplete file: " + filename + " (" + (fileSize - remaining + received) + " of " + fileSize + " bytes)");
+                return true;
+            }
+            System.out.println("File received: " + filename + " (" + ranges.size() + " streams)");
+            return true;
+        } finally {
+            pool.shutdownNow();
+            try {
+                journal.close(raf == null ? null : raf.getChannel());
+            } finally {
+                if (raf != null) raf.close();
+            }
+        }
+    }
+
+    private static long await(Future<Long> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a range");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    static Socket connect(String server) throws IOException {
+        // Opened through a SocketChannel so that socket.getChannel() is available for zero-copy sends
+        return SocketChannel.open(new InetSocketAddress(server, DEFAULT_PORT)).socket();
+    }
+
+    /**
+     * Streams the whole file to the socket. See sendRange.
+     */
+    private static long sendFileData(File file, Socket socket, boolean compressed) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return sendRange(fileChannel, socket, 0, fileChannel.size(), compressed);
+        }
+    }
+
+    /**
+     * Sends length bytes starting at offset. Uses FileChannel.transferTo (sendfile on Linux) when
+     * the socket has a channel and zero-copy is enabled, otherwise falls back to an 8 KB copy loop.
+     * The fallback resumes from wherever transferTo stopped, so a partial zero-copy send is never repeated.
+     * Only positional reads are used, so several streams can share one FileChannel. A compressed body
+     * goes through Compression.send instead.
+     */
+    static long sendRange(FileChannel fileChannel, Socket socket, long offset, long length, boolean compressed) throws IOException {
+        if (compressed) {
+            return Compression.send(fileChannel, socket.getOutputStream(), offset, offset + length, METRICS);
+        }
+        long end = offset + length;
+        long position = offset;
+
+        SocketChannel socketChannel = socket.getChannel();
+        if (ZERO_COPY && socketChannel != null) {
+            try {
+                while (position < end) {
+                    long transferred = fileChannel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, end - position), socketChannel);
+                    if (transferred <= 0) break;
+                    position += transferred;
+                    METRICS.bytesSent.add(transferred);
+                }
+            } catch (UnsupportedOperationException e) {
+                System.out.println("Zero-copy not supported, using buffered copy");
+            }
+        }
+
+        OutputStream socketOut = socket.getOutputStream();
+        byte[] buffer = new byte[8192];
+        ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        while (position < end) {
+            wrapper.limit((int) Math.min(buffer.length, end - position));
+            int read = fileChannel.read(wrapper, position);
+            if (read <= 0) break;
+            socketOut.write(buffer, 0, read);
+            position += read;
+            METRICS.bytesSent.add(read);
+            wrapper.clear();
+        }
+        socketOut.flush();
+        return position - offset;
+    }
+
+    /**
+     * Receives exactly fileSize bytes into file under a fresh journal. The file is preallocated to its
+     * announced size; if the transfer stops short the journal keeps what arrived for a later resume.
+     */
+    private static long receiveFileData(File file, Socket socket, long fileSize, boolean compressed) throws IOException {
+        return receiveJournaled(file, Journal.open(file, fileSize, false, METRICS), 0, fileSize, socket, compressed);
+    }
+
+    /**
+     * Receives [start, end) of the journal's file and closes the journal handle. Returns the offset reached.
+     */
+    private static long receiveJournaled(File file, Journal journal, long start, long end, Socket socket, boolean compressed) throws IOException {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() != journal.fileSize) {
+                raf.setLength(journal.fileSize);
+            }
+            return start + receiveRange(raf.getChannel(), socket, start, end - start, journal, compressed);
+        } finally {
+            try {
+                journal.close(raf == null ? null : raf.getChannel());
+            } finally {
+                if (raf != null) raf.close();
+            }
+        }
+    }
+
+    /**
+     * Writes up to length bytes from the socket at offset, with FileChannel.transferFrom straight from
+     * the socket channel, or through a large direct buffer when zero-copy is off. Progress is recorded
+     * in the journal as it goes.
+     */
+    private static long receiveRange(FileChannel fileChannel, Socket socket, long offset, long length, Journal journal, boolean compressed) throws IOException {
+        if (compressed) {
+            return Compression.receive(fileChannel, socket.getInputStream(), offset, offset + length, journal, METRICS);
+        }
+        long end = offset + length;
+        long position = offset;
+        long[] interval = journal.begin(offset);
+
+        SocketChannel socketChannel = socket.getChannel();
+        if (ZERO_COPY && socketChannel != null) {
+            while (position < end) {
+                long transferred = fileChannel.transferFrom(socketChannel, position, Math.min(TRANSFER_CHUNK_SIZE, end - position));
+                if (transferred <= 0) break; // A blocking channel only returns 0 at end of stream
+                position += transferred;
+                METRICS.bytesReceived.add(transferred);
+                journal.advance(interval, position, fileChannel);
+            }
+        } else {
+            ReadableByteChannel source = socketChannel != null ? socketChannel : Channels.newChannel(socket.getInputStream());
+            ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+            while (position < end) {
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = source.read(buffer);
                 if (read == -1) break;
-                received += read;
+                buffer.flip();
+                long writeStart = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+                METRICS.diskWrite.since(writeStart);
+                METRICS.bytesReceived.add(read);
+                buffer.clear();
+                journal.advance(interval, position, fileChannel);
             }
-            duration = System.nanoTime() - startTime;
-            double downloadThroughput = (received * 8.0 / 1_000_000) / (duration / 1_000_000_000.0);
-            System.out.printf("Download throughput: %.2f Mbps\n", downloadThroughput);
         }
+        return position - offset;
+    }
+
+    static double mbps(long bytes, long nanos) {
+        return nanos <= 0 ? 0 : bytes * 8_000.0 / nanos;
+    }
+
+    /**
+     * Reads one CRLF or LF terminated header line byte by byte, leaving any data that follows it unread.
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString();
     }
 }
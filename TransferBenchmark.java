@@ -0,0 +1,234 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Goodput benchmark of the transfer tools over ImpairmentProxy. For each tool, network profile and file
+ * size it starts the tool's server, runs a proxy in front of it and times one SEND through the proxy,
+ * then checks the received copy byte by byte:
+ *
+ *   java [options] TransferBenchmark
+ *
+ *   -Dbench.tools=tcp,simpletcp,udp,udpsr   tools to run
+ *   -Dbench.profiles=clean,lan,wan,lossy    network profiles, see PROFILES
+ *   -Dbench.sizes=1,16                      file sizes in MB
+ *   -Dbench.classes=.                       classpath of the tools
+ *   -Dbench.simple=simpleTCP:.              classpath of the simpleTCP tool, ahead of the shared metrics
+ *   -Dbench.port=9876                       server port, the proxy listens on the next one
+ *   -Dbench.timeout=300                     seconds before a transfer is given up
+ *
+ * The time runs from the first byte the proxy sees to the client's exit or the proxy's last delivery to
+ * the server, whichever is later: a TCP client can exit with the tail of the file still in its socket
+ * buffer and in the proxy. JVM startup is not in it, and neither is checking the copy, done afterwards.
+ * "Overhead" is how many more bytes than the file went from client to server: headers, acknowledgement
+ * traffic in that direction and above all retransmissions. "Retrans" is the share of the client's
+ * datagrams that were retransmissions, from the counters it prints at exit (-Dmetrics.summary). For
+ * the TCP tools both only count the stream, the kernel's own retransmissions happen below the proxy.
+ */
+public class TransferBenchmark {
+    private static final ImpairmentProxy.Profile[] PROFILES = {
+            new ImpairmentProxy.Profile("clean", 0, 0, 0, 0, 0, 0, 50),
+            new ImpairmentProxy.Profile("lan", 0.5, 0.1, 0, 0, 0, 1000, 5),
+            new ImpairmentProxy.Profile("wan", 20, 2, 0.1, 0.1, 0, 100, 50),
+            new ImpairmentProxy.Profile("lossy", 40, 10, 2, 1, 0.5, 20, 100),
+    };
+
+    private static final String CLASSES = System.getProperty("bench.classes", ".");
+    private static final String SIMPLE_CLASSES = System.getProperty("bench.simple", "simpleTCP" + File.pathSeparator + CLASSES);
+    private static final int PORT = Integer.getInteger("bench.port", 9876);
+    private static final long TIMEOUT = Long.getLong("bench.timeout", 300);
+
+    public static void main(String[] args) throws Exception {
+        List<String> tools = list("bench.tools", "tcp,simpletcp,udp,udpsr");
+        List<String> profiles = list("bench.profiles", "clean,lan,wan,lossy");
+        List<String> sizes = list("bench.sizes", "1,16");
+
+        Path work = Files.createTempDirectory("bench");
+        Path source = Files.createDirectories(work.resolve("source"));
+        Path target = Files.createDirectories(work.resolve("target"));
+        Random random = new Random(42);
+
+        System.out.printf("%-10s %-8s %8s %10s %12s %10s %8s  %s%n", "Tool", "Profile", "Size MB", "Time s", "Goodput Mb/s", "Overhead", "Retrans", "Result");
+        for (String size : sizes) {
+            long bytes = (long) (Double.parseDouble(size) * 1024 * 1024);
+            String name = "bench-" + size + "MB.bin";
+            Path file = source.resolve(name);
+            byte[] block = new byte[1024 * 1024];
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+                for (long written = 0; written < bytes; written += block.length) {
+                    random.nextBytes(block);
+                    out.write(block, 0, (int) Math.min(block.length, bytes - written));
+                }
+            }
+            for (String profileName : profiles) {
+                ImpairmentProxy.Profile profile = profile(profileName);
+                for (String tool : tools) {
+                    Files.deleteIfExists(target.resolve(name));
+                    Files.deleteIfExists(target.resolve(name + ".part"));
+                    run(tool, profile, file, target, bytes);
+                }
+            }
+            Files.delete(file);
+        }
+        deleteRecursively(work);
+    }
+
+    private static void run(String tool, ImpairmentProxy.Profile profile, Path file, Path target, long bytes) throws Exception {
+        String result;
+        double seconds = 0;
+        long wire = 0;
+        String retransmitted = "-";
+        Path clientLog = Files.createTempFile("bench-client", ".log");
+        Process server = start(server(tool, target), target.toFile(), null);
+        try (ImpairmentProxy proxy = new ImpairmentProxy(PORT + 1, new InetSocketAddress("127.0.0.1", PORT), profile)) {
+            Process client = start(client(tool, file.getFileName().toString()), file.getParent().toFile(), clientLog.toFile());
+            if (!client.waitFor(TIMEOUT, TimeUnit.SECONDS)) {
+                client.destroyForcibly();
+                result = "timeout";
+            } else if (client.exitValue() != 0) {
+                result = "exit " + client.exitValue();
+            } else {
+                long exited = System.nanoTime();
+                result = awaitCopy(file, target.resolve(file.getFileName()), bytes);
+                // Everything has reached the server by now, so the proxy's last delivery is final
+                seconds = (Math.max(exited, proxy.lastUp.get()) - proxy.firstPacket.get()) / 1e9;
+                wire = proxy.upBytes.get();
+                retransmitted = retransmissionRatio(clientLog, tool);
+            }
+        } finally {
+            server.destroy();
+            if (!server.waitFor(5, TimeUnit.SECONDS)) server.destroyForcibly();
+            Files.deleteIfExists(clientLog);
+        }
+        if (seconds > 0) {
+            System.out.printf("%-10s %-8s %8.1f %10.2f %12.1f %9.1f%% %8s  %s%n", tool, profile.name, bytes / 1048576.0, seconds,
+                    bytes * 8 / seconds / 1e6, bytes > 0 ? (wire - bytes) * 100.0 / bytes : 0, retransmitted, result);
+        } else {
+            System.out.printf("%-10s %-8s %8.1f %10s %12s %10s %8s  %s%n", tool, profile.name, bytes / 1048576.0, "-", "-", "-", "-", result);
+        }
+    }
+
+    /**
+     * Retransmissions over datagrams sent, from the "metrics ENGINE ..." line the client printed at exit;
+     * "-" for a TCP tool, which sends no datagrams of its own.
+     */
+    private static String retransmissionRatio(Path clientLog, String engine) throws IOException {
+        for (String line : Files.readAllLines(clientLog)) {
+            if (!line.startsWith("metrics " + engine + " ")) continue;
+            Map<String, Long> counters = new HashMap<>();
+            for (String field : line.split(" ")) {
+                int equals = field.indexOf('=');
+                if (equals > 0) counters.put(field.substring(0, equals), Long.parseLong(field.substring(equals + 1)));
+            }
+            long packets = counters.getOrDefault("packetsSent", 0L);
+            if (packets == 0) return "-";
+            return String.format("%.1f%%", counters.getOrDefault("retransmissions", 0L) * 100.0 / packets);
+        }
+        return "-";
+    }
+
+    /**
+     * Waits for the copy to be complete and then compares it with the file. A TCP client can exit with
+     * the tail of the file still in its socket buffer and in the proxy, so the transfer is only over once
+     * the server has all of it.
+     */
+    private static String awaitCopy(Path file, Path copy, long bytes) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT);
+        while (true) {
+            boolean complete = Files.exists(copy) && Files.size(copy) == bytes;
+            if (complete && Files.mismatch(file, copy) == -1) return "ok";
+            if (System.nanoTime() > deadline) return complete ? "CORRUPT" : Files.exists(copy) ? "short" : "missing";
+            Thread.sleep(5);
+        }
+    }
+
+    private static List<String> server(String tool, Path target) {
+        switch (tool) {
+            case "tcp":
+                return java(CLASSES, PORT, "TCPFileTransfer", "SERVER", target.toString());
+            case "simpletcp":
+                return java(SIMPLE_CLASSES, PORT, "TCPFileTransfer", "SERVER", target.toString());
+            case "udp":
+                return java(CLASSES, PORT, "UDPFileTransfer", "SERVER");
+            case "udpsr":
+                return java(CLASSES, PORT, "UDPFileTransferSR", "SERVER");
+            default:
+                throw new IllegalArgumentException("Unknown tool " + tool);
+        }
+    }
+
+    private static List<String> client(String tool, String name) {
+        switch (tool) {
+            case "tcp":
+                return java(CLASSES, PORT + 1, "TCPFileTransfer", "SEND", name, "127.0.0.1");
+            case "simpletcp":
+                return java(SIMPLE_CLASSES, PORT + 1, "TCPFileTransfer", "SEND", name, "127.0.0.1");
+            case "udp":
+                return java(CLASSES, PORT + 1, "UDPFileTransfer", "SEND", name, "127.0.0.1");
+            case "udpsr":
+                return java(CLASSES, PORT + 1, "UDPFileTransferSR", "SEND", name, "127.0.0.1");
+            default:
+                throw new IllegalArgumentException("Unknown tool " + tool);
+        }
+    }
+
+    private static List<String> java(String classpath, int port, String mainClass, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(Paths.get(classpath).toAbsolutePath().toString());
+        command.add("-Dport=" + port);
+        command.add("-Dmetrics.summary=true");
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+        return command;
+    }
+
+    /**
+     * Starts a tool. A client's output goes to log; a server (log null) is only returned once it has
+     * printed its startup line, so the client does not race its startup, and the rest is thrown away.
+     */
+    private static Process start(List<String> command, File directory, File log) throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(command).directory(directory).redirectErrorStream(true);
+        if (log != null) {
+            return builder.redirectOutput(log).start();
+        }
+        Process process = builder.start();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        if (reader.readLine() == null) throw new IOException("Server did not start: " + String.join(" ", command));
+        Thread drain = new Thread(() -> {
+            try {
+                while (reader.readLine() != null) {
+                    // Keep the pipe from filling up
+                }
+            } catch (IOException e) {
+                // Server gone
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+        return process;
+    }
+
+    private static ImpairmentProxy.Profile profile(String name) {
+        for (ImpairmentProxy.Profile profile : PROFILES) {
+            if (profile.name.equals(name)) return profile;
+        }
+        throw new IllegalArgumentException("Unknown profile " + name);
+    }
+
+    private static List<String> list(String key, String defaultValue) {
+        return Arrays.asList(System.getProperty(key, defaultValue).split(","));
+    }
+
+    private static void deleteRecursively(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(path)) {
+                for (Path entry : entries) deleteRecursively(entry);
+            }
+        }
+        Files.deleteIfExists(path);
+    }
+}
@@ -1,200 +1,399 @@
 import java.io.*;
-import java.nio.*;
 import java.net.*;
-
+import java.util.Arrays;
+import metrics.TransferMetrics;
+
+/**
+ * Stop-and-wait file transfer over UDP, as described in UDP-specs.md. Every data block is acknowledged
+ * before the next one is sent. The block size is agreed in the SEND/RECEIVE/FILE handshake and the end
+ * of the file is marked by an explicit EOF message.
+ */
 public class UDPFileTransfer {
 
-    private static final int PORT = 9876;
+    private static final int PORT = Integer.getInteger("port", 9876); // -Dport=N, server port to listen on or connect to
     private static final String DEFAULT_SERVER_IP = "127.0.0.1"; // Default to localhost
-
-    public static void main(String[] args) throws UnknownHostException {
-        if (args.length < 1 || !args[0].equals("SEND") && !args[0].equals("RECEIVE") && !args[0].equals("SERVER")) {
-            System.out.println("Usage: java UDPFileTransfer SEND|RECEIVE [filename] [server_ip] | SERVER");
+    private static final int MAX_DATAGRAM = 65507;
+    private static final int MIN_PAYLOAD = 512;                   // Every path carries this much
+    private static final int MAX_PAYLOAD = MAX_DATAGRAM - 4;
+    private static final int AUTO_PAYLOAD_LIMIT = 9000 - 28 - 4;  // Derived payloads stop at a 9000-byte jumbo MTU
+    private static final int PAYLOAD = Integer.getInteger("payload", 0); // -Dpayload=N, 0 = derive from the interface MTU
+    private static final int TIMEOUT = 1000;                      // ms to wait for an answer before sending again
+    private static final int RETRIES = 5;                         // Sends of one packet before giving up
+    private static final TransferMetrics METRICS = TransferMetrics.of("udp");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || !args[0].equals("SEND") && !args[0].equals("RECEIVE") && !args[0].equals("SERVER")
+                || !args[0].equals("SERVER") && args.length < 2) {
+            System.out.println("Usage: java UDPFileTransfer SEND|RECEIVE filename [server_ip] | SERVER");
             return;
         }
 
         String action = args[0];
+        InetAddress serverAddress = InetAddress.getByName(args.length >= 3 ? args[2] : DEFAULT_SERVER_IP);
 
         if (action.equals("SEND")) {
-            sendFile(args.length >= 3 ? InetAddress.getByName(args[2]) : InetAddress.getByName(DEFAULT_SERVER_IP), args[1]);
+            sendFile(serverAddress, args[1]);
         } else if (action.equals("RECEIVE")) {
-            receiveFile(args.length >= 2 ? args[1] : null, args.length == 3 ? InetAddress.getByName(args[2]) : InetAddress.getByName(DEFAULT_SERVER_IP));
+            receiveFile(args[1], serverAddress);
         } else if (action.equals("SERVER")) {
             runServer();
         }
     }
 
     private static void sendFile(InetAddress serverAddress, String filename) throws IOException {
-        DatagramSocket socket = new DatagramSocket();
-
-        byte[] sendData = ("SEND " + filename).getBytes();
-        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, PORT);
-        socket.send(sendPacket);
-
-        // Wait for response
-        byte[] receiveBuffer = new byte[512];
-        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-        socket.receive(packet);
+        File file = new File(filename);
+        if (!file.isFile()) {
+            System.err.println("File not found: " + filename);
+            return;
+        }
 
-        String receivedMessage = new String(packet.getData(), 0, packet.getLength());
-        System.out.println("Received: " + receivedMessage);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            String response = request(socket, serverAddress, "SEND " + file.getName() + " " + file.length() + " " + localPayload(serverAddress));
+            String[] fields = fileResponse(response);
+            if (fields == null) return;
 
-        if (receivedMessage.equals("FILE")) {
-            handleFileTransfer(socket, serverAddress, PORT, filename);
-        } else {
-            System.err.println("Server is busy");
+            transmitFile(socket, serverAddress, PORT, file, Integer.parseInt(fields[2]), null);
         }
     }
 
     private static void receiveFile(String filename, InetAddress serverAddress) throws IOException {
-        DatagramSocket socket = new DatagramSocket(PORT);
+        try (DatagramSocket socket = new DatagramSocket()) {
+            String response = request(socket, serverAddress, "RECEIVE " + filename + " " + localPayload(serverAddress));
+            String[] fields = fileResponse(response);
+            if (fields == null) return;
 
-        byte[] receiveBuffer = new byte[512];
-        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-
-        while (true) {
-            socket.receive(packet); // Wait for request
-            String receivedMessage = new String(packet.getData(), 0, packet.getLength());
-
-            if (!receivedMessage.equals("BUSY")) { // Server is not busy
-                // Send confirmation to start file transfer
-                InetAddress clientAddress = packet.getAddress();
-                int clientPort = packet.getPort();
+            handleFileTransfer(socket, serverAddress, PORT, new File(filename), Long.parseLong(fields[1]), Integer.parseInt(fields[2]), null);
+        }
+    }
 
-                String response = "FILE " + receivedMessage.substring(6);
-                byte[] sendData = response.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, clientAddress, clientPort);
-                socket.send(sendPacket);
+    /**
+     * Sends a request to the server and waits for its answer, repeating the request if either is lost.
+     * Data blocks that overtake the FILE answer are ignored; the server sends them again. Returns null
+     * if the server never answers.
+     */
+    private static String request(DatagramSocket socket, InetAddress serverAddress, String message) throws IOException {
+        byte[] sendData = message.getBytes();
+        DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, serverAddress, PORT);
+        byte[] receiveBuffer = new byte[MAX_DATAGRAM];
+        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
 
-                // Handle file transfer
-                handleFileTransfer(socket, clientAddress, clientPort, filename);
+        socket.setSoTimeout(TIMEOUT);
+        for (int retries = 0; retries < RETRIES; retries++) {
+            socket.send(sendPacket);
+            try {
+                while (true) {
+                    packet.setLength(receiveBuffer.length);
+                    socket.receive(packet);
+                    int length = packet.getLength();
+                    if (packet.getAddress().equals(serverAddress) && packet.getPort() == PORT && (isText(receiveBuffer, length) || isBusy(receiveBuffer, length))) {
+                        return new String(receiveBuffer, 0, length);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                System.out.println("Timeout: Resending request");
             }
         }
+        return null;
     }
 
-    private static void runServer() throws IOException {
-        DatagramSocket socket = new DatagramSocket(PORT);
+    /**
+     * Checks the answer to a request. Returns the FILE fields (name, size, payload) or null after
+     * reporting what went wrong.
+     */
+    private static String[] fileResponse(String response) {
+        if (response == null) {
+            System.err.println("No response from server");
+            return null;
+        }
+        if (response.equals("BUSY")) {
+            System.err.println("Server is busy");
+            return null;
+        }
+        String[] fields = splitFields(response.startsWith("FILE ") ? response.substring(5) : "", 2);
+        if (fields == null) {
+            System.err.println("Error from server: " + response);
+        }
+        return fields;
+    }
 
-        byte[] receiveBuffer = new byte[512];
-        DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
+    private static void runServer() throws IOException {
+        try (DatagramSocket socket = new DatagramSocket(PORT)) {
+            System.out.println("Server started on port " + PORT + ".");
+            TransferMetrics.export();
 
-        while (true) {
-            socket.receive(packet); // Wait for request
-            String receivedMessage = new String(packet.getData(), 0, packet.getLength());
+            byte[] receiveBuffer = new byte[MAX_DATAGRAM];
+            DatagramPacket packet = new DatagramPacket(receiveBuffer, receiveBuffer.length);
 
-            if (!receivedMessage.equals("BUSY")) { // Server is not busy
-                // Send confirmation to start file transfer
+            while (true) {
+                socket.setSoTimeout(0);
+                packet.setLength(receiveBuffer.length);
+                socket.receive(packet); // Wait for request
+                String receivedMessage = new String(packet.getData(), 0, packet.getLength());
                 InetAddress clientAddress = packet.getAddress();
                 int clientPort = packet.getPort();
 
-                String response = "FILE " + receivedMessage.substring(6);
-                byte[] sendData = response.getBytes();
-                DatagramPacket sendPacket = new DatagramPacket(sendData, sendData.length, clientAddress, clientPort);
-                socket.send(sendPacket);
-
-                // Handle file transfer
-                handleFileTransfer(socket, clientAddress, clientPort);
+                try {
+                    if (receivedMessage.startsWith("SEND ")) {
+                        String[] fields = splitFields(receivedMessage.substring(5), 2);
+                        if (fields == null) {
+                            reply(socket, clientAddress, clientPort, "ERROR Invalid SEND request");
+                            continue;
+                        }
+                        File file = new File(new File(fields[0]).getName());
+                        long size = Long.parseLong(fields[1]);
+                        int payload = negotiate(fields[2], clientAddress);
+                        byte[] response = ("FILE " + file.getName() + " " + size + " " + payload).getBytes();
+                        socket.send(new DatagramPacket(response, response.length, clientAddress, clientPort));
+                        METRICS.activeSessions.increment();
+                        try {
+                            handleFileTransfer(socket, clientAddress, clientPort, file, size, payload, response);
+                        } finally {
+                            METRICS.activeSessions.decrement();
+                        }
+                    } else if (receivedMessage.startsWith("RECEIVE ")) {
+                        String[] fields = splitFields(receivedMessage.substring(8), 1);
+                        if (fields == null) {
+                            reply(socket, clientAddress, clientPort, "ERROR Invalid RECEIVE request");
+                            continue;
+                        }
+                        File file = new File(new File(fields[0]).getName());
+                        if (!file.isFile()) {
+                            reply(socket, clientAddress, clientPort, "ERROR File not found");
+                            continue;
+                        }
+                        int payload = negotiate(fields[1], clientAddress);
+                        byte[] response = ("FILE " + file.getName() + " " + file.length() + " " + payload).getBytes();
+                        socket.send(new DatagramPacket(response, response.length, clientAddress, clientPort));
+                        METRICS.activeSessions.increment();
+                        try {
+                            transmitFile(socket, clientAddress, clientPort, file, payload, response);
+                        } finally {
+                            METRICS.activeSessions.decrement();
+                        }
+                    }
+                    // Anything else is a leftover of a finished transfer
+                } catch (IOException e) {
+                    System.err.println("Transfer failed: " + e.getMessage());
+                }
             }
         }
     }
 
-    private static void handleFileTransfer(DatagramSocket socket, InetAddress address, int port, String filename) throws IOException {
-        File file = new File(filename);
-        if (!file.getParentFile().exists()) {
-            file.getParentFile().mkdirs();
-        }
-
-        FileOutputStream fos = null;
-        byte[] buffer = new byte[512];
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-
-        try {
-            fos = new FileOutputStream(file);
+    /**
+     * Sends the file block by block, waiting for the ACK of each before sending the next, then sends EOF
+     * until the receiver echoes it. A data packet is [seq (4 bytes)][data], an ACK is [seq (4 bytes)].
+     * On the server, response is the FILE answer, sent again when the client repeats its request.
+     */
+    private static void transmitFile(DatagramSocket socket, InetAddress address, int port, File file, int payload, byte[] response) throws IOException {
+        byte[] buffer = new byte[4 + payload];
+        byte[] ackBuffer = new byte[MAX_DATAGRAM];
+        DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+        byte[] eof = "EOF".getBytes();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long remaining = file.length();
             int blockNumber = 0;
+            socket.setSoTimeout(TIMEOUT);
 
             while (true) {
-                socket.receive(packet); // Wait for data
-                String receivedMessage = new String(packet.getData(), 0, packet.getLength());
-
-                if (!receivedMessage.startsWith(String.valueOf(blockNumber))) { // Check sequence number
-                    continue;
+                // Next data block, or EOF once the whole file has been acknowledged
+                DatagramPacket packet;
+                if (remaining > 0) {
+                    int readBytes = (int) Math.min(payload, remaining);
+                    buffer[0] = (byte) (blockNumber >>> 24);
+                    buffer[1] = (byte) (blockNumber >>> 16);
+                    buffer[2] = (byte) (blockNumber >>> 8);
+                    buffer[3] = (byte) blockNumber;
+                    in.readFully(buffer, 4, readBytes);
+                    packet = new DatagramPacket(buffer, 4 + readBytes, address, port);
+                } else {
+                    packet = new DatagramPacket(eof, eof.length, address, port);
                 }
 
-                buffer = new byte[512];
-                int readBytes = Integer.parseInt(receivedMessage.substring(4)); // Extract block data length
-
-                int retries = 5;
-                while (retries-- > 0) {
-                    fos.write(buffer, 4, readBytes);
-                    String ackMessage = String.valueOf(blockNumber);
-                    byte[] sendData = ackMessage.getBytes();
-
-                    DatagramPacket sendAck = new DatagramPacket(sendData, sendData.length, address, port);
-                    socket.send(sendAck);
-
+                boolean acknowledged = false;
+                for (int retries = 0; retries < RETRIES && !acknowledged; retries++) {
+                    socket.send(packet);
+                    long sentAt = System.nanoTime();
+                    METRICS.packetsSent.increment();
+                    if (retries > 0) METRICS.retransmissions.increment();
                     try {
-                        socket.receive(packet); // Wait for next block or confirmation
-                        receivedMessage = new String(packet.getData(), 0, packet.getLength());
-                        if (receivedMessage.equals("EOF")) { // End of file
-                            break;
+                        while (!acknowledged) {
+                            ackPacket.setLength(ackBuffer.length);
+                            socket.receive(ackPacket);
+                            METRICS.packetsReceived.increment();
+                            if (!ackPacket.getAddress().equals(address) || ackPacket.getPort() != port) {
+                                reply(socket, ackPacket.getAddress(), ackPacket.getPort(), "BUSY");
+                            } else if (remaining > 0 && ackPacket.getLength() == 4) {
+                                acknowledged = readInt(ackBuffer) == blockNumber;
+                                if (!acknowledged) {
+                                    METRICS.duplicateAcks.increment();
+                                } else if (retries == 0) {
+                                    METRICS.rtt.since(sentAt); // Only a block sent once tells which copy was answered
+                                }
+                            } else if (remaining == 0 && ackPacket.getLength() == eof.length) {
+                                acknowledged = Arrays.equals(ackBuffer, 0, eof.length, eof, 0, eof.length);
+                            } else if (response != null && isText(ackBuffer, ackPacket.getLength())) {
+                                socket.send(new DatagramPacket(response, response.length, address, port)); // FILE was lost
+                            }
                         }
-                        blockNumber++;
-                    } catch (IOException e) {
+                    } catch (SocketTimeoutException e) {
                         System.out.println("Timeout: Resending data");
                     }
                 }
 
-                if (retries < 0) { // Failed to receive and send ACK after 5 retries
-                    System.err.println("Transfer failed for file " + filename);
+                if (!acknowledged) { // No ACK after all retries
+                    System.err.println("Transfer failed for file " + file + ": no ACK for block " + blockNumber);
+                    return;
+                }
+                if (remaining == 0) {
                     break;
                 }
 
+                remaining -= packet.getLength() - 4;
+                METRICS.bytesSent.add(packet.getLength() - 4);
                 blockNumber++;
             }
-        } finally {
-            if (fos != null) fos.close();
         }
+
+        System.out.println("File sent: " + file);
     }
 
-    private static void handleFileTransfer(DatagramSocket socket, InetAddress address, int port) throws IOException {
-        byte[] buffer = new byte[512];
+    /**
+     * Receives a file of size bytes sent by transmitFile, acknowledging every data block. A block with
+     * an unexpected number is a retransmission of one already written and is only acknowledged again.
+     * The transfer ends with EOF, which is echoed back and answered again for a short while in case the
+     * echo is lost. On the server, response is the FILE answer, sent again when the client repeats its
+     * request.
+     */
+    private static void handleFileTransfer(DatagramSocket socket, InetAddress address, int port, File file, long size, int payload, byte[] response) throws IOException {
+        byte[] buffer = new byte[MAX_DATAGRAM];
         DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        byte[] ack = new byte[4];
+        byte[] eof = "EOF".getBytes();
+        boolean complete = false;
 
-        while (true) {
-            socket.receive(packet); // Wait for data
-            String receivedMessage = new String(packet.getData(), 0, packet.getLength());
-
-            if (!receivedMessage.startsWith(String.valueOf(blockNumber))) { // Check sequence number
-                continue;
-            }
-
-            int readBytes = Integer.parseInt(receivedMessage.substring(4)); // Extract block data length
-
-            int retries = 5;
-            while (retries-- > 0) {
-                byte[] data = new byte[readBytes];
-                System.arraycopy(packet.getData(), 4, data, 0, readBytes);
-                DatagramPacket sendAck = new DatagramPacket(String.valueOf(blockNumber).getBytes(), String.valueOf(blockNumber).length(), address, port);
-                socket.send(sendAck);
+        try (OutputStream fos = new BufferedOutputStream(new FileOutputStream(file))) {
+            long received = 0;
+            int blockNumber = 0;
+            socket.setSoTimeout(TIMEOUT * RETRIES);
 
+            while (true) {
+                packet.setLength(buffer.length);
                 try {
-                    socket.receive(packet); // Wait for next block or confirmation
-                    receivedMessage = new String(packet.getData(), 0, packet.getLength());
-                    if (receivedMessage.equals("EOF")) { // End of file
-                        break;
+                    socket.receive(packet); // Wait for data
+                } catch (SocketTimeoutException e) {
+                    break; // Sender gone, or done repeating EOF
+                }
+                METRICS.packetsReceived.increment();
+                if (!packet.getAddress().equals(address) || packet.getPort() != port) {
+                    if (!complete) {
+                        reply(socket, packet.getAddress(), packet.getPort(), "BUSY");
                     }
-                    blockNumber++;
-                } catch (IOException e) {
-                    System.out.println("Timeout: Resending data");
+                    continue; // While lingering the request is left to be repeated once we are done
                 }
-            }
 
-            if (retries < 0) { // Failed to receive and send ACK after 5 retries
-                System.err.println("Transfer failed for file " + filename);
-                break;
+                int length = packet.getLength();
+                if (length == eof.length && Arrays.equals(buffer, 0, eof.length, eof, 0, eof.length)) {
+                    if (received != size) {
+                        continue; // EOF cannot come before the last block was acknowledged
+                    }
+                    socket.send(new DatagramPacket(eof, eof.length, address, port));
+                    if (!complete) {
+                        fos.flush();
+                        complete = true;
+                        socket.setSoTimeout(TIMEOUT); // Linger to answer a repeated EOF
+                    }
+                } else if (response != null && isText(buffer, length)) {
+                    socket.send(new DatagramPacket(response, response.length, address, port)); // FILE was lost
+                } else if (length > 4) {
+                    int sequence = readInt(buffer);
+                    if (sequence == blockNumber && length - 4 == Math.min(payload, size - received)) {
+                        long writeStart = System.nanoTime();
+                        fos.write(buffer, 4, length - 4);
+                        METRICS.diskWrite.since(writeStart);
+                        METRICS.bytesReceived.add(length - 4);
+                        received += length - 4;
+                        blockNumber++;
+                    }
+                    if (sequence < blockNumber) {
+                        System.arraycopy(buffer, 0, ack, 0, 4);
+                        socket.send(new DatagramPacket(ack, ack.length, address, port));
+                        METRICS.packetsSent.increment();
+                    }
+                }
             }
+        }
+
+        if (complete) {
+            System.out.println("File received: " + file);
+        } else {
+            System.err.println("Transfer failed for file " + file);
+        }
+    }
+
+    /**
+     * Payload the server accepts: the smaller of the client's offer and its own.
+     */
+    private static int negotiate(String offer, InetAddress clientAddress) {
+        return (int) Math.max(1, Math.min(Long.parseLong(offer), localPayload(clientAddress)));
+    }
 
-            blockNumber++;
+    /**
+     * Payload to offer a peer: -Dpayload if set, otherwise what fits unfragmented in the MTU of the
+     * interface the peer is reached through, up to a jumbo frame.
+     */
+    private static int localPayload(InetAddress peer) {
+        if (PAYLOAD > 0) return Math.min(PAYLOAD, MAX_PAYLOAD);
+        try (DatagramSocket route = new DatagramSocket()) {
+            route.connect(peer, PORT); // Only selects the route, nothing is sent
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(route.getLocalAddress());
+            if (networkInterface == null || networkInterface.getMTU() <= 0) return MIN_PAYLOAD;
+            int ipHeaders = peer instanceof Inet6Address ? 48 : 28;
+            return Math.max(MIN_PAYLOAD, Math.min(AUTO_PAYLOAD_LIMIT, networkInterface.getMTU() - ipHeaders - 4));
+        } catch (IOException e) {
+            return MIN_PAYLOAD;
         }
     }
+
+    /**
+     * Splits "name n1 ... nCount" into its fields. The name may contain spaces; the trailing fields must
+     * be numbers. Returns null if they are not.
+     */
+    private static String[] splitFields(String text, int count) {
+        String[] fields = new String[count + 1];
+        int end = text.length();
+        for (int i = count; i > 0; i--) {
+            int space = text.lastIndexOf(' ', end - 1);
+            if (space <= 0) return null;
+            fields[i] = text.substring(space + 1, end);
+            if (!fields[i].matches("\\d{1,18}")) return null;
+            end = space;
+        }
+        fields[0] = text.substring(0, end);
+        return fields;
+    }
+
+    /**
+     * Requests and answers are text starting with a capital letter. A data block starts with the high
+     * byte of its number instead, which stays below that for any file of less than half a terabyte.
+     */
+    private static boolean isText(byte[] data, int length) {
+        return length > 4 && data[0] >= 'A' && data[0] <= 'Z';
+    }
+
+    /**
+     * BUSY is no longer than a bare block number, which isText rejects, so the client matches it by itself.
+     */
+    private static boolean isBusy(byte[] data, int length) {
+        return length == 4 && data[0] == 'B' && data[1] == 'U' && data[2] == 'S' && data[3] == 'Y';
+    }
+
+    private static void reply(DatagramSocket socket, InetAddress address, int port, String message) throws IOException {
+        byte[] sendData = message.getBytes();
+        socket.send(new DatagramPacket(sendData, sendData.length, address, port));
+    }
+
+    private static int readInt(byte[] data) {
+        return ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+    }
 }
@@ -1,6 +1,19 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntSupplier;
+import metrics.TransferMetrics;
 
 /**
  * Programa unificado para transferencia de archivos mediante UDP
@@ -15,10 +28,58 @@ import java.util.*;
  */
 public class UDPFileTransferSR {
     // Constantes globales del programa
-    private static final int SERVER_PORT = 9876;      // Puerto por defecto del servidor
-    private static final int BUFFER_SIZE = 516;       // 4 bytes para número de secuencia + 512 bytes para datos
-    private static boolean isBusy = false;            // Bandera para controlar si el servidor está ocupado
-    private static final int WINDOW_SIZE = 4;
+    private static final int SERVER_PORT = Integer.getInteger("port", 9876); // Puerto del servidor, -Dport=N para cambiarlo
+    private static final int MAX_DATAGRAM = 65507;    // Mayor datagrama UDP sobre IPv4, también para solicitudes y sondas
+    private static final int MAX_SESSIONS = Integer.getInteger("sessions", 32); // -Dsessions=N, transferencias simultáneas del servidor
+    private static final int SESSION_QUEUE = 1024;    // Datagramas en espera por sesión antes de descartar
+    private static final int SEND_QUANTUM = 64;       // Paquetes nuevos que una sesión envía por turno
+    private static final long SEND_BACKOFF = 20_000L; // ns de espera cuando el búfer de envío del socket está lleno
+    private static final int HEADER_SIZE = 5;                 // Packet type + sequence number
+    private static final byte DATA = 1;                       // [DATA][seq][payload]
+    private static final byte EOF = 2;                        // [EOF][seq], seq = number of data blocks
+    private static final byte ACK = 3;                        // [ACK][seq][next in-order seq][window][recovered][SACK bitmap]
+    private static final byte PARITY = 4;                     // [PARITY][first seq + K / 2][XOR of the K blocks of the group]
+    private static final int MIN_PAYLOAD = 512;               // Every path carries this much
+    private static final int MAX_PAYLOAD = MAX_DATAGRAM - HEADER_SIZE;
+    private static final int AUTO_PAYLOAD_LIMIT = 9000 - 28 - HEADER_SIZE; // Derived payloads stop at a 9000-byte jumbo MTU
+    private static final int PAYLOAD = Integer.getInteger("payload", 0);  // -Dpayload=N, 0 = derive from the interface MTU
+    private static final boolean PROBE = Boolean.getBoolean("probe");     // -Dprobe=true searches the path MTU before a transfer
+    private static final int PROBE_TIMEOUT = 300;             // ms to wait for the echo of a probe
+    private static final int PROBE_PRECISION = 16;            // The search stops within this many bytes of the limit
+    private static final int HANDSHAKE_TIMEOUT = 500;         // ms before the request is repeated, doubled on every attempt
+    private static final int HANDSHAKE_ATTEMPTS = 5;
+    private static final int INITIAL_WINDOW = 10;             // Packets sent before the first ACK, as TCP's initial window
+    private static final int MIN_WINDOW = 2;                  // Congestion window floor after repeated losses
+    private static final int MAX_WINDOW = 65536;              // Sender ring size, 32 MB of blocks in flight
+    private static final int RECEIVE_WINDOW = 65536;          // Blocks the receiver accepts past its next in-order seq, a bit each
+    private static final int ACK_HEADER = 17;                 // Type, newest seq, next in-order seq, advertised window, blocks rebuilt from parity
+    private static final int MAX_SACK_BYTES = 256;            // Bitmap of the 2048 blocks after the next in-order seq
+    private static final int ACK_EVERY = 16;                  // In-order packets covered by one delayed ACK
+    private static final long ACK_DELAY = 1_000_000L;         // Longest an in-order packet waits for its ACK, 1 ms
+    private static final int DUP_THRESHOLD = 3;               // Later packets acknowledged before a missing one counts as lost
+    private static final int FEC_GROUP = Integer.getInteger("fec", 0); // -Dfec=K, blocks per parity packet to start with, 0 = no FEC
+    private static final int FEC_MIN_GROUP = 4;               // Parity groups are powers of two in this range, 25%
+    private static final int FEC_MAX_GROUP = 64;              // to 1.6% of extra packets
+    private static final double FEC_TARGET = 0.2;             // Losses per group the group size aims at, rarely two in one group
+    private static final int FEC_HISTORY = 4096;              // Blocks of loss history the group size follows
+    private static final int SOCKET_BUFFER = 4 * 1024 * 1024; // Kernel buffers sized for a large window; the OS may cap them
+    private static final long RATE_CAP = Long.getLong("rate", 0) * 1_000_000 / 8; // -Drate=N caps sending at N Mbit/s, 0 = no cap
+    private static final double PACING_GAIN_SLOW_START = 2.0; // Pacing runs ahead of cwnd / srtt, enough for slow start to double
+    private static final double PACING_GAIN = 1.2;            // and a little for congestion avoidance, as Linux paces TCP
+    private static final long PACING_BURST = 500_000L;        // Token bucket depth, 0.5 ms at the pacing rate
+    private static final double CUBIC_C = 0.4;                // CUBIC growth constant, packets per second cubed
+    private static final double CUBIC_BETA = 0.7;             // Window kept after a loss
+    private static final long HYSTART_MIN_ETA = 4_000_000L;   // RTT increase that ends slow start, between 4 ms
+    private static final long HYSTART_MAX_ETA = 16_000_000L;  // and 16 ms depending on the path's RTT
+    private static final long MAP_REGION_SIZE = 256L * 1024 * 1024; // Sender maps the file in regions of this size
+    private static final long INITIAL_RTO = 1_000_000_000L;   // RFC 6298 initial retransmission timeout, 1 s
+    private static final long MIN_RTO = 5_000_000L;           // 5 ms floor, loopback RTTs are far below a timer tick
+    private static final long MAX_RTO = 60_000_000_000L;      // Backoff cap, 60 s
+    private static final long TIMER_TICK = 1_000_000L;        // Timer wheel resolution, 1 ms
+    private static final int TIMER_BUCKETS = 4096;            // Wheel span of about 4 s; later deadlines wait extra turns
+    private static final long ABORT_TIMEOUT = 30_000_000_000L; // Give up after 30 s without an ACK
+    private static final int DALLY_TIME = 1000;               // ms the receiver keeps answering retransmissions after the last block
+    private static final TransferMetrics METRICS = TransferMetrics.of("udpsr");
     /**
      * Punto de entrada principal del programa
      * Analiza los argumentos de la línea de comandos y determina el modo de operación
@@ -27,6 +88,10 @@ public class UDPFileTransferSR {
      * 1. Servidor: java UDPFileTransfer SERVER
      * 2. Cliente (enviar): java UDPFileTransfer SEND archivo [servidor]
      * 3. Cliente (recibir): java UDPFileTransfer RECEIVE archivo [servidor]
+     *
+     * Opciones: -Dpayload=N fija los bytes de datos por paquete, -Dprobe=true busca el mayor
+     * datagrama que llega al servidor sin fragmentarse antes de la transferencia, -Dfec=K añade un
+     * paquete de paridad cada K bloques enviados, -Drate=N limita el envío a N Mbit/s.
      */
     public static void main(String[] args) {
         // Verificar que se proporcionaron argumentos
@@ -90,40 +155,62 @@ public class UDPFileTransferSR {
      * @param serverName - dirección del servidor
      */
     private static void runClient(String action, String fileName, String serverName) {
-        // try-with-resources asegura que el socket se cierre automáticamente
-        try (DatagramSocket clientSocket = new DatagramSocket()) {
-            // Resolver la dirección del servidor
+        // try-with-resources asegura que el canal se cierre automáticamente
+        try (DatagramChannel channel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            channel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            channel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            // Resolver la dirección del servidor; el canal conectado solo recibe sus datagramas
             InetAddress serverAddress = InetAddress.getByName(serverName);
-            
-            // Preparar y enviar la solicitud inicial
-            String request = action + " " + fileName;
-            sendMessage(request, clientSocket, serverAddress, SERVER_PORT);
-
-            // Esperar la respuesta del servidor
-            byte[] responseBuffer = new byte[BUFFER_SIZE];
-            DatagramPacket responsePacket = new DatagramPacket(responseBuffer, responseBuffer.length);
-            clientSocket.receive(responsePacket);
-
-            // Procesar la respuesta del servidor
-            String response = new String(responsePacket.getData(), 0, responsePacket.getLength());
-            
+            channel.connect(new InetSocketAddress(serverAddress, SERVER_PORT));
+            SocketLink link = new SocketLink(channel, selector);
+
+            // Tamaño de datos por paquete que proponemos al servidor
+            int payload = localPayload(serverAddress);
+            if (PROBE) {
+                payload = probePayload(channel, link, payload);
+                System.out.println("Path carries " + payload + " bytes of data per packet.");
+            }
+
+            // Preparar la solicitud inicial: SEND archivo tamaño datos | RECEIVE archivo datos
+            String request;
+            if (action.equals("SEND")) {
+                File file = new File(fileName);
+                if (!file.isFile()) {
+                    System.out.println("Archivo no encontrado: " + fileName);
+                    return;
+                }
+                request = "SEND " + fileName + " " + file.length() + " " + payload;
+            } else {
+                request = "RECEIVE " + fileName + " " + payload;
+            }
+
+            // Enviar la solicitud y esperar la respuesta, repitiéndola si se pierde
+            String response = handshake(request, link);
+            if (response == null) {
+                System.out.println("El servidor no responde.");
+                return;
+            }
+
             // Verificar si el servidor está ocupado
             if (response.equals("BUSY")) {
                 System.out.println("El servidor está ocupado. Por favor intente más tarde.");
                 return;
             }
 
-            // Verificar que la respuesta sea válida
-            if (!response.startsWith("FILE ")) {
+            // Verificar que la respuesta sea válida: FILE archivo tamaño datos
+            String[] fields = splitTail(response, 2);
+            if (!response.startsWith("FILE ") || fields == null) {
                 System.out.println("Error del servidor: " + response);
                 return;
             }
+            long fileSize = Long.parseLong(fields[1]);
+            payload = Integer.parseInt(fields[2]);
 
             // Ejecutar la operación solicitada
             if (action.equals("SEND")) {
-                sendFile(fileName, clientSocket, serverAddress, SERVER_PORT);
+                sendFile(fileName, link, payload, null);
             } else {
-                receiveFile(fileName, clientSocket, serverAddress, SERVER_PORT);
+                receiveFile(fileName, link, fileSize, payload, null);
             }
 
         } catch (Exception e) {
@@ -136,62 +223,386 @@ public class UDPFileTransferSR {
      * Escucha continuamente por nuevas solicitudes y las procesa
      */
     private static void runServer() {
-        // try-with-resources para el socket del servidor
-        try (DatagramSocket serverSocket = new DatagramSocket(SERVER_PORT)) {
-            System.out.println("Servidor iniciado en el puerto " + SERVER_PORT + "...");
+        // try-with-resources para el canal del servidor
+        try (DatagramChannel serverChannel = DatagramChannel.open(); Selector selector = Selector.open()) {
+            serverChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            serverChannel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+            serverChannel.bind(new InetSocketAddress(SERVER_PORT));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_READ);
+            System.out.println("Servidor iniciado en el puerto " + SERVER_PORT + " (hasta " + MAX_SESSIONS + " sesiones)...");
+            TransferMetrics.export();
+            Map<SocketAddress, Session> sessions = new ConcurrentHashMap<>();
+            ExecutorService workers = Executors.newFixedThreadPool(MAX_SESSIONS, r -> new Thread(r, "session"));
+            ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
 
             while (true) {
-                // Preparar buffer para recibir solicitudes
-                byte[] receiveBuffer = new byte[BUFFER_SIZE];
-                DatagramPacket requestPacket = new DatagramPacket(receiveBuffer, receiveBuffer.length);
-                serverSocket.receive(requestPacket);
-
-                // Extraer información de la solicitud
-                String request = new String(requestPacket.getData(), 0, requestPacket.getLength());
-                InetAddress clientAddress = requestPacket.getAddress();
-                int clientPort = requestPacket.getPort();
-
-                // Verificar si el servidor está ocupado
-                if (isBusy) {
-                    sendMessage("BUSY", serverSocket, clientAddress, clientPort);
-                    continue;
+                // Esperar a que lleguen datagramas y vaciar de una vez todos los que haya en el socket
+                selector.select();
+                selector.selectedKeys().clear();
+                while (true) {
+                    SocketAddress client = serverChannel.receive(receiveBuffer.clear());
+                    if (client == null) break; // Socket drained
+                    receiveBuffer.flip();
+                    METRICS.packetsReceived.increment();
+
+                    // Entregar el datagrama a la sesión de su cliente, si la tiene
+                    Session session = sessions.get(client);
+                    if (session != null) {
+                        session.deliver(receiveBuffer);
+                        continue;
+                    }
+
+                    // Extraer información de la solicitud
+                    if (!isControl(receiveBuffer)) {
+                        continue; // Restos de una transferencia ya terminada
+                    }
+                    String request = text(receiveBuffer);
+
+                    // Responder a las sondas de MTU con el tamaño que llegó
+                    if (request.startsWith("PROBE ")) {
+                        sendMessage("PROBED " + receiveBuffer.remaining(), serverChannel, client);
+                        continue;
+                    }
+
+                    // Verificar si el servidor está ocupado
+                    if (sessions.size() >= MAX_SESSIONS) {
+                        sendMessage("BUSY", serverChannel, client);
+                        continue;
+                    }
+
+                    // Parsear la solicitud
+                    String[] parts = request.split(" ", 2);
+                    String action = parts[0];
+                    String[] fields = parts.length == 2 ? splitTail(parts[1], action.equals("SEND") ? 2 : 1) : null;
+                    if (fields == null || !(action.equals("SEND") || action.equals("RECEIVE"))) {
+                        sendMessage("ERROR Invalid request", serverChannel, client);
+                        continue;
+                    }
+                    String fileName = fields[0];
+                    int payload = (int) Math.min(Long.parseLong(fields[fields.length - 1]), localPayload(((InetSocketAddress) client).getAddress()));
+                    if (payload < 1) {
+                        sendMessage("ERROR Invalid request", serverChannel, client);
+                        continue;
+                    }
+
+                    // Abrir una sesión para el cliente y procesar la solicitud en un hilo de trabajo
+                    long fileSize;
+                    if (action.equals("SEND")) {
+                        fileSize = Long.parseLong(fields[1]);
+                    } else {
+                        File file = new File(fileName);
+                        if (!file.isFile()) {
+                            sendMessage("ERROR File not found", serverChannel, client);
+                            continue;
+                        }
+                        fileSize = file.length();
+                    }
+                    byte[] reply = ("FILE " + fileName + " " + fileSize + " " + payload).getBytes();
+                    Session newSession = new Session(serverChannel, client, HEADER_SIZE + payload);
+                    sessions.put(client, newSession);
+                    newSession.send(ByteBuffer.wrap(reply));
+                    METRICS.activeSessions.increment();
+                    workers.execute(() -> {
+                        try {
+                            if (action.equals("SEND")) {
+                                receiveFile(fileName, newSession, fileSize, payload, reply);
+                            } else {
+                                sendFile(fileName, newSession, payload, reply);
+                            }
+                        } finally {
+                            sessions.remove(client, newSession);
+                            METRICS.activeSessions.decrement();
+                        }
+                    });
                 }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-                // Parsear la solicitud
-                String[] parts = request.split(" ", 2);
-                if (parts.length != 2) {
-                    sendMessage("ERROR Invalid request", serverSocket, clientAddress, clientPort);
-                    continue;
+    /**
+     * Where a transfer gets its datagrams from and sends them to: the client's own channel, or one
+     * session on the server's shared channel. Either way only datagrams of the transfer's peer come in.
+     */
+    private interface Link {
+        /**
+         * Receives the next datagram from the peer into dst, which is cleared first and flipped after,
+         * waiting up to timeout ms, forever if 0, not at all if negative. Throws SocketTimeoutException
+         * when none came.
+         */
+        void receive(ByteBuffer dst, int timeout) throws IOException;
+
+        /**
+         * Sends the remaining bytes of src to the peer as one datagram.
+         */
+        void send(ByteBuffer src) throws IOException;
+
+        /**
+         * Bursts of new packets are sent between beginTurn and endTurn, at most quantum() per turn.
+         */
+        default void beginTurn() {
+        }
+
+        default void endTurn() {
+        }
+
+        default int quantum() {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    /**
+     * The client owns its channel, connected to the server, and reads it directly: without blocking
+     * while datagrams are queued, through the selector when it has to wait.
+     */
+    private static final class SocketLink implements Link {
+        private final DatagramChannel channel;
+        private final Selector selector;
+        private final SocketAddress peer;
+
+        SocketLink(DatagramChannel channel, Selector selector) throws IOException {
+            this.channel = channel;
+            this.selector = selector;
+            this.peer = channel.getRemoteAddress();
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ);
+        }
+
+        @Override
+        public void receive(ByteBuffer dst, int timeout) throws IOException {
+            long deadline = System.nanoTime() + timeout * 1_000_000L;
+            while (channel.receive(dst.clear()) == null) {
+                long remaining = deadline - System.nanoTime();
+                if (timeout < 0 || (timeout > 0 && remaining <= 0)) {
+                    throw new SocketTimeoutException();
                 }
+                selector.select(timeout == 0 ? 0 : Math.max(1, (remaining + 999_999) / 1_000_000));
+                selector.selectedKeys().clear();
+            }
+            dst.flip();
+            METRICS.packetsReceived.increment();
+        }
 
-                String action = parts[0];
-                String fileName = parts[1];
+        @Override
+        public void send(ByteBuffer src) throws IOException {
+            sendDatagram(channel, src, peer);
+        }
+    }
 
-                // Manejar solicitud de aborto
-                if (action.equals("ABORT")) {
-                    isBusy = false;
-                    continue;
+    /**
+     * One transfer on the server. The dispatcher in runServer copies each datagram from the client into
+     * a direct buffer from the session's pool and queues it; the worker running the transfer takes it
+     * from the queue. When the worker falls behind and the pool is exhausted, datagrams are dropped as a
+     * full socket buffer would drop them, and the transfer's loss recovery takes care of them.
+     *
+     * Sessions send straight to the shared channel, taking turns through a fair lock: a sender waiting
+     * for its turn gets it before the current one can start another burst of SEND_QUANTUM packets.
+     */
+    private static final class Session implements Link {
+        private static final ReentrantLock SEND_TURN = new ReentrantLock(true);
+        private final DatagramChannel channel;
+        private final SocketAddress peer;
+        private final int bufferSize;
+        private final ArrayBlockingQueue<ByteBuffer> queue = new ArrayBlockingQueue<>(SESSION_QUEUE);
+        private final ArrayBlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(SESSION_QUEUE);
+        private int allocated;  // Buffers created so far, only touched by the dispatcher
+
+        Session(DatagramChannel channel, SocketAddress peer, int bufferSize) {
+            this.channel = channel;
+            this.peer = peer;
+            this.bufferSize = bufferSize;
+        }
+
+        /**
+         * Called by the dispatcher with a datagram from this session's client.
+         */
+        void deliver(ByteBuffer received) {
+            ByteBuffer copy = free.poll();
+            if (copy == null) {
+                if (allocated == SESSION_QUEUE) return; // Worker behind, drop
+                copy = ByteBuffer.allocateDirect(bufferSize);
+                allocated++;
+            }
+            int length = Math.min(received.remaining(), bufferSize);
+            copy.clear().put(0, received, received.position(), length).limit(length);
+            queue.offer(copy);
+        }
+
+        @Override
+        public void receive(ByteBuffer dst, int timeout) throws IOException {
+            ByteBuffer queued;
+            try {
+                queued = timeout < 0 ? queue.poll() : timeout == 0 ? queue.take() : queue.poll(timeout, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (queued == null) {
+                throw new SocketTimeoutException();
+            }
+            int length = Math.min(queued.limit(), dst.capacity());
+            dst.clear().put(0, queued, 0, length).limit(length);
+            free.offer(queued);
+        }
+
+        @Override
+        public void send(ByteBuffer src) throws IOException {
+            sendDatagram(channel, src, peer);
+        }
+
+        @Override
+        public void beginTurn() {
+            SEND_TURN.lock();
+        }
+
+        @Override
+        public void endTurn() {
+            SEND_TURN.unlock();
+        }
+
+        @Override
+        public int quantum() {
+            return SEND_QUANTUM;
+        }
+    }
+
+    /**
+     * Sends the request and returns the server's answer, or null if none came. The request is repeated
+     * with a doubling timeout, so a lost request or answer only costs a retry; the server answers a
+     * repeated request again. Data packets that overtake the answer are dropped and sent again later.
+     */
+    private static String handshake(String request, Link link) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_DATAGRAM);
+        for (int attempt = 0; attempt < HANDSHAKE_ATTEMPTS; attempt++) {
+            link.send(ByteBuffer.wrap(request.getBytes()));
+            long deadline = System.currentTimeMillis() + ((long) HANDSHAKE_TIMEOUT << attempt);
+            try {
+                while (true) {
+                    link.receive(buffer, (int) Math.max(1, deadline - System.currentTimeMillis()));
+                    if (isControl(buffer)) {
+                        return text(buffer);
+                    }
                 }
+            } catch (SocketTimeoutException | PortUnreachableException e) {
+                // Repeat the request
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Control messages are text and start with a capital letter; binary packets start with their type.
+     */
+    private static boolean isControl(ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get(buffer.position()) >= 'A' && buffer.get(buffer.position()) <= 'Z';
+    }
+
+    private static String text(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(buffer.position(), bytes);
+        return new String(bytes);
+    }
+
+    /**
+     * Splits the last count space separated fields off text, which may have spaces before them as file
+     * names can, and checks they are numbers. Returns the head followed by the fields, or null.
+     */
+    private static String[] splitTail(String text, int count) {
+        String[] result = new String[count + 1];
+        int end = text.length();
+        for (int i = count; i > 0; i--) {
+            int space = text.lastIndexOf(' ', end - 1);
+            if (space < 0) return null;
+            result[i] = text.substring(space + 1, end);
+            if (!result[i].matches("\\d{1,18}")) return null;
+            end = space;
+        }
+        result[0] = text.substring(0, end);
+        return result;
+    }
 
-                // Procesar la solicitud según la acción
-                if (action.equals("SEND")) {
-                    isBusy = true;
-                    sendMessage("FILE " + fileName, serverSocket, clientAddress, clientPort);
-                    receiveFile(fileName, serverSocket, clientAddress, clientPort);
-                    isBusy = false;
-                } else if (action.equals("RECEIVE")) {
-                    isBusy = true;
-                    sendMessage("FILE " + fileName, serverSocket, clientAddress, clientPort);
-                    sendFile(fileName, serverSocket, clientAddress, clientPort);
-                    isBusy = false;
+    /**
+     * Payload to offer a peer: -Dpayload if set, otherwise what fits unfragmented in the MTU of the
+     * interface the peer is reached through, up to a jumbo frame.
+     */
+    private static int localPayload(InetAddress peer) {
+        if (PAYLOAD > 0) return Math.min(PAYLOAD, MAX_PAYLOAD);
+        try (DatagramSocket route = new DatagramSocket()) {
+            route.connect(peer, SERVER_PORT); // Only selects the route, nothing is sent
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(route.getLocalAddress());
+            if (networkInterface == null || networkInterface.getMTU() <= 0) return MIN_PAYLOAD;
+            int ipHeaders = peer instanceof Inet6Address ? 48 : 28;
+            return Math.max(MIN_PAYLOAD, Math.min(AUTO_PAYLOAD_LIMIT, networkInterface.getMTU() - ipHeaders - HEADER_SIZE));
+        } catch (IOException e) {
+            return MIN_PAYLOAD;
+        }
+    }
+
+    /**
+     * Finds the largest payload up to upper that reaches the server in one datagram, by a binary search
+     * over PROBE datagrams that the server answers with the size it received. The probes are sent with
+     * the don't-fragment bit where the JDK exposes it (IP_DONTFRAGMENT, Java 19 and later), so a router
+     * with a smaller MTU drops them; on older JDKs only the local MTU is enforced this way.
+     */
+    private static int probePayload(DatagramChannel channel, Link link, int upper) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(HEADER_SIZE + upper);
+        ByteBuffer answer = ByteBuffer.allocate(64);
+        int low = MIN_PAYLOAD;
+        int high = upper;
+        setDontFragment(channel, true);
+        try {
+            if (probe(link, probe, HEADER_SIZE + high, answer)) return high;
+            while (high - low > PROBE_PRECISION) {
+                int middle = (low + high) >>> 1;
+                if (probe(link, probe, HEADER_SIZE + middle, answer)) {
+                    low = middle;
                 } else {
-                    sendMessage("ERROR Invalid action", serverSocket, clientAddress, clientPort);
+                    high = middle;
                 }
+            }
+        } finally {
+            setDontFragment(channel, false);
+        }
+        return low;
+    }
 
-                serverSocket.setSoTimeout(0);
+    /**
+     * Sends one probe of size bytes, twice if needed, and reports whether the server saw all of it.
+     */
+    private static boolean probe(Link link, ByteBuffer probe, int size, ByteBuffer answer) throws IOException {
+        probe.clear().put(("PROBE " + size).getBytes());
+        String expected = "PROBED " + size;
+        for (int attempt = 0; attempt < 2; attempt++) {
+            try {
+                link.send(probe.clear().limit(size));
+            } catch (IOException e) {
+                return false; // Larger than the local MTU and fragmentation is not allowed
+            }
+            long deadline = System.currentTimeMillis() + PROBE_TIMEOUT;
+            try {
+                while (true) {
+                    link.receive(answer, (int) Math.max(1, deadline - System.currentTimeMillis()));
+                    if (expected.equals(text(answer))) return true;
+                }
+            } catch (SocketTimeoutException e) {
+                // Lost or dropped for its size
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        }
+        return false;
+    }
+
+    private static void setDontFragment(DatagramChannel channel, boolean value) {
+        try {
+            @SuppressWarnings("unchecked")
+            SocketOption<Boolean> option = (SocketOption<Boolean>) Class.forName("jdk.net.ExtendedSocketOptions")
+                    .getField("IP_DONTFRAGMENT").get(null);
+            if (channel.supportedOptions().contains(option)) {
+                channel.setOption(option, value);
+            }
+        } catch (ReflectiveOperationException | IOException | RuntimeException e) {
+            // Not available before Java 19
         }
     }
 
@@ -199,14 +610,22 @@ public class UDPFileTransferSR {
      * Método utilitario para enviar mensajes UDP
      * 
      * @param message - mensaje a enviar
-     * @param socket - socket UDP a usar
-     * @param address - dirección destino
-     * @param port - puerto destino
+     * @param channel - canal UDP a usar
+     * @param target - dirección destino
+     */
+    private static void sendMessage(String message, DatagramChannel channel, SocketAddress target) throws IOException {
+        sendDatagram(channel, ByteBuffer.wrap(message.getBytes()), target);
+    }
+
+    /**
+     * Sends src to target as one datagram. The channels are non-blocking, so when the socket's send
+     * buffer is full the datagram waits for room instead of being dropped.
      */
-    private static void sendMessage(String message, DatagramSocket socket, InetAddress address, int port) throws IOException {
-        byte[] buffer = message.getBytes();
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, port);
-        socket.send(packet);
+    private static void sendDatagram(DatagramChannel channel, ByteBuffer src, SocketAddress target) throws IOException {
+        while (channel.send(src, target) == 0) {
+            LockSupport.parkNanos(SEND_BACKOFF);
+        }
+        METRICS.packetsSent.increment();
     }
 /*
     /**
@@ -348,118 +767,992 @@ public class UDPFileTransferSR {
 
 // Changes applied to the sendFile and receiveFile methods
 
-private static void sendFile(String fileName, DatagramSocket socket, InetAddress address, int port) {
-    try (FileInputStream fis = new FileInputStream(fileName)) {
-        byte[] buffer = new byte[512];
-        int base = 0, nextSeqNum = 0;
-        Map<Integer, byte[]> packetMap = new HashMap<>();
-        Map<Integer, Long> packetTimers = new HashMap<>();
-        boolean eof = false;
+/**
+ * Sends the file with a selective-repeat window. Blocks are copied straight from a memory mapping of the
+ * file into one direct buffer, both on first transmission and on retransmission, so no copy of the
+ * in-flight data is kept and the channel sends without copying again.
+ * Block seq holds bytes [seq * payload, seq * payload + payload), the last one may be short, and after
+ * the last block an EOF packet carries the block count. Window state lives in a preallocated
+ * SendWindow, so the loop allocates nothing per packet.
+ *
+ * Every packet in flight has a retransmission deadline on a TimerWheel, one RTO after it was sent. The
+ * RTO follows the measured round trip time (RttEstimator) and the link only waits until the next
+ * deadline, so a lost packet is resent as soon as it is overdue. Once one ACK has arrived, every ACK
+ * already queued is taken before sending again.
+ *
+ * New packets are paced by a Pacer rather than sent as soon as the window opens, so a large window
+ * does not arrive at the bottleneck as one burst. Waits shorter than a millisecond, which the link's
+ * timeouts cannot express, are parked through.
+ *
+ * How far next may run ahead of base is the smaller of the congestion window (CongestionControl) and
+ * the window the receiver advertises in its ACKs. An ACK acknowledges everything below the receiver's
+ * next in-order seq plus the blocks set in its SACK bitmap. A block that DUP_THRESHOLD later blocks
+ * have overtaken is taken as lost and resent at once, without waiting for its timer.
+ *
+ * With -Dfec=K a ParityEncoder follows every group of new blocks with a PARITY packet, so the receiver
+ * can rebuild a lost block without a round trip. The losses it sizes the groups from are the blocks
+ * resent plus the blocks the receiver reports rebuilt.
+ *
+ * On the server, reply is the FILE answer to the request; it is sent again whenever the request shows
+ * up again, as that means the client has not seen it. The client passes null.
+ */
+private static void sendFile(String fileName, Link link, int payload, byte[] reply) {
+    IntSupplier occupancy = null;
+    try (FileChannel fileChannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+        MappedFile file = new MappedFile(fileChannel);
+        long blocks = (file.size + payload - 1) / payload;
+        if (blocks >= Integer.MAX_VALUE) {
+            throw new IOException("File too large for a payload of " + payload + " bytes");
+        }
+        int lastSeq = (int) blocks; // The EOF packet
+        ByteBuffer packet = ByteBuffer.allocateDirect(HEADER_SIZE + payload);
+        ByteBuffer ack = ByteBuffer.allocateDirect(ACK_HEADER + MAX_SACK_BYTES);
+        SendWindow window = new SendWindow(MAX_WINDOW);
+        occupancy = METRICS.windowOpened(() -> window.next - window.base);
+        RttEstimator rtt = new RttEstimator();
+        CongestionControl congestion = new CongestionControl();
+        TimerWheel timers = new TimerWheel(window.capacity(), System.nanoTime());
+        Pacer pacer = new Pacer(HEADER_SIZE + payload);
+        long lastProgress = System.nanoTime();
+        long retransmissions = 0;
+        int receiverEdge = INITIAL_WINDOW; // First seq the receiver has no room for yet
+        int highestSacked = -1;            // Newest block the receiver has reported
+        int lossScan = 0;                  // Blocks below this were already checked for fast retransmission
+        ParityEncoder parity = FEC_GROUP > 0 ? new ParityEncoder(FEC_GROUP, payload) : null;
+        int recovered = 0;                 // Blocks the receiver has rebuilt from parity
 
         while (true) {
-            // Send packets within the window
-            while (nextSeqNum < base + WINDOW_SIZE && !eof) {
-                int bytesRead = fis.read(buffer);
-                if (bytesRead < 512) { // EOF: send a zero-length data packet
-                    eof = true;
-                    if (bytesRead == -1) bytesRead = 0;
+            // Send packets within the congestion window and the receiver's window, in turns of at most
+            // link.quantum() packets so that concurrent server sessions share the socket fairly
+            int limit = Math.min(window.base + Math.min(congestion.window(), window.capacity()), receiverEdge);
+            boolean turnUsedUp = false;
+            long pacedUntil = Long.MAX_VALUE; // When the pacer lets the next new packet go, if it held one back
+            pacer.update(congestion, rtt.srtt());
+            if (window.next < limit && window.next <= lastSeq) {
+                link.beginTurn();
+                try {
+                    for (int sent = 0; window.next < limit && window.next <= lastSeq; sent++) {
+                        if (sent == link.quantum()) {
+                            turnUsedUp = true;
+                            break;
+                        }
+                        long delay = pacer.delay(System.nanoTime());
+                        if (delay > 0) {
+                            pacedUntil = System.nanoTime() + delay;
+                            break;
+                        }
+                        sendBlock(file, window.next, lastSeq, payload, link, packet);
+                        pacer.consume(packet.limit());
+                        if (parity != null && window.next < lastSeq
+                                && parity.add(window.next, packet, HEADER_SIZE, packet.limit() - HEADER_SIZE, lastSeq, link)) {
+                            pacer.consume(HEADER_SIZE + payload);
+                        }
+                        long now = System.nanoTime();
+                        window.sent(window.next, now, false);
+                        timers.schedule(window.slot(window.next), window.next, now + rtt.rto());
+                        window.next++;
+                    }
+                } finally {
+                    link.endTurn();
                 }
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos);
-                dos.writeInt(nextSeqNum);
-                dos.write(buffer, 0, bytesRead);
-                byte[] packetData = baos.toByteArray();
-                DatagramPacket packet = new DatagramPacket(packetData, packetData.length, address, port);
-
-                socket.send(packet);
-                packetMap.put(nextSeqNum, packetData);
-                packetTimers.put(nextSeqNum, System.currentTimeMillis());
-                nextSeqNum++;
             }
 
-            // Receive ACKs
-            byte[] ackBuffer = new byte[4];
-            DatagramPacket ackPacket = new DatagramPacket(ackBuffer, ackBuffer.length);
+            // Receive ACKs, waiting no longer than the next retransmission deadline or the pacer, or not
+            // at all when the turn ended with packets still allowed out, then take the ones queued behind
+            long now = System.nanoTime();
+            long until = turnUsedUp ? now : Math.min(timers.nextDeadline(now + rtt.rto()), pacedUntil);
+            boolean acked = false;
             try {
-                socket.setSoTimeout(100);
-                socket.receive(ackPacket);
-                DataInputStream dis = new DataInputStream(new ByteArrayInputStream(ackBuffer));
-                int ackNum = dis.readInt();
-
-                if (ackNum >= base) {
-                    base = ackNum + 1; // Slide the window
+                for (int wait = until - now >= 1_000_000 ? (int) ((until - now) / 1_000_000) : -1; ; wait = -1) {
+                    link.receive(ack, wait);
+                    acked = true;
+                    now = System.nanoTime();
+                    if (reply != null && isControl(ack)) {
+                        link.send(ByteBuffer.wrap(reply)); // Our FILE answer was lost
+                    } else if (ack.limit() >= ACK_HEADER && ack.get(0) == ACK) {
+                        int ackNum = ack.getInt(1);
+                        int cumulative = Math.min(ack.getInt(5), window.next);
+                        receiverEdge = Math.max(receiverEdge, cumulative + ack.getInt(9));
+                        if (parity != null && ack.getInt(13) > recovered) {
+                            parity.lost(ack.getInt(13) - recovered);
+                            recovered = ack.getInt(13);
+                        }
+                        // The RTT is sampled on the packet that triggered the ACK. Karn's rule: the ACK of a
+                        // retransmitted packet cannot tell which copy it answers
+                        if (window.inFlight(ackNum) && !window.isAcked(ackNum) && !window.isRetransmitted(ackNum)) {
+                            long sample = now - window.sentAt(ackNum);
+                            rtt.sample(sample);
+                            METRICS.rtt.record(sample);
+                            congestion.rttSample(sample, ackNum, window.next);
+                        }
+                        // Everything below the receiver's next in-order seq has arrived
+                        int newlyAcked = 0;
+                        while (window.base < cumulative) {
+                            timers.cancel(window.slot(window.base));
+                            window.ack(window.base);
+                            newlyAcked++;
+                        }
+                        // And so has every block set in the bitmap, bit i standing for cumulative + 1 + i
+                        for (int i = ACK_HEADER; i < ack.limit(); i++) {
+                            int bits = ack.get(i) & 0xff;
+                            while (bits != 0) {
+                                int seq = cumulative + 1 + (i - ACK_HEADER) * 8 + Integer.numberOfTrailingZeros(bits);
+                                bits &= bits - 1;
+                                if (window.inFlight(seq) && !window.isAcked(seq)) {
+                                    timers.cancel(window.slot(seq));
+                                    window.ack(seq);
+                                    newlyAcked++;
+                                    highestSacked = Math.max(highestSacked, seq);
+                                }
+                            }
+                        }
+                        if (newlyAcked > 0) {
+                            congestion.acked(newlyAcked, rtt.srtt(), now);
+                            file.release((long) window.base * payload);
+                            lastProgress = now;
+                        } else {
+                            METRICS.duplicateAcks.increment();
+                        }
+                    }
                 }
             } catch (SocketTimeoutException e) {
-                // Timeout: retransmit unacknowledged packets
-		System.out.print(".");
-                long currentTime = System.currentTimeMillis();
-                for (Map.Entry<Integer, Long> entry : packetTimers.entrySet()) {
-                    if (entry.getKey() >= base && entry.getKey() < base + WINDOW_SIZE) {
-                        if (currentTime - entry.getValue() > 500) {
-                            byte[] packetData = packetMap.get(entry.getKey());
-                            DatagramPacket packet = new DatagramPacket(packetData, packetData.length, address, port);
-                            socket.send(packet);
-                            packetTimers.put(entry.getKey(), currentTime);
-                        }
+                now = System.nanoTime();
+            }
+            if (!acked && until > now && until - now < 1_000_000) {
+                LockSupport.parkNanos(until - now);
+                now = System.nanoTime();
+            }
+
+            // Resend at once the blocks that DUP_THRESHOLD reported blocks have overtaken, each once; a
+            // resent block that is lost again is left to its timer. With FEC the parity of the group
+            // comes first, so the threshold grows by a group
+            lossScan = Math.max(lossScan, window.base);
+            int threshold = parity != null ? DUP_THRESHOLD + parity.groupSize() : DUP_THRESHOLD;
+            if (lossScan + threshold <= highestSacked) {
+                link.beginTurn();
+                try {
+                    for (; lossScan + threshold <= highestSacked; lossScan++) {
+                        if (window.isAcked(lossScan) || window.isRetransmitted(lossScan)) continue;
+                        congestion.lost(lossScan, false, window.next);
+                        if (parity != null) parity.lost(1);
+                        sendBlock(file, lossScan, lastSeq, payload, link, packet);
+                        pacer.consume(packet.limit());
+                        window.sent(lossScan, now, true);
+                        timers.schedule(window.slot(lossScan), lossScan, now + rtt.rto());
+                        retransmissions++;
+                        METRICS.retransmissions.increment();
                     }
+                } finally {
+                    link.endTurn();
+                }
+            }
+
+            // Retransmit every packet whose deadline has passed; one backoff per round of expiries
+            int seq = timers.poll(now);
+            if (seq != -1) {
+                rtt.backoff();
+                System.out.print(".");
+                link.beginTurn();
+                try {
+                    for (; seq != -1; seq = timers.poll(now)) {
+                        congestion.lost(seq, window.isRetransmitted(seq), window.next);
+                        if (parity != null) parity.lost(1);
+                        sendBlock(file, seq, lastSeq, payload, link, packet);
+                        pacer.consume(packet.limit());
+                        window.sent(seq, now, true);
+                        timers.schedule(window.slot(seq), seq, now + rtt.rto());
+                        retransmissions++;
+                        METRICS.retransmissions.increment();
+                    }
+                } finally {
+                    link.endTurn();
                 }
             }
 
             // Exit condition: all packets (including EOF) have been acknowledged
-            if (eof && base == nextSeqNum) {
-                System.out.println("Transfer complete.");
+            if (window.base > lastSeq) {
+                System.out.println("Transfer complete. " + retransmissions + " retransmissions, " + recovered + " blocks rebuilt from parity, srtt " + rtt.srtt() / 1000 + " us, cwnd " + congestion.window() + ".");
+                break;
+            }
+            if (now - lastProgress > ABORT_TIMEOUT) {
+                System.out.println("Transfer aborted: no ACK for " + ABORT_TIMEOUT / 1_000_000_000L + " s.");
                 break;
             }
         }
     } catch (IOException e) {
         e.printStackTrace();
+    } finally {
+        METRICS.windowClosed(occupancy);
     }
 }
 
-private static void receiveFile(String fileName, DatagramSocket socket, InetAddress address, int port) {
-    try (FileOutputStream fos = new FileOutputStream(fileName)) {
-        byte[] buffer = new byte[BUFFER_SIZE];
-        int base = 0;
-        Map<Integer, byte[]> packetBuffer = new HashMap<>();
-        boolean eof = false;
+/**
+ * Fills the reusable packet with block seq copied from the mapping, or with the EOF packet when seq is
+ * lastSeq, and sends it.
+ */
+private static void sendBlock(MappedFile file, int seq, int lastSeq, int payload, Link link, ByteBuffer packet) throws IOException {
+    packet.clear();
+    packet.put(0, seq == lastSeq ? EOF : DATA);
+    packet.putInt(1, seq);
+    int length = seq == lastSeq ? 0 : file.read((long) seq * payload, packet, HEADER_SIZE, payload);
+    packet.limit(HEADER_SIZE + length);
+    link.send(packet);
+    METRICS.bytesSent.add(length);
+}
+
+/**
+ * Sender side of the forward error correction. New blocks are grouped in runs of K, a power of two
+ * aligned to a multiple of K, and the last block of every group is followed by a PARITY packet with
+ * the XOR of their payloads, zero padded to the full payload, from which the receiver can rebuild any
+ * one block of the group. The packet names the group by its middle, first seq + K / 2, whose lowest
+ * set bit gives K back.
+ *
+ * K starts as configured and is then chosen at every group from the loss rate of the last
+ * FEC_HISTORY blocks, so that a group expects about FEC_TARGET losses: more loss, more parity.
+ */
+private static class ParityEncoder {
+    private final ByteBuffer parity;
+    private int groupSize;
+    private int end;     // First seq after the current group
+    private double sent; // Blocks sent and lost, decayed to the last FEC_HISTORY blocks
+    private double lost;
+
+    ParityEncoder(int groupSize, int payload) {
+        this.parity = ByteBuffer.allocate(HEADER_SIZE + payload);
+        this.parity.put(0, PARITY);
+        this.groupSize = Integer.highestOneBit(Math.max(FEC_MIN_GROUP, Math.min(FEC_MAX_GROUP, groupSize)));
+    }
+
+    int groupSize() {
+        return groupSize;
+    }
+
+    void lost(int blocks) {
+        lost += blocks;
+    }
+
+    /**
+     * Adds the payload of data block seq, sent for the first time and in order, to its group, and sends
+     * the parity of the group after its last block. Returns whether it sent the parity.
+     */
+    boolean add(int seq, ByteBuffer data, int offset, int length, int lastSeq, Link link) throws IOException {
+        if (seq >= end) {
+            // Start a group, no larger than the alignment of seq allows
+            if (sent >= FEC_HISTORY / 4) {
+                double rate = lost / sent;
+                groupSize = rate <= FEC_TARGET / FEC_MAX_GROUP ? FEC_MAX_GROUP : Integer.highestOneBit(Math.max(FEC_MIN_GROUP, (int) (FEC_TARGET / rate)));
+            }
+            int size = seq == 0 ? groupSize : Math.min(groupSize, Integer.lowestOneBit(seq));
+            end = (int) Math.min((long) seq + size, lastSeq);
+            parity.putInt(1, seq + size / 2);
+            Arrays.fill(parity.array(), HEADER_SIZE, parity.capacity(), (byte) 0);
+        }
+        xor(parity, HEADER_SIZE, data, offset, length);
+        if (++sent > FEC_HISTORY) {
+            sent /= 2;
+            lost /= 2;
+        }
+        if (seq != end - 1) return false;
+        link.send(parity.clear());
+        return true;
+    }
+}
+
+/**
+ * Receiver side of the forward error correction. Keeps, for every run of FEC_MIN_GROUP blocks whose
+ * parity may still come, the XOR of the blocks received, so the blocks of a group need not be kept
+ * once written. When a PARITY packet finds exactly one block of its group missing, the XOR of the
+ * parity and the group's runs is that block.
+ *
+ * The sender follows the last block of every group with its parity, so a parity still to come is for
+ * a group among the newest blocks: runs more than two of the largest groups behind the newest block,
+ * or FEC_MAX_GROUP behind the window's base, are dropped, buffer and all. The runs left sit in a ring
+ * sized for that span, which only grows if reordering spreads them further. A group with a dropped run,
+ * or one that starts before the first PARITY packet, which creates the decoder, cannot be rebuilt and
+ * is left to retransmission.
+ */
+private static class ParityDecoder {
+    private int mask;
+    private ByteBuffer[] runs;
+    private int[] runOf;        // Run number each slot holds, -1 for none
+    private final int payload;
+    private final int from;     // First seq whose group can be rebuilt
+    private int oldest;         // Runs below this one have been dropped
+
+    ParityDecoder(int payload, int from) {
+        int capacity = 2 * FEC_MAX_GROUP / FEC_MIN_GROUP;
+        this.mask = capacity - 1;
+        this.runs = new ByteBuffer[capacity];
+        this.runOf = new int[capacity];
+        Arrays.fill(runOf, -1);
+        this.payload = payload;
+        this.from = from;
+        this.oldest = (from + FEC_MIN_GROUP - 1) / FEC_MIN_GROUP;
+    }
+
+    void add(int seq, ByteBuffer data, int offset, int length) {
+        // The parity of every group two of the largest behind seq has been sent already
+        drop(Math.max(0, seq - 2 * FEC_MAX_GROUP) / FEC_MIN_GROUP);
+        int run = seq / FEC_MIN_GROUP;
+        if (run < oldest) return; // No group that can still be rebuilt covers it
+        while (runOf[run & mask] != -1 && runOf[run & mask] != run) {
+            grow();
+        }
+        int slot = run & mask;
+        if (runOf[slot] != run) {
+            runs[slot] = ByteBuffer.allocate(payload);
+            runOf[slot] = run;
+        }
+        xor(runs[slot], 0, data, offset, length);
+    }
+
+    /**
+     * Drops the runs no group can need any more now that the window's base is base.
+     */
+    void release(int base) {
+        drop(Math.max(0, base - FEC_MAX_GROUP) / FEC_MIN_GROUP);
+    }
+
+    private void drop(int keep) {
+        for (; oldest < keep; oldest++) {
+            int slot = oldest & mask;
+            if (runOf[slot] == oldest) {
+                runs[slot] = null;
+                runOf[slot] = -1;
+            }
+        }
+    }
+
+    private void grow() {
+        ByteBuffer[] oldRuns = runs;
+        int[] oldRunOf = runOf;
+        mask = mask * 2 + 1;
+        runs = new ByteBuffer[mask + 1];
+        runOf = new int[mask + 1];
+        Arrays.fill(runOf, -1);
+        for (int i = 0; i < oldRuns.length; i++) {
+            if (oldRunOf[i] == -1) continue;
+            runs[oldRunOf[i] & mask] = oldRuns[i];
+            runOf[oldRunOf[i] & mask] = oldRunOf[i];
+        }
+    }
+
+    /**
+     * If exactly one block of the group [first, end) has not been received, rebuilds its payload into dst
+     * and returns its seq. Returns -1 otherwise.
+     */
+    int recover(int first, int end, ByteBuffer parity, int offset, ReceiveWindow window, ByteBuffer dst) {
+        if (first < from || first / FEC_MIN_GROUP < oldest) return -1;
+        int missing = -1;
+        for (int seq = first; seq < end; seq++) {
+            if (window.received(seq)) continue;
+            if (missing != -1) return -1;
+            missing = seq;
+        }
+        if (missing == -1) return -1;
+        dst.put(0, parity, offset, payload);
+        for (int run = first / FEC_MIN_GROUP; run < (end + FEC_MIN_GROUP - 1) / FEC_MIN_GROUP; run++) {
+            if (runOf[run & mask] == run) xor(dst, 0, runs[run & mask], 0, payload);
+        }
+        return missing;
+    }
+}
+
+/**
+ * XORs length bytes of src at srcOffset into dst at dstOffset, eight bytes at a time through the
+ * buffers' long accessors, which the JIT turns into plain loads and stores.
+ */
+private static void xor(ByteBuffer dst, int dstOffset, ByteBuffer src, int srcOffset, int length) {
+    int i = 0;
+    for (; i <= length - Long.BYTES; i += Long.BYTES) {
+        dst.putLong(dstOffset + i, dst.getLong(dstOffset + i) ^ src.getLong(srcOffset + i));
+    }
+    for (; i < length; i++) {
+        dst.put(dstOffset + i, (byte) (dst.get(dstOffset + i) ^ src.get(srcOffset + i)));
+    }
+}
+
+/**
+ * Read-only view of a file through memory mappings of MAP_REGION_SIZE bytes, created on first use and
+ * dropped once the window has moved past them, so files larger than 2 GB can be mapped too.
+ */
+private static class MappedFile {
+    final long size;
+    private final FileChannel channel;
+    private final MappedByteBuffer[] regions;
+    private int released;
+
+    MappedFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.regions = new MappedByteBuffer[(int) (size / MAP_REGION_SIZE) + 1];
+    }
+
+    /**
+     * Copies up to length bytes at offset into dst and returns the number copied, 0 at the end of the file.
+     * A block that straddles two regions is copied from both.
+     */
+    int read(long offset, ByteBuffer dst, int dstOffset, int length) throws IOException {
+        int copied = 0;
+        while (copied < length && offset + copied < size) {
+            long position = offset + copied;
+            int index = (int) (position / MAP_REGION_SIZE);
+            MappedByteBuffer region = regions[index];
+            if (region == null) {
+                long start = index * MAP_REGION_SIZE;
+                region = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(MAP_REGION_SIZE, size - start));
+                regions[index] = region;
+            }
+            int regionOffset = (int) (position - index * MAP_REGION_SIZE);
+            int count = Math.min(length - copied, region.limit() - regionOffset);
+            dst.put(dstOffset + copied, region, regionOffset, count);
+            copied += count;
+        }
+        return copied;
+    }
+
+    /**
+     * Forgets the regions entirely below offset; they are unmapped when garbage collected.
+     */
+    void release(long offset) {
+        for (; released < offset / MAP_REGION_SIZE; released++) {
+            regions[released] = null;
+        }
+    }
+}
+
+/**
+ * Sender side state of the selective-repeat window: for each in-flight sequence number, when it was
+ * last sent, whether it was ever retransmitted and whether it has been acknowledged. Kept in primitive
+ * arrays indexed by seq & mask, a ring as large as the window, so sliding the window only clears entries.
+ */
+private static class SendWindow {
+    private final int mask;
+    private final long[] sentAt;
+    private final boolean[] retransmitted;
+    private final boolean[] acked;
+    int base;  // Oldest unacknowledged sequence number
+    int next;  // Next sequence number to send for the first time
+
+    SendWindow(int size) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.mask = capacity - 1;
+        this.sentAt = new long[capacity];
+        this.retransmitted = new boolean[capacity];
+        this.acked = new boolean[capacity];
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    int slot(int seq) {
+        return seq & mask;
+    }
+
+    boolean inFlight(int seq) {
+        return seq >= base && seq < next;
+    }
+
+    void sent(int seq, long time, boolean retransmission) {
+        sentAt[seq & mask] = time;
+        retransmitted[seq & mask] = retransmission;
+    }
+
+    long sentAt(int seq) {
+        return sentAt[seq & mask];
+    }
+
+    boolean isRetransmitted(int seq) {
+        return retransmitted[seq & mask];
+    }
+
+    boolean isAcked(int seq) {
+        return acked[seq & mask];
+    }
+
+    /**
+     * Marks seq as received by the peer and slides base past every acknowledged packet.
+     * Returns true if the window moved.
+     */
+    boolean ack(int seq) {
+        if (seq < base || seq >= next) return false; // Duplicate or stray ACK
+        acked[seq & mask] = true;
+        int oldBase = base;
+        while (base < next && acked[base & mask]) {
+            acked[base & mask] = false;
+            base++;
+        }
+        return base != oldBase;
+    }
+}
+
+/**
+ * Smoothed round trip time and retransmission timeout as in RFC 6298, in nanoseconds. Each timeout
+ * doubles the RTO until the next valid sample; only packets sent once are sampled (Karn's rule). As in
+ * QUIC (RFC 9002) the RTO also allows for the receiver holding an ACK back for up to ACK_DELAY: paced
+ * packets see so steady an RTT that the variance alone would not cover it.
+ */
+private static class RttEstimator {
+    private boolean measured;
+    private long srtt;
+    private long rttvar;
+    private long rto = INITIAL_RTO;
+
+    void sample(long rtt) {
+        if (!measured) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+            measured = true;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4;
+            srtt = (7 * srtt + rtt) / 8;
+        }
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, srtt + Math.max(TIMER_TICK, 4 * rttvar) + ACK_DELAY));
+    }
+
+    void backoff() {
+        rto = Math.min(MAX_RTO, rto * 2);
+    }
+
+    long rto() {
+        return rto;
+    }
+
+    long srtt() {
+        return srtt;
+    }
+}
+
+/**
+ * Congestion window of the sender in packets. Starts with slow start, growing by one packet per packet
+ * acknowledged, and leaves it at the first loss or, as in HyStart, when the minimum RTT of a round rises
+ * clearly above that of the previous round, since a queue building up means the path is full. After
+ * that the window follows CUBIC (RFC 9438): after a loss it drops to CUBIC_BETA of its size and grows back
+ * along a cubic curve centred on the size where the loss happened, never slower than Reno would.
+ *
+ * Losses are retransmission timeouts. All losses among the packets in flight when the window was cut
+ * count as one event; losing a retransmission means the path is badly congested and the window
+ * collapses to MIN_WINDOW.
+ */
+private static class CongestionControl {
+    private double cwnd = INITIAL_WINDOW;
+    private double ssthresh = MAX_WINDOW;
+    private double wMax;                    // Window at the last loss
+    private double wReno;                   // Window Reno would have reached since then
+    private double k;                       // Seconds from the loss until the curve reaches wMax again
+    private long epochStart = -1;           // When the current growth epoch began, -1 until the first ACK after a loss
+    private int recoveryPoint;              // Losses below this seq belong to the last reduction
+    private int roundEnd;                   // The HyStart round ends when this seq is acknowledged
+    private long roundMinRtt = Long.MAX_VALUE;
+    private long lastRoundMinRtt = Long.MAX_VALUE;
+    private int roundSamples;
+
+    int window() {
+        return (int) cwnd;
+    }
+
+    boolean slowStart() {
+        return cwnd < ssthresh;
+    }
+
+    /**
+     * Feeds the HyStart delay check with the RTT of a packet sent once.
+     */
+    void rttSample(long rtt, int seq, int next) {
+        if (seq >= roundEnd) {
+            lastRoundMinRtt = roundMinRtt;
+            roundMinRtt = Long.MAX_VALUE;
+            roundSamples = 0;
+            roundEnd = next;
+        }
+        roundMinRtt = Math.min(roundMinRtt, rtt);
+        roundSamples++;
+        if (cwnd < ssthresh && roundSamples >= 8 && lastRoundMinRtt != Long.MAX_VALUE) {
+            long eta = Math.max(HYSTART_MIN_ETA, Math.min(HYSTART_MAX_ETA, lastRoundMinRtt / 8));
+            if (roundMinRtt >= lastRoundMinRtt + eta) {
+                ssthresh = cwnd;
+            }
+        }
+    }
+
+    void acked(int packets, long srtt, long now) {
+        if (cwnd < ssthresh) {
+            cwnd = Math.min(cwnd + packets, Math.min(ssthresh, MAX_WINDOW));
+            if (cwnd < ssthresh) return;
+        }
+        if (epochStart < 0) {
+            epochStart = now;
+            if (wMax < cwnd) {
+                wMax = cwnd; // Left slow start without a loss, probe upwards right away
+                k = 0;
+            } else {
+                k = Math.cbrt(wMax * (1 - CUBIC_BETA) / CUBIC_C);
+            }
+            wReno = cwnd;
+        }
+        double t = (now - epochStart + srtt) / 1e9;
+        double target = CUBIC_C * (t - k) * (t - k) * (t - k) + wMax;
+        target = Math.max(cwnd, Math.min(target, cwnd * 1.5));
+        wReno += 3 * (1 - CUBIC_BETA) / (1 + CUBIC_BETA) * packets / cwnd;
+        if (wReno > target) target = wReno;
+        cwnd = Math.min(MAX_WINDOW, cwnd + (target - cwnd) * packets / cwnd);
+    }
+
+    /**
+     * Called when the retransmission timer of seq expires; next is the first seq not yet sent.
+     */
+    void lost(int seq, boolean retransmission, int next) {
+        if (retransmission) {
+            if (cwnd <= MIN_WINDOW) return;
+            ssthresh = Math.max(MIN_WINDOW, cwnd * CUBIC_BETA);
+            wMax = cwnd;
+            cwnd = MIN_WINDOW;
+        } else {
+            if (seq < recoveryPoint) return;
+            wMax = cwnd;
+            cwnd = Math.max(MIN_WINDOW, cwnd * CUBIC_BETA);
+            ssthresh = cwnd;
+        }
+        recoveryPoint = next;
+        epochStart = -1;
+    }
+}
+
+/**
+ * Token bucket pacing of the sender. Tokens are bytes, added at the pacing rate and held up to
+ * PACING_BURST worth of it, at least two packets, so packets leave in small bursts spread over the
+ * round trip rather than a window at a time. The rate is the congestion window per smoothed RTT times
+ * a gain, capped by -Drate; before the first RTT sample only the cap applies, so the initial window
+ * goes out at once as TCP's does. Every packet sent takes its tokens, retransmissions and parity too,
+ * and may leave the bucket in debt.
+ */
+private static class Pacer {
+    private final int packetSize;
+    private double rate;   // Bytes per second, 0 while not pacing
+    private double tokens;
+    private long last = System.nanoTime();
+
+    Pacer(int packetSize) {
+        this.packetSize = packetSize;
+    }
+
+    void update(CongestionControl congestion, long srtt) {
+        double rate = srtt > 0 ? (congestion.slowStart() ? PACING_GAIN_SLOW_START : PACING_GAIN) * congestion.window() * packetSize * 1e9 / srtt : 0;
+        this.rate = RATE_CAP > 0 && (rate == 0 || rate > RATE_CAP) ? RATE_CAP : rate;
+    }
+
+    /**
+     * Nanoseconds until the bucket holds a full packet, 0 if it already does.
+     */
+    long delay(long now) {
+        if (rate == 0) return 0;
+        tokens = Math.min(Math.max(2.0 * packetSize, rate * PACING_BURST / 1e9), tokens + (now - last) * rate / 1e9);
+        last = now;
+        return tokens >= packetSize ? 0 : (long) ((packetSize - tokens) * 1e9 / rate) + 1;
+    }
+
+    void consume(int bytes) {
+        if (rate > 0) tokens -= bytes;
+    }
+}
+
+/**
+ * Hashed timer wheel of retransmission deadlines, one per send window slot. Buckets are intrusive
+ * doubly linked lists over primitive arrays, so scheduling and cancelling are O(1) and allocate nothing.
+ * Deadlines further away than one turn of the wheel stay in their bucket until their turn comes.
+ */
+private static class TimerWheel {
+    private static final int NONE = -1;
+    private static final int MASK = TIMER_BUCKETS - 1;
+    private final int[] heads = new int[TIMER_BUCKETS];
+    private final int[] next;
+    private final int[] prev;
+    private final int[] bucketOf;
+    private final int[] seqs;
+    private final long[] deadlines;
+    private long cursor;      // Tick of the bucket poll looks at first
+    private int count;
+    private long firstTick;   // Earliest non-empty tick, valid while firstKnown
+    private boolean firstKnown;
+
+    TimerWheel(int capacity, long now) {
+        this.next = new int[capacity];
+        this.prev = new int[capacity];
+        this.bucketOf = new int[capacity];
+        this.seqs = new int[capacity];
+        this.deadlines = new long[capacity];
+        Arrays.fill(heads, NONE);
+        Arrays.fill(bucketOf, NONE);
+        this.cursor = now / TIMER_TICK;
+    }
+
+    void schedule(int slot, int seq, long deadline) {
+        cancel(slot);
+        long tick = Math.max(deadline / TIMER_TICK, cursor);
+        int bucket = (int) (tick & MASK);
+        seqs[slot] = seq;
+        deadlines[slot] = deadline;
+        bucketOf[slot] = bucket;
+        prev[slot] = NONE;
+        next[slot] = heads[bucket];
+        if (heads[bucket] != NONE) prev[heads[bucket]] = slot;
+        heads[bucket] = slot;
+        if (count++ == 0 || (firstKnown && tick < firstTick)) {
+            firstTick = tick;
+            firstKnown = true;
+        }
+    }
+
+    void cancel(int slot) {
+        int bucket = bucketOf[slot];
+        if (bucket == NONE) return;
+        if (prev[slot] != NONE) next[prev[slot]] = next[slot]; else heads[bucket] = next[slot];
+        if (next[slot] != NONE) prev[next[slot]] = prev[slot];
+        bucketOf[slot] = NONE;
+        count--;
+        if (heads[bucket] == NONE && bucket == (int) (firstTick & MASK)) firstKnown = false;
+    }
+
+    /**
+     * Removes and returns the sequence number of one timer that is due at now, or -1 if none is.
+     */
+    int poll(long now) {
+        long nowTick = now / TIMER_TICK;
+        while (count > 0) {
+            for (int slot = heads[(int) (cursor & MASK)]; slot != NONE; slot = next[slot]) {
+                if (deadlines[slot] <= now) {
+                    cancel(slot);
+                    return seqs[slot];
+                }
+            }
+            if (cursor >= nowTick) return NONE;
+            cursor++;
+            if (firstTick < cursor) firstKnown = false;
+        }
+        cursor = Math.max(cursor, nowTick); // Idle wheel: skip the empty ticks
+        return NONE;
+    }
+
+    /**
+     * Start of the earliest tick holding a timer, a lower bound for the next deadline, or fallback
+     * when no timer is pending. Waking at a bucket whose timers belong to a later turn just polls nothing.
+     */
+    long nextDeadline(long fallback) {
+        if (count == 0) return fallback;
+        if (!firstKnown) {
+            firstTick = cursor;
+            while (heads[(int) (firstTick & MASK)] == NONE && firstTick < cursor + TIMER_BUCKETS) {
+                firstTick++;
+            }
+            firstKnown = true;
+        }
+        return firstTick * TIMER_TICK;
+    }
+}
+
+/**
+ * Receiver side window over [base, base + capacity): one bit per sequence number, in a ring of longs
+ * indexed by seq & mask, for the blocks already written to the file beyond base. The blocks themselves
+ * go straight to their place in the file, so reordering costs a bit per block however deep it is. The
+ * EOF packet takes the bit of lastSeq; the window is complete once base has passed it.
+ */
+private static class ReceiveWindow {
+    private final int mask;
+    private final long[] present;
+    private final int lastSeq;
+    int base;          // Next sequence number missing from the file
+    int highest = -1;  // Highest sequence number received so far
+    boolean complete;  // Every block and the EOF packet have been received
+
+    ReceiveWindow(int size, int lastSeq) {
+        int capacity = Math.max(Long.SIZE, Integer.highestOneBit(Math.max(1, size - 1)) << 1);
+        this.mask = capacity - 1;
+        this.present = new long[capacity / Long.SIZE];
+        this.lastSeq = lastSeq;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    private boolean isSet(int seq) {
+        return (present[(seq & mask) >>> 6] & (1L << seq)) != 0;
+    }
+
+    /**
+     * True if seq has already been received, at base or beyond.
+     */
+    boolean received(int seq) {
+        return seq < base || (seq - base <= mask && isSet(seq));
+    }
+
+    /**
+     * Marks seq as received and moves base past the blocks that became contiguous. Returns false for
+     * duplicates and packets outside the window, which must not be written.
+     */
+    boolean mark(int seq) {
+        if (seq < base || seq > lastSeq || seq - base > mask || isSet(seq)) return false;
+        present[(seq & mask) >>> 6] |= 1L << seq;
+        highest = Math.max(highest, seq);
+        while (!complete && isSet(base)) {
+            present[(base & mask) >>> 6] &= ~(1L << base);
+            complete = base == lastSeq;
+            base++;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the bitmap of the blocks received after the gap at base into dst at offset, bit i of the
+     * bitmap for block base + 1 + i, up to the highest block received or maxBytes. Returns its length.
+     */
+    int sack(ByteBuffer dst, int offset, int maxBytes) {
+        int bytes = Math.max(0, Math.min(maxBytes, (highest - base + 7) / 8));
+        for (int i = 0; i < bytes; i++) {
+            int bits = 0;
+            for (int bit = 0; bit < 8; bit++) {
+                int seq = base + 1 + i * 8 + bit;
+                if (seq - base <= mask && isSet(seq)) bits |= 1 << bit;
+            }
+            dst.put(offset + i, (byte) bits);
+        }
+        return bytes;
+    }
+}
+
+/**
+ * Writes length bytes of data at offset to the file at position, leaving the buffer's bounds as they were.
+ */
+private static void writeBlock(FileChannel fileChannel, ByteBuffer data, int offset, int length, long position) throws IOException {
+    int limit = data.limit();
+    data.limit(offset + length).position(offset);
+    while (data.hasRemaining()) {
+        position += fileChannel.write(data, position);
+    }
+    data.position(0).limit(limit);
+}
+
+/**
+ * Receives a file of fileSize bytes sent by sendFile in blocks of payload bytes. The file is created
+ * at its full size and every block is written at its own offset, seq * payload, as soon as it arrives,
+ * in order or not; a ReceiveWindow keeps a bit per block to tell which have arrived. The file is
+ * complete when every block and the EOF packet have. Packets beyond the window or of the wrong length
+ * are dropped unacknowledged. A transfer that is aborted leaves the file cut to its complete prefix.
+ *
+ * An ACK carries the next in-order seq, the window size, so the sender never runs past the blocks
+ * the window can track, and a SACK bitmap of the blocks held beyond the gap, so the sender resends only what is
+ * missing. In-order packets are acknowledged together, every ACK_EVERY packets or ACK_DELAY after the
+ * first one, which cuts the reverse traffic by that factor. Anything the sender needs to hear about
+ * soon is acknowledged at once: a packet out of order, a duplicate (its first ACK may have been
+ * lost), a gap being filled and the end of the file.
+ *
+ * PARITY packets go to a ParityDecoder, and a block it rebuilds is stored as if it had arrived. The
+ * ACK reports how many blocks were rebuilt, as the sender cannot see those losses otherwise.
+ *
+ * Once the file is complete the receiver dallies, acknowledging retransmissions until the sender goes
+ * quiet, so a lost final ACK does not leave the sender retrying until it gives up. On the server,
+ * reply is the FILE answer, sent again if the request is repeated.
+ */
+private static void receiveFile(String fileName, Link link, long fileSize, int payload, byte[] reply) {
+    try (FileChannel fileChannel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+        long blocks = (fileSize + payload - 1) / payload;
+        if (blocks >= Integer.MAX_VALUE) {
+            throw new IOException("File too large for a payload of " + payload + " bytes");
+        }
+        int lastSeq = (int) blocks; // The EOF packet
+        if (fileSize > 0) {
+            fileChannel.write(ByteBuffer.allocate(1), fileSize - 1); // Full size at once, blocks fill it in
+        }
+        ByteBuffer packet = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        ByteBuffer ack = ByteBuffer.allocateDirect(ACK_HEADER + MAX_SACK_BYTES);
+        ack.put(0, ACK);
+        ReceiveWindow window = new ReceiveWindow(RECEIVE_WINDOW, lastSeq);
+        int timeout = (int) (ABORT_TIMEOUT / 1_000_000);
+        boolean dallying = false;
+        int unacked = 0;       // Packets received since the last ACK
+        int newest = 0;        // Packet that triggers the next ACK, for the sender's RTT sample
+        long ackDeadline = 0;  // When the oldest unacknowledged packet must be acknowledged
+        ParityDecoder fec = null;
+        ByteBuffer rebuilt = ByteBuffer.allocate(payload);
+        int recovered = 0;     // Blocks rebuilt from parity
 
         while (true) {
-            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-            socket.receive(packet);
-
-            ByteArrayInputStream bais = new ByteArrayInputStream(packet.getData(), 0, packet.getLength());
-            DataInputStream dis = new DataInputStream(bais);
-            int seqNum = dis.readInt();
-            byte[] data = new byte[packet.getLength() - 4];
-            dis.readFully(data);
-
-            // Send ACK for the received packet
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeInt(seqNum);
-            byte[] ackData = baos.toByteArray();
-            DatagramPacket ackPacket = new DatagramPacket(ackData, ackData.length, address, port);
-            socket.send(ackPacket);
-
-            // Buffer the packet and check for delivery
-            if (seqNum >= base && seqNum < base + WINDOW_SIZE) {
-                packetBuffer.put(seqNum, data);
-                while (packetBuffer.containsKey(base)) {
-                    byte[] inOrderData = packetBuffer.remove(base);
-                    fos.write(inOrderData);
-                    base++;
-
-                    // Check for EOF
-                    if (inOrderData.length < 512) {
-                        eof = true;
-                    }
+            try {
+                link.receive(packet, unacked > 0 ? (int) Math.max(1, (ackDeadline - System.nanoTime() + 999_999) / 1_000_000) : timeout);
+            } catch (SocketTimeoutException e) {
+                if (unacked > 0) {
+                    sendAck(link, ack, window, newest, recovered);
+                    unacked = 0;
+                    continue;
                 }
+                if (!dallying) {
+                    System.out.println("Transfer aborted: nothing received for " + ABORT_TIMEOUT / 1_000_000_000L + " s.");
+                    fileChannel.truncate((long) window.base * payload);
+                }
+                break; // Dally over
+            }
+            if (isControl(packet)) {
+                if (reply != null) link.send(ByteBuffer.wrap(reply)); // Our FILE answer was lost
+                continue;
+            }
+            if (packet.limit() < HEADER_SIZE) continue;
+            byte type = packet.get(0);
+            int seqNum = packet.getInt(1);
+            int length = packet.limit() - HEADER_SIZE;
+            ByteBuffer data = packet;
+            int offset = HEADER_SIZE;
+            if (type == PARITY) {
+                // The group is the run of K blocks around seqNum, K being twice its lowest set bit
+                int groupSize = Integer.lowestOneBit(seqNum) * 2;
+                int first = seqNum - groupSize / 2;
+                if (seqNum <= 0 || groupSize < FEC_MIN_GROUP || groupSize > FEC_MAX_GROUP || first >= lastSeq || length != payload) continue;
+                if (fec == null) fec = new ParityDecoder(payload, window.highest + 1);
+                seqNum = fec.recover(first, Math.min(first + groupSize, lastSeq), packet, HEADER_SIZE, window, rebuilt);
+                if (seqNum == -1) continue; // Nothing or too much lost
+                length = (int) Math.min(payload, fileSize - (long) seqNum * payload);
+                data = rebuilt;
+                offset = 0;
+            } else {
+                boolean valid = type == DATA
+                        ? seqNum >= 0 && seqNum < lastSeq && length == Math.min(payload, fileSize - (long) seqNum * payload)
+                        : type == EOF && seqNum == lastSeq && length == 0;
+                if (!valid) continue;
+            }
+
+            // Write the block in its place, unless it is a duplicate
+            int base = window.base;
+            boolean stored = window.mark(seqNum);
+            if (stored) {
+                if (length > 0) {
+                    long writeStart = System.nanoTime();
+                    writeBlock(fileChannel, data, offset, length, (long) seqNum * payload);
+                    METRICS.diskWrite.since(writeStart);
+                    METRICS.bytesReceived.add(length);
+                }
+                if (fec != null && seqNum < lastSeq) fec.add(seqNum, data, offset, length);
+                if (fec != null && window.base != base) fec.release(window.base);
+                if (data == rebuilt) recovered++;
+            }
+            if (!window.received(seqNum)) continue; // Beyond the window
+
+            // Acknowledge now, or together with the next packets. A rebuilt block was sent well before
+            // the parity that completed it, so it does not name the ACK, which would skew the RTT sample
+            if (data != rebuilt) newest = seqNum;
+            unacked++;
+            boolean urgent = !stored || seqNum != base || window.base != base + 1 || window.complete;
+            if (urgent || unacked >= ACK_EVERY) {
+                sendAck(link, ack, window, newest, recovered);
+                unacked = 0;
+            } else if (unacked == 1) {
+                ackDeadline = System.nanoTime() + ACK_DELAY;
             }
 
-            // Exit condition: EOF detected and acknowledged
-            if (eof && packetBuffer.isEmpty()) {
+            // Every block and the EOF packet have been written
+            if (window.complete && !dallying) {
                 System.out.println("File received successfully.");
-                break;
+                timeout = DALLY_TIME;
+                dallying = true;
             }
         }
     } catch (IOException e) {
@@ -467,6 +1760,16 @@ private static void receiveFile(String fileName, DatagramSocket socket, InetAddr
     }
 }
 
+private static void sendAck(Link link, ByteBuffer ack, ReceiveWindow window, int newest, int recovered) throws IOException {
+    ack.clear();
+    ack.putInt(1, newest);
+    ack.putInt(5, window.base);
+    ack.putInt(9, window.capacity());
+    ack.putInt(13, recovered);
+    ack.limit(ACK_HEADER + window.sack(ack, ACK_HEADER, MAX_SACK_BYTES));
+    link.send(ack);
+}
+
 
 
 
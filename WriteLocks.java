@@ -0,0 +1,39 @@
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Targets some connection of this server is writing. SEND, SEND-DELTA and SEND-DIR need theirs to
+ * themselves; the SEND-RANGE streams of a parallel upload share the file and its journal, so they
+ * only keep out the others. A second writer is answered "ERROR File busy" instead of racing the
+ * first one over the file and its .part journal.
+ */
+class WriteLocks {
+    private static final Map<String, Integer> HELD = new HashMap<>(); // Sharing writers, or -1 for one exclusive writer
+
+    private WriteLocks() {
+    }
+
+    static synchronized boolean lock(File target, boolean shared) {
+        String key = target.getAbsolutePath();
+        Integer writers = HELD.get(key);
+        if (writers == null) {
+            HELD.put(key, shared ? 1 : -1);
+            return true;
+        }
+        if (!shared || writers < 0) return false;
+        HELD.put(key, writers + 1);
+        return true;
+    }
+
+    static synchronized void unlock(File target) {
+        String key = target.getAbsolutePath();
+        Integer writers = HELD.get(key);
+        if (writers == null) return;
+        if (writers > 1) {
+            HELD.put(key, writers - 1);
+        } else {
+            HELD.remove(key);
+        }
+    }
+}
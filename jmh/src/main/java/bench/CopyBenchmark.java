@@ -0,0 +1,114 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TCP copy loops: a file sent to a loopback socket drained by another thread, through
+ * TCPFileTransfer.sendRange with zero-copy (FileChannel.transferTo, sendfile on Linux) and with its
+ * 8 KB byte[] fallback, against a direct buffer loop with the size of the receive side's buffer.
+ * The file stays in the page cache, so this measures the copies and system calls, not the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CopyBenchmark {
+    private static final MethodHandle SEND_RANGE = Internals.method("TCPFileTransfer", "sendRange",
+            long.class, FileChannel.class, Socket.class, long.class, long.class, boolean.class);
+    private static final int DIRECT_BUFFER_SIZE = 256 * 1024; // TCPFileTransfer.RECEIVE_BUFFER_SIZE
+
+    @Param({"64"})
+    int megabytes;
+
+    private Path path;
+    private FileChannel file;
+    private long size;
+    private ServerSocketChannel listener;
+    private SocketChannel channel;
+    private Thread drain;
+    private final ByteBuffer direct = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+
+    @Setup
+    public void setup() throws IOException {
+        size = megabytes * 1024L * 1024;
+        path = Files.createTempFile("copy", ".bin");
+        byte[] block = new byte[1024 * 1024];
+        Random random = new Random(1);
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            for (long written = 0; written < size; written += block.length) {
+                random.nextBytes(block);
+                out.write(ByteBuffer.wrap(block));
+            }
+        }
+        file = FileChannel.open(path, StandardOpenOption.READ);
+
+        listener = ServerSocketChannel.open().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        channel = SocketChannel.open(listener.getLocalAddress());
+        SocketChannel peer = listener.accept();
+        drain = new Thread(() -> {
+            ByteBuffer sink = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+            try (SocketChannel in = peer) {
+                while (in.read(sink.clear()) != -1) {
+                    // Discard
+                }
+            } catch (IOException e) {
+                // Closed at teardown
+            }
+        });
+        drain.setDaemon(true);
+        drain.start();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException, InterruptedException {
+        channel.close();
+        drain.join(1000);
+        listener.close();
+        file.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public long transferTo() throws Throwable {
+        return (long) SEND_RANGE.invokeExact(file, channel.socket(), 0L, size, false);
+    }
+
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = "-Dzerocopy=false")
+    public long heapBuffer() throws Throwable {
+        return (long) SEND_RANGE.invokeExact(file, channel.socket(), 0L, size, false);
+    }
+
+    @Benchmark
+    public long directBuffer() throws IOException {
+        long position = 0;
+        while (position < size) {
+            direct.clear();
+            int read = file.read(direct, position);
+            if (read <= 0) break;
+            direct.flip();
+            while (direct.hasRemaining()) {
+                channel.write(direct);
+            }
+            position += read;
+        }
+        return position;
+    }
+}
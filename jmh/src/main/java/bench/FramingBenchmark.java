@@ -0,0 +1,118 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.*;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of a UDPFileTransferSR DATA packet, [type][seq][payload]. The stream variants
+ * frame it the way the first version of the tool did, through DataOutputStream over a
+ * ByteArrayOutputStream and DataInputStream over a ByteArrayInputStream, with new arrays per packet.
+ * The buffer variants are what the tool does now: absolute puts into one preallocated direct buffer
+ * with the payload copied from the file's memory mapping (MappedFile), and absolute gets that leave
+ * the payload where it is. parityXor is the XOR a parity group adds per block.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FramingBenchmark {
+    private static final String SR = "UDPFileTransferSR";
+    private static final MethodHandle MAPPED_FILE = Internals.constructor(SR + "$MappedFile", FileChannel.class);
+    private static final MethodHandle READ = Internals.method(SR + "$MappedFile", "read", int.class, long.class, ByteBuffer.class, int.class, int.class);
+    private static final MethodHandle XOR = Internals.method(SR, "xor", void.class, ByteBuffer.class, int.class, ByteBuffer.class, int.class, int.class);
+    private static final int HEADER_SIZE = 5;
+    private static final byte DATA = 1;
+    private static final int BLOCKS = 1024;
+
+    @Param({"1472", "8968"})
+    int payload;
+
+    private Path path;
+    private FileChannel channel;
+    private Object mappedFile;
+    private byte[] block;
+    private ByteBuffer packet;
+    private ByteBuffer parity;
+    private byte[] streamPacket;
+    private int seq;
+
+    @Setup
+    public void setup() throws Throwable {
+        block = new byte[payload];
+        new Random(1).nextBytes(block);
+        path = Files.createTempFile("framing", ".bin");
+        try (FileChannel out = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            for (int i = 0; i < BLOCKS; i++) {
+                out.write(ByteBuffer.wrap(block));
+            }
+        }
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        mappedFile = (Object) MAPPED_FILE.invokeExact(channel);
+        packet = ByteBuffer.allocateDirect(HEADER_SIZE + payload);
+        parity = ByteBuffer.allocateDirect(payload);
+        streamPacket = streamEncode();
+        packet.put(0, DATA).putInt(1, 42).put(HEADER_SIZE, block).limit(HEADER_SIZE + payload);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        channel.close();
+        Files.deleteIfExists(path);
+    }
+
+    @Benchmark
+    public byte[] streamEncode() throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(DATA);
+        dos.writeInt(seq++ & (BLOCKS - 1));
+        dos.write(block, 0, payload);
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer bufferEncode() throws Throwable {
+        int current = seq++ & (BLOCKS - 1);
+        packet.clear();
+        packet.put(0, DATA);
+        packet.putInt(1, current);
+        int length = (int) READ.invokeExact(mappedFile, (long) current * payload, packet, HEADER_SIZE, payload);
+        packet.limit(HEADER_SIZE + length);
+        return packet;
+    }
+
+    @Benchmark
+    public void streamDecode(Blackhole blackhole) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(streamPacket, 0, streamPacket.length));
+        blackhole.consume(dis.readByte());
+        blackhole.consume(dis.readInt());
+        byte[] data = new byte[streamPacket.length - HEADER_SIZE];
+        dis.readFully(data);
+        blackhole.consume(data);
+    }
+
+    @Benchmark
+    public void bufferDecode(Blackhole blackhole) {
+        blackhole.consume(packet.get(0));
+        blackhole.consume(packet.getInt(1));
+        blackhole.consume(packet.limit() - HEADER_SIZE);
+    }
+
+    @Benchmark
+    public ByteBuffer parityXor() throws Throwable {
+        XOR.invokeExact(parity, 0, packet, HEADER_SIZE, payload);
+        return parity;
+    }
+}
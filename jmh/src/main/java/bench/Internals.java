@@ -0,0 +1,75 @@
+package bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the private members of the tools, which live in the default package and so cannot be named
+ * from a benchmark (JMH wants benchmarks in a package). Types declared by the tools are erased to Object
+ * in the handles returned, so callers can use invokeExact; kept in static final fields the handles are
+ * inlined by the JIT like a direct call.
+ */
+final class Internals {
+    private Internals() {
+    }
+
+    static MethodHandle constructor(String className, Class<?>... parameters) {
+        try {
+            MethodHandles.Lookup lookup = lookup(className);
+            return erase(lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle method(String className, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            MethodHandles.Lookup lookup = lookup(className);
+            Method method = lookup.lookupClass().getDeclaredMethod(name, parameters);
+            if (method.getReturnType() != returnType) throw new NoSuchMethodException(className + "." + name + " returns " + method.getReturnType());
+            return erase(lookup.unreflect(method)); // Static or not
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle setter(String className, String name, Class<?> type) {
+        try {
+            MethodHandles.Lookup lookup = lookup(className);
+            return erase(lookup.findSetter(lookup.lookupClass(), name, type));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MethodHandle getter(String className, String name, Class<?> type) {
+        try {
+            MethodHandles.Lookup lookup = lookup(className);
+            return erase(lookup.findGetter(lookup.lookupClass(), name, type));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Private lookup in a tool class; className may name a nested class, as in UDPFileTransferSR$ReceiveWindow.
+     */
+    private static MethodHandles.Lookup lookup(String className) throws ClassNotFoundException, IllegalAccessException {
+        return MethodHandles.privateLookupIn(Class.forName(className), MethodHandles.lookup());
+    }
+
+    private static MethodHandle erase(MethodHandle handle) {
+        MethodType type = handle.type();
+        for (int i = 0; i < type.parameterCount(); i++) {
+            if (isToolType(type.parameterType(i))) type = type.changeParameterType(i, Object.class);
+        }
+        if (isToolType(type.returnType())) type = type.changeReturnType(Object.class);
+        return handle.asType(type);
+    }
+
+    private static boolean isToolType(Class<?> type) {
+        return !type.isPrimitive() && type.getPackageName().isEmpty();
+    }
+}
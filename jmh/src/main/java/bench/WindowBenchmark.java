@@ -0,0 +1,182 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Window bookkeeping of UDPFileTransferSR for one window's worth of blocks, per block. The receiver's
+ * ReceiveWindow, a ring bitmap, is set against a TreeSet of the blocks held beyond the gap and a
+ * BitSet over the whole file; the sender's SendWindow with its TimerWheel of retransmission
+ * deadlines against a PriorityQueue of deadlines. Arrival orders: in order, and with every
+ * REORDER_EVERY-th block held back REORDER_DEPTH places, the way a lost block comes back as a
+ * retransmission.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WindowBenchmark {
+    private static final String SR = "UDPFileTransferSR";
+    private static final MethodHandle RECEIVE_WINDOW = Internals.constructor(SR + "$ReceiveWindow", int.class, int.class);
+    private static final MethodHandle MARK = Internals.method(SR + "$ReceiveWindow", "mark", boolean.class, int.class);
+    private static final MethodHandle SACK = Internals.method(SR + "$ReceiveWindow", "sack", int.class, ByteBuffer.class, int.class, int.class);
+    private static final MethodHandle SEND_WINDOW = Internals.constructor(SR + "$SendWindow", int.class);
+    private static final MethodHandle SET_NEXT = Internals.setter(SR + "$SendWindow", "next", int.class);
+    private static final MethodHandle SENT = Internals.method(SR + "$SendWindow", "sent", void.class, int.class, long.class, boolean.class);
+    private static final MethodHandle ACK = Internals.method(SR + "$SendWindow", "ack", boolean.class, int.class);
+    private static final MethodHandle SLOT = Internals.method(SR + "$SendWindow", "slot", int.class, int.class);
+    private static final MethodHandle TIMER_WHEEL = Internals.constructor(SR + "$TimerWheel", int.class, long.class);
+    private static final MethodHandle SCHEDULE = Internals.method(SR + "$TimerWheel", "schedule", void.class, int.class, int.class, long.class);
+    private static final MethodHandle CANCEL = Internals.method(SR + "$TimerWheel", "cancel", void.class, int.class);
+    private static final MethodHandle POLL = Internals.method(SR + "$TimerWheel", "poll", int.class, long.class);
+
+    private static final int BLOCKS = 65536;       // UDPFileTransferSR.RECEIVE_WINDOW
+    private static final int SEND_WINDOW_SIZE = 4096;
+    private static final int ACK_EVERY = 16;       // A SACK bitmap is built this often
+    private static final int MAX_SACK_BYTES = 256;
+    private static final int REORDER_EVERY = 100;
+    private static final int REORDER_DEPTH = 32;
+    private static final long RTO = 50_000_000L;    // Beyond the ACK lag of half a send window
+    private static final long INTERVAL = 10_000L;  // Between packets, 10 us
+
+    @Param({"inOrder", "reordered"})
+    String arrival;
+
+    private int[] order;
+    private final ByteBuffer ack = ByteBuffer.allocateDirect(MAX_SACK_BYTES);
+
+    @Setup
+    public void setup() {
+        order = new int[BLOCKS];
+        for (int i = 0; i < BLOCKS; i++) {
+            order[i] = i;
+        }
+        if (arrival.equals("reordered")) {
+            Random random = new Random(1);
+            for (int i = 0; i + REORDER_DEPTH < BLOCKS; i += REORDER_EVERY) {
+                int held = order[i];
+                System.arraycopy(order, i + 1, order, i, REORDER_DEPTH);
+                order[i + REORDER_DEPTH] = held;
+                i += random.nextInt(REORDER_EVERY / 2);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public int receiveWindow() throws Throwable {
+        Object window = (Object) RECEIVE_WINDOW.invokeExact(BLOCKS, BLOCKS);
+        int sacked = 0;
+        for (int i = 0; i < BLOCKS; i++) {
+            boolean fresh = (boolean) MARK.invokeExact(window, order[i]);
+            if (fresh && i % ACK_EVERY == 0) sacked += (int) SACK.invokeExact(window, ack, 0, MAX_SACK_BYTES);
+        }
+        return sacked;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public int receiveTreeSet() {
+        TreeSet<Integer> held = new TreeSet<>();
+        int base = 0;
+        int sacked = 0;
+        for (int i = 0; i < BLOCKS; i++) {
+            int seq = order[i];
+            if (seq < base || !held.add(seq)) continue;
+            while (held.remove(base)) {
+                base++;
+            }
+            if (i % ACK_EVERY == 0) {
+                ack.clear();
+                for (int s : held.headSet(base + 1 + MAX_SACK_BYTES * 8)) {
+                    int bit = s - base - 1;
+                    ack.put(bit >>> 3, (byte) (ack.get(bit >>> 3) | 1 << (bit & 7)));
+                }
+                sacked += held.isEmpty() ? 0 : Math.min(MAX_SACK_BYTES, (held.last() - base + 7) / 8);
+            }
+        }
+        return sacked;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public int receiveBitSet() {
+        BitSet held = new BitSet(BLOCKS);
+        int base = 0;
+        int sacked = 0;
+        for (int i = 0; i < BLOCKS; i++) {
+            int seq = order[i];
+            if (seq < base || held.get(seq)) continue;
+            held.set(seq);
+            base = held.nextClearBit(base);
+            if (i % ACK_EVERY == 0) {
+                int highest = held.length() - 1;
+                int bytes = Math.max(0, Math.min(MAX_SACK_BYTES, (highest - base + 7) / 8));
+                byte[] bitmap = held.get(base + 1, base + 1 + bytes * 8).toByteArray();
+                ack.clear().put(bitmap, 0, Math.min(bitmap.length, bytes));
+                sacked += bytes;
+            }
+        }
+        return sacked;
+    }
+
+    /**
+     * Sender side: every block is sent with a deadline RTO ahead, acknowledged in the arrival order a
+     * window later, and the due timers are polled after every ACK.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public int sendTimerWheel() throws Throwable {
+        Object window = (Object) SEND_WINDOW.invokeExact(SEND_WINDOW_SIZE);
+        Object timers = (Object) TIMER_WHEEL.invokeExact(SEND_WINDOW_SIZE, 0L);
+        int expired = 0;
+        int moved = 0;
+        long now = 0;
+        int acked = 0;
+        for (int seq = 0; seq < BLOCKS; seq++) {
+            now += INTERVAL;
+            SET_NEXT.invokeExact(window, seq + 1);
+            SENT.invokeExact(window, seq, now, false);
+            SCHEDULE.invokeExact(timers, (int) SLOT.invokeExact(window, seq), seq, now + RTO);
+            for (; acked <= seq - SEND_WINDOW_SIZE / 2; acked++) {
+                int ackSeq = order[acked];
+                if ((boolean) ACK.invokeExact(window, ackSeq)) moved++;
+                CANCEL.invokeExact(timers, (int) SLOT.invokeExact(window, ackSeq));
+                while ((int) POLL.invokeExact(timers, now) >= 0) {
+                    expired++;
+                }
+            }
+        }
+        return expired + moved;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BLOCKS)
+    public int sendPriorityQueue() {
+        PriorityQueue<long[]> timers = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        boolean[] acknowledged = new boolean[BLOCKS];
+        int expired = 0;
+        long now = 0;
+        int acked = 0;
+        for (int seq = 0; seq < BLOCKS; seq++) {
+            now += INTERVAL;
+            timers.add(new long[]{now + RTO, seq});
+            for (; acked <= seq - SEND_WINDOW_SIZE / 2; acked++) {
+                acknowledged[order[acked]] = true;
+                while (!timers.isEmpty() && (acknowledged[(int) timers.peek()[1]] || timers.peek()[0] <= now)) {
+                    if (!acknowledged[(int) timers.poll()[1]]) expired++;
+                }
+            }
+        }
+        return expired;
+    }
+}
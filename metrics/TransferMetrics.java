@@ -0,0 +1,357 @@
+package metrics;
+
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+
+/**
+ * Counters of one transfer engine (tcp, simpletcp, udp, udpsr), shared by every transfer of the
+ * process. Counters are LongAdders, striped per thread under contention, so the hot paths only pay an
+ * uncontended add. Bytes are file data, packets are datagrams of either kind; a TCP engine has no
+ * packets, retransmissions or RTT of its own, the kernel keeps those.
+ *
+ * A server process calls export(): every engine then shows up as the MBean
+ * filetransfer:type=TransferMetrics,engine=NAME, and with -Dmetrics.port=N all of them are served in
+ * the Prometheus text format at http://host:N/metrics. Any process run with -Dmetrics.summary=true
+ * prints the counters of its engines when it exits, which is how TransferBenchmark reads a client's.
+ */
+public final class TransferMetrics implements TransferMetricsMBean {
+    private static final Map<String, TransferMetrics> ENGINES = new ConcurrentHashMap<>();
+    private static final int PORT = Integer.getInteger("metrics.port", 0); // -Dmetrics.port=N, 0 = no endpoint
+    private static final long RATE_INTERVAL = 1000;                       // ms between rate samples
+    private static final boolean SUMMARY = Boolean.getBoolean("metrics.summary");
+    private static boolean exported;
+    private static boolean summaryHooked;
+
+    public final LongAdder bytesSent = new LongAdder();
+    public final LongAdder bytesReceived = new LongAdder();
+    public final LongAdder packetsSent = new LongAdder();
+    public final LongAdder packetsReceived = new LongAdder();
+    public final LongAdder retransmissions = new LongAdder();
+    public final LongAdder duplicateAcks = new LongAdder();
+    public final LongAdder activeSessions = new LongAdder();
+    public final Histogram rtt = new Histogram();
+    public final Histogram diskWrite = new Histogram(); // A write of received data to the file
+    public final Histogram diskSync = new Histogram();  // A force before the journal records the data
+
+    private final String engine;
+    private final Set<IntSupplier> windows = ConcurrentHashMap.newKeySet();
+    private volatile double bytesPerSecond;
+    private volatile double packetsPerSecond;
+    private long lastBytes;
+    private long lastPackets;
+
+    private TransferMetrics(String engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * The counters of engine, created on first use.
+     */
+    public static TransferMetrics of(String engine) {
+        TransferMetrics metrics = ENGINES.computeIfAbsent(engine, TransferMetrics::new);
+        synchronized (TransferMetrics.class) {
+            if (exported) metrics.register();
+            if (SUMMARY && !summaryHooked) {
+                summaryHooked = true;
+                Runtime.getRuntime().addShutdownHook(new Thread(TransferMetrics::printSummary, "metrics-summary"));
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * One line per engine: "metrics ENGINE name=value ...", for -Dmetrics.summary.
+     */
+    private static void printSummary() {
+        for (TransferMetrics m : ENGINES.values()) {
+            System.out.println("metrics " + m.engine + " bytesSent=" + m.bytesSent.sum() + " bytesReceived=" + m.bytesReceived.sum()
+                    + " packetsSent=" + m.packetsSent.sum() + " packetsReceived=" + m.packetsReceived.sum()
+                    + " retransmissions=" + m.retransmissions.sum() + " duplicateAcks=" + m.duplicateAcks.sum());
+        }
+    }
+
+    /**
+     * Registers the MBeans of every engine, now and to come, samples their rates every second and
+     * starts the Prometheus endpoint if -Dmetrics.port is set. Called once by a server at startup.
+     */
+    public static synchronized void export() throws IOException {
+        if (exported) return;
+        exported = true;
+        for (TransferMetrics metrics : ENGINES.values()) {
+            metrics.register();
+        }
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(() -> ENGINES.values().forEach(TransferMetrics::sampleRates),
+                RATE_INTERVAL, RATE_INTERVAL, TimeUnit.MILLISECONDS);
+
+        if (PORT > 0) {
+            HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.setExecutor(sampler);
+            server.start();
+            System.out.println("Metrics at http://localhost:" + PORT + "/metrics");
+        }
+    }
+
+    private void register() {
+        try {
+            ObjectName name = new ObjectName("filetransfer:type=TransferMetrics,engine=" + engine);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            System.out.println("Failed to register metrics MBean: " + e.getMessage());
+        }
+    }
+
+    private void sampleRates() {
+        long bytes = bytesSent.sum() + bytesReceived.sum();
+        long packets = packetsSent.sum() + packetsReceived.sum();
+        bytesPerSecond = (bytes - lastBytes) * 1000.0 / RATE_INTERVAL;
+        packetsPerSecond = (packets - lastPackets) * 1000.0 / RATE_INTERVAL;
+        lastBytes = bytes;
+        lastPackets = packets;
+    }
+
+    /**
+     * Adds a sender's window to the occupancy gauge: occupancy gives its packets in flight and is only
+     * read when the gauge is. Returns it for windowClosed.
+     */
+    public IntSupplier windowOpened(IntSupplier occupancy) {
+        windows.add(occupancy);
+        return occupancy;
+    }
+
+    /**
+     * Removes a window added by windowOpened; null is ignored, for a transfer that failed before it had one.
+     */
+    public void windowClosed(IntSupplier occupancy) {
+        if (occupancy != null) windows.remove(occupancy);
+    }
+
+    // MBean attributes
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getPacketsSent() {
+        return packetsSent.sum();
+    }
+
+    @Override
+    public long getPacketsReceived() {
+        return packetsReceived.sum();
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public double getPacketsPerSecond() {
+        return packetsPerSecond;
+    }
+
+    @Override
+    public long getRetransmissions() {
+        return retransmissions.sum();
+    }
+
+    @Override
+    public long getDuplicateAcks() {
+        return duplicateAcks.sum();
+    }
+
+    @Override
+    public long getActiveSessions() {
+        return activeSessions.sum();
+    }
+
+    @Override
+    public long getWindowOccupancy() {
+        long occupancy = 0;
+        for (IntSupplier window : windows) {
+            occupancy += window.getAsInt();
+        }
+        return occupancy;
+    }
+
+    @Override
+    public double getRttMeanMicros() {
+        return rtt.mean() / 1000;
+    }
+
+    @Override
+    public double getRttP99Micros() {
+        return rtt.quantile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getDiskWriteMeanMicros() {
+        return diskWrite.mean() / 1000;
+    }
+
+    @Override
+    public double getDiskWriteP99Micros() {
+        return diskWrite.quantile(0.99) / 1000.0;
+    }
+
+    @Override
+    public double getDiskSyncMeanMicros() {
+        return diskSync.mean() / 1000;
+    }
+
+    /**
+     * All engines in the Prometheus text exposition format, one family per counter with an engine label.
+     */
+    static String prometheus() {
+        StringBuilder out = new StringBuilder();
+        single(out, "bytes_sent_total", "File data bytes sent, retransmissions included.", "counter", m -> m.bytesSent.sum());
+        single(out, "bytes_received_total", "File data bytes received.", "counter", m -> m.bytesReceived.sum());
+        single(out, "packets_sent_total", "Datagrams sent.", "counter", m -> m.packetsSent.sum());
+        single(out, "packets_received_total", "Datagrams received.", "counter", m -> m.packetsReceived.sum());
+        single(out, "retransmissions_total", "Data packets sent again.", "counter", m -> m.retransmissions.sum());
+        single(out, "duplicate_acks_total", "ACKs that acknowledged nothing new.", "counter", m -> m.duplicateAcks.sum());
+        single(out, "active_sessions", "Transfers being served.", "gauge", m -> m.activeSessions.sum());
+        single(out, "window_occupancy_packets", "Packets in flight over all send windows.", "gauge", TransferMetrics::getWindowOccupancy);
+        histogram(out, "rtt_seconds", "Round trip times measured by the senders.", m -> m.rtt);
+        histogram(out, "disk_write_seconds", "Latency of writing received data to the file.", m -> m.diskWrite);
+        histogram(out, "disk_sync_seconds", "Latency of forcing received data to disk.", m -> m.diskSync);
+        return out.toString();
+    }
+
+    private interface Value {
+        long of(TransferMetrics metrics);
+    }
+
+    private static void single(StringBuilder out, String name, String help, String type, Value value) {
+        family(out, name, help, type);
+        for (TransferMetrics metrics : ENGINES.values()) {
+            out.append("filetransfer_").append(name).append("{engine=\"").append(metrics.engine).append("\"} ")
+                    .append(value.of(metrics)).append('\n');
+        }
+    }
+
+    private static void histogram(StringBuilder out, String name, String help, Function<TransferMetrics, Histogram> histogram) {
+        family(out, name, help, "histogram");
+        for (TransferMetrics metrics : ENGINES.values()) {
+            Histogram h = histogram.apply(metrics);
+            String prefix = "filetransfer_" + name;
+            String label = "{engine=\"" + metrics.engine + "\"";
+            long cumulative = 0;
+            for (int i = 0; i <= Histogram.BUCKETS; i++) {
+                cumulative += h.buckets[i].sum();
+                String le = i == Histogram.BUCKETS ? "+Inf" : String.format(Locale.ROOT, "%.6g", Histogram.bound(i) / 1e9);
+                out.append(prefix).append("_bucket").append(label).append(",le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(prefix).append("_sum").append(label).append("} ").append(String.format(Locale.ROOT, "%.9f", h.sum.sum() / 1e9)).append('\n');
+            out.append(prefix).append("_count").append(label).append("} ").append(cumulative).append('\n');
+        }
+    }
+
+    private static void family(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP filetransfer_").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE filetransfer_").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Durations in nanoseconds, counted in power-of-two buckets from 1024 ns (about a microsecond) to
+     * about a minute, one LongAdder each, so recording is a leading-zero count and an add.
+     */
+    public static final class Histogram {
+        static final int BUCKETS = 27;
+        private static final int FIRST_SHIFT = 10; // Upper bound of bucket i: 1024 << i ns
+
+        final LongAdder[] buckets = new LongAdder[BUCKETS + 1]; // The last one is +Inf
+        final LongAdder sum = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        static long bound(int bucket) {
+            return 1L << (FIRST_SHIFT + bucket);
+        }
+
+        public void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            int bucket = Math.min(BUCKETS, Long.SIZE - Long.numberOfLeadingZeros(Math.max(0, nanos - 1) >> FIRST_SHIFT));
+            buckets[bucket].increment();
+            sum.add(nanos);
+        }
+
+        /**
+         * Records the time since start, a System.nanoTime() reading.
+         */
+        public void since(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        double mean() {
+            long count = 0;
+            for (LongAdder bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        /**
+         * Upper bound of the bucket holding quantile q, in nanoseconds; 0 when empty.
+         */
+        double quantile(double q) {
+            long[] counts = new long[buckets.length];
+            long count = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length && count > 0; i++) {
+                seen += counts[i];
+                if (seen >= rank) return i == BUCKETS ? Double.POSITIVE_INFINITY : bound(i);
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package metrics;
+
+/**
+ * JMX view of TransferMetrics. Rates are over the last second; latencies are in microseconds, the
+ * 99th percentiles rounded up to their histogram bucket.
+ */
+public interface TransferMetricsMBean {
+    long getBytesSent();
+
+    long getBytesReceived();
+
+    long getPacketsSent();
+
+    long getPacketsReceived();
+
+    double getBytesPerSecond();
+
+    double getPacketsPerSecond();
+
+    long getRetransmissions();
+
+    long getDuplicateAcks();
+
+    long getActiveSessions();
+
+    long getWindowOccupancy();
+
+    double getRttMeanMicros();
+
+    double getRttP99Micros();
+
+    double getDiskWriteMeanMicros();
+
+    double getDiskWriteP99Micros();
+
+    double getDiskSyncMeanMicros();
+}
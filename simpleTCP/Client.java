@@ -1,7 +1,19 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import transfer.Compression;
+import transfer.ConnectionPool;
+import transfer.DirectoryTransfer;
+import transfer.Journal;
 
 public class Client {
+    private static final int PIPELINE_DEPTH = 16; // RECEIVE commands kept ahead of the answer being read
+    private static final ConnectionPool POOL = new ConnectionPool();
+
     private final String serverAddress;
     private final int port;
 
@@ -11,57 +23,137 @@ public class Client {
     }
 
     public void sendFile(String filename) throws IOException {
-        try (Socket socket = new Socket(serverAddress, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             FileInputStream fis = new FileInputStream(filename)) {
+        // Connections come from the pool and go back to it, so they must not be closed through their streams
+        Socket socket = POOL.borrow(serverAddress, port);
+        boolean reusable = false;
+        try {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
 
             File file = new File(filename);
             long fileSize = file.length();
-            String command = "SEND " + filename + " " + fileSize;
+            String command = "SEND " + filename + " " + fileSize + " RESUME" + (Compression.ENABLED ? " " + Compression.TOKEN : "");
             out.println(command);
 
-            String response = in.readLine();
-            if (response.startsWith("ERROR")) {
+            String response = TransferEngine.readLine(socket.getInputStream());
+            if (response == null || response.startsWith("ERROR")) {
                 System.err.println(response);
+                reusable = response != null;
                 return;
             }
 
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                socket.getOutputStream().write(buffer, 0, bytesRead);
+            String[] parts = response.split(" ");
+            long offset = parts.length > 3 ? Long.parseLong(parts[3]) : 0;
+            if (offset > 0) {
+                System.out.println("Resuming upload at byte " + offset);
             }
+            boolean compressed = parts[parts.length - 1].equals(Compression.TOKEN);
+            reusable = TransferEngine.sendFile(file, socket, offset, compressed) == fileSize - offset;
+        } finally {
+            POOL.release(serverAddress, port, socket, reusable);
         }
     }
 
-    public void receiveFile(String filename) throws IOException {
-        try (Socket socket = new Socket(serverAddress, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-             FileOutputStream fos = new FileOutputStream(filename)) {
-
-            String command = "RECEIVE " + filename;
-            out.println(command);
+    /**
+     * Uploads a whole directory tree over one connection, see DirectoryTransfer.
+     */
+    public void sendDirectory(String dirname) throws IOException {
+        Path root = Paths.get(dirname).toAbsolutePath().normalize();
+        if (!Files.isDirectory(root) || root.getFileName() == null) {
+            System.err.println("Directory not found: " + dirname);
+            return;
+        }
 
-            String response = in.readLine();
-            if (response.startsWith("ERROR")) {
+        Socket socket = POOL.borrow(serverAddress, port);
+        boolean reusable = false;
+        try {
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            out.println(DirectoryTransfer.COMMAND + " " + root.getFileName());
+            String response = TransferEngine.readLine(socket.getInputStream());
+            if (response == null || !response.equals("READY")) {
                 System.err.println(response);
+                reusable = response != null;
                 return;
             }
 
-            String[] parts = response.split(" ");
-            if (!parts[0].toUpperCase().equals("FILE") || parts.length < 3) {
-                System.err.println("Invalid FILE response");
+            DirectoryTransfer.Summary tree = DirectoryTransfer.send(root, socket,
+                    (fileChannel, target, length) -> TransferEngine.sendRange(fileChannel, target, 0, length, false), TransferEngine.METRICS);
+            response = TransferEngine.readLine(socket.getInputStream());
+            reusable = response != null;
+            if (response == null || !response.startsWith("OK")) {
+                System.err.println(response);
                 return;
             }
-            
-            long fileSize = Long.parseLong(parts[2]);
-            byte[] buffer = new byte[8192];
-            int bytesRead;
-            while ((bytesRead = socket.getInputStream().read(buffer)) != -1) {
-                fos.write(buffer, 0, bytesRead);
+            System.out.println("Directory sent: " + dirname + " (" + tree.files + " files, " + tree.bytes + " bytes)");
+        } finally {
+            POOL.release(serverAddress, port, socket, reusable);
+        }
+    }
+
+    public void receiveFile(String filename) throws IOException {
+        receiveFiles(Collections.singletonList(filename));
+    }
+
+    /**
+     * Downloads the files in turn over one pooled connection, keeping up to PIPELINE_DEPTH RECEIVE
+     * commands ahead of the answer being read, so the server moves on to the next file without waiting
+     * a round trip for the request.
+     */
+    public void receiveFiles(List<String> filenames) throws IOException {
+        Socket socket = POOL.borrow(serverAddress, port);
+        boolean reusable = false;
+        try {
+            PrintWriter out = new PrintWriter(socket.getOutputStream());
+            long[] offsets = new long[filenames.size()];
+            int requested = 0;
+            for (int i = 0; i < filenames.size(); i++) {
+                while (requested < filenames.size() && requested < i + PIPELINE_DEPTH) {
+                    // Ask only for the tail if an interrupted download left a journal behind
+                    String filename = filenames.get(requested);
+                    offsets[requested] = Journal.verifiedBytes(new File(filename), -1);
+                    out.println("RECEIVE " + filename + (offsets[requested] > 0 ? " " + offsets[requested] : "") + (Compression.ENABLED ? " " + Compression.TOKEN : ""));
+                    requested++;
+                }
+                out.flush();
+                if (!receiveAnswer(filenames.get(i), offsets[i], socket)) return;
             }
+            reusable = true;
+        } finally {
+            POOL.release(serverAddress, port, socket, reusable);
+        }
+    }
+
+    /**
+     * Reads the answer to one RECEIVE and the file data that follows it. Returns whether the connection
+     * is still in step with the server: true after an ERROR answer or a complete file.
+     */
+    private boolean receiveAnswer(String filename, long offset, Socket socket) throws IOException {
+        String response = TransferEngine.readLine(socket.getInputStream());
+        if (response == null || response.startsWith("ERROR")) {
+            System.err.println(response);
+            return response != null;
+        }
+
+        String[] parts = response.split(" ");
+        if (!parts[0].toUpperCase().equals("FILE") || parts.length < 3) {
+            System.err.println("Invalid FILE response");
+            return false;
+        }
+
+        File file = new File(filename);
+        long fileSize = Long.parseLong(parts[2]);
+        if (offset > 0 && Journal.verifiedBytes(file, fileSize) != offset) {
+            System.err.println("File changed on the server, delete " + filename + ".part and retry");
+            return false;
+        }
+        if (offset > 0) {
+            System.out.println("Resuming download at byte " + offset);
+        }
+        boolean compressed = parts[parts.length - 1].equals(Compression.TOKEN);
+        long received = TransferEngine.receiveFile(file, socket, offset, fileSize, compressed);
+        if (received < fileSize) {
+            System.err.println("Incomplete file: received " + received + " of " + fileSize + " bytes");
+            return false;
         }
+        return true;
     }
 }
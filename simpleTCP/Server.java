@@ -1,58 +1,249 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import metrics.TransferMetrics;
+import transfer.Compression;
+import transfer.DirectoryTransfer;
+import transfer.Journal;
 
 public class Server {
+    public static final String VIRTUAL = "virtual";
+    public static final String PLATFORM = "platform";
+    public static final int DEFAULT_MAX_TRANSFERS = 256;
+    // Open sessions, busy or idle; accepting stops at this many
+    private static final int MAX_CONNECTIONS = Integer.getInteger("max.connections", 1024);
+    private static final long STATS_INTERVAL_MS = 10_000;
+    private static final int IDLE_TIMEOUT_MS = Integer.getInteger("idle.timeout", 60) * 1000;
+
     private final int port;
     private final String folder;
+    private final String executorMode;
+    private final int maxTransfers;
+    private final int maxConnections;
+    private final Semaphore transferSlots;
+    private final Semaphore connectionSlots;
+
+    private final AtomicInteger activeTransfers = new AtomicInteger();
+    private final AtomicLong acceptedConnections = new AtomicLong();
+    private final AtomicLong setupNanos = new AtomicLong();
+    private long idleHeap; // Heap in use before the first connection, the base of the per-session figure
+    private boolean virtualThreads; // False in PLATFORM mode and when virtual threads are not available
 
     public Server(int port, String folder) {
+        this(port, folder, VIRTUAL, DEFAULT_MAX_TRANSFERS);
+    }
+
+    /**
+     * @param executorMode VIRTUAL for one virtual thread per connection, PLATFORM for a fixed pool of one thread per
+     *                     connection allowed (-Dmax.connections, default 1024, at least maxTransfers)
+     * @param maxTransfers commands served at once; a session holds a slot from reading a command to its answer,
+     *                     not while it waits for the next one, and further commands wait until a slot frees up
+     */
+    public Server(int port, String folder, String executorMode, int maxTransfers) {
+        if (!VIRTUAL.equalsIgnoreCase(executorMode) && !PLATFORM.equalsIgnoreCase(executorMode)) {
+            throw new IllegalArgumentException("Unknown executor mode " + executorMode + ", use " + VIRTUAL + " or " + PLATFORM);
+        }
         this.port = port;
         this.folder = folder;
+        this.executorMode = executorMode;
+        this.maxTransfers = maxTransfers;
+        this.maxConnections = Math.max(maxTransfers, MAX_CONNECTIONS);
+        this.transferSlots = new Semaphore(maxTransfers);
+        this.connectionSlots = new Semaphore(maxConnections);
     }
 
     public void start() throws IOException {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Server listening on port " + port);
+        ExecutorService executor = createExecutor();
+        idleHeap = usedHeap();
+        startStatsReporter();
+        TransferMetrics.export();
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            System.out.println("Server listening on port " + port + " (" + executorMode + " threads, max " + maxTransfers + " transfers, " + maxConnections + " connections)");
             while (true) {
-                Socket socket = serverSocket.accept();
-                new Thread(new ClientHandler(socket, folder)).start();
+                // Backpressure: do not accept past maxConnections sessions; transfers are limited per command
+                connectionSlots.acquireUninterruptibly();
+                Socket socket;
+                try {
+                    socket = serverChannel.accept().socket();
+                } catch (IOException e) {
+                    connectionSlots.release();
+                    throw e;
+                }
+                long acceptedAt = System.nanoTime();
+                acceptedConnections.incrementAndGet();
+                ClientHandler handler = new ClientHandler(socket, folder, this);
+                executor.execute(() -> {
+                    setupNanos.addAndGet(System.nanoTime() - acceptedAt);
+                    TransferEngine.METRICS.activeSessions.increment();
+                    try {
+                        handler.run();
+                    } finally {
+                        TransferEngine.METRICS.activeSessions.decrement();
+                        connectionSlots.release();
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private ExecutorService createExecutor() {
+        if (VIRTUAL.equalsIgnoreCase(executorMode)) {
+            try {
+                // Looked up reflectively so the class still compiles and runs on JDKs without virtual threads
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                virtualThreads = true;
+                return executor;
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads need JDK 21, falling back to a platform thread pool");
             }
         }
+        return Executors.newFixedThreadPool(maxConnections);
     }
 
+    /**
+     * Waits for a transfer slot for the command just read; every call is paired with endTransfer.
+     */
+    void beginTransfer() {
+        transferSlots.acquireUninterruptibly();
+        activeTransfers.incrementAndGet();
+    }
+
+    void endTransfer() {
+        activeTransfers.decrementAndGet();
+        transferSlots.release();
+    }
+
+    /**
+     * Periodically prints the average accept-to-handler latency, the heap in use and the thread count,
+     * so the executor modes can be compared under the same load. Next to the latency goes the memory
+     * per open session: the heap grown since startup shared among them, which holds a virtual thread's
+     * stack, plus on platform threads the stack each session's thread reserves (-Xss).
+     */
+    private void startStatsReporter() {
+        Thread reporter = new Thread(() -> {
+            long lastAccepted = 0;
+            while (true) {
+                try {
+                    Thread.sleep(STATS_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long accepted = acceptedConnections.get();
+                if (accepted == lastAccepted && activeTransfers.get() == 0) continue;
+                lastAccepted = accepted;
+
+                int active = activeTransfers.get();
+                long usedHeap = usedHeap();
+                long sessions = TransferEngine.METRICS.activeSessions.sum();
+                long heapPerSession = sessions == 0 ? 0 : Math.max(0, usedHeap - idleHeap) / sessions;
+                long stackPerSession = virtualThreads ? 0 : threadStackSize();
+                System.out.printf("[%s] accepted=%d active=%d setup=%.1f us sessions=%d memory/session=%d KB (heap %d KB + stack %d KB) heap=%d MB threads=%d%n",
+                        executorMode, accepted, active,
+                        accepted == 0 ? 0.0 : setupNanos.get() / 1000.0 / accepted,
+                        sessions, (heapPerSession + stackPerSession) / 1024,
+                        heapPerSession / 1024, stackPerSession / 1024,
+                        usedHeap / 1024 / 1024,
+                        ManagementFactory.getThreadMXBean().getThreadCount());
+            }
+        }, "server-stats");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Stack reserved for a platform thread: -Xss as HotSpot reports it, or its 1 MB default elsewhere.
+     */
+    private static long threadStackSize() {
+        try {
+            com.sun.management.HotSpotDiagnosticMXBean hotSpot =
+                    ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+            long kilobytes = Long.parseLong(hotSpot.getVMOption("ThreadStackSize").getValue());
+            if (kilobytes > 0) return kilobytes * 1024;
+        } catch (RuntimeException | LinkageError e) {
+            // Not a HotSpot VM
+        }
+        return 1024 * 1024;
+    }
+
+    /**
+     * Serves one connection, command after command until the client closes it or stays silent for
+     * IDLE_TIMEOUT_MS, so a client can reuse it for many transfers and pipeline its requests. Each
+     * command takes a transfer slot of the server once it has been read and gives it back before the
+     * next one is awaited, so idle sessions hold none.
+     */
     static class ClientHandler implements Runnable {
         private final Socket clientSocket;
         private final String folder;
+        private final Server server;
 
-        public ClientHandler(Socket socket, String folder) {
+        public ClientHandler(Socket socket, String folder, Server server) {
             this.clientSocket = socket;
             this.folder = folder;
+            this.server = server;
         }
 
         @Override
         public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-                 PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                 DataOutputStream dataOut = new DataOutputStream(clientSocket.getOutputStream());
-                 DataInputStream dataIn = new DataInputStream(clientSocket.getInputStream())) {
-
-                String command = in.readLine();
-                if (command == null || command.isEmpty()) {
-                    sendResponse(out, "ERROR", "Invalid command");
-                    return;
-                }
-
-                String[] parts = command.split(" ");
-                String action = parts[0];
-                switch (action.toUpperCase()) {
-                    case "SEND":
-                        handleSend(parts, dataIn);
-                        break;
-                    case "RECEIVE":
-                        handleReceive(parts, out, dataOut);
-                        break;
-                    default:
+            try (PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
+                 DataOutputStream dataOut = new DataOutputStream(clientSocket.getOutputStream())) {
+                clientSocket.setSoTimeout(IDLE_TIMEOUT_MS);
+                // Not buffered: bodies are read from the socket, and pipelined commands wait there for their
+                // turn. A directory tree is read through a buffer, which pushes its read-ahead back here
+                PushbackInputStream in = new PushbackInputStream(clientSocket.getInputStream(), DirectoryTransfer.BUFFER_SIZE);
+                while (true) {
+                    String command;
+                    try {
+                        command = TransferEngine.readLine(in);
+                    } catch (SocketTimeoutException e) {
+                        return; // Idle session
+                    }
+                    if (command == null) return;
+                    if (command.isEmpty()) {
                         sendResponse(out, "ERROR", "Invalid command");
+                        continue;
+                    }
+
+                    String[] parts = command.split(" ");
+                    String action = parts[0];
+                    // A trailing DEFLATE asks for a compressed body, agreed to by echoing it on the FILE line
+                    boolean compressed = parts.length > 2 && parts[parts.length - 1].equalsIgnoreCase(Compression.TOKEN);
+                    if (compressed) {
+                        parts = Arrays.copyOf(parts, parts.length - 1);
+                    }
+                    server.beginTransfer();
+                    try {
+                        switch (action.toUpperCase()) {
+                            case "SEND":
+                                handleSend(parts, compressed);
+                                break;
+                            case "RECEIVE":
+                                handleReceive(parts, out, dataOut, compressed);
+                                break;
+                            case DirectoryTransfer.COMMAND:
+                                handleSendDirectory(parts, in, out);
+                                break;
+                            default:
+                                sendResponse(out, "ERROR", "Invalid command");
+                        }
+                    } finally {
+                        server.endTransfer();
+                    }
                 }
             } catch (IOException e) {
                 System.err.println("Error handling client: " + e.getMessage());
@@ -69,29 +260,53 @@ public class Server {
             out.println(responseType.toUpperCase() + " " + message);
         }
 
-        private void handleSend(String[] parts, DataInputStream dataIn) throws IOException {
+        private void handleSend(String[] parts, boolean compressed) throws IOException {
             if (parts.length < 3) {
                 sendResponse(new PrintWriter(clientSocket.getOutputStream(), true), "ERROR", "Invalid SEND command");
                 return;
             }
 			
             String filename = parts[1];
-			sendResponse(new PrintWriter(clientSocket.getOutputStream(), true), "FILE", filename );
             long fileSize = Long.parseLong(parts[2]);
             File file = new File(folder, filename);
 
-            try (FileOutputStream fos = new FileOutputStream(file)) {
-                byte[] buffer = new byte[8192];
-                int bytesRead;
-                while ((bytesRead = dataIn.read(buffer)) != -1) {
-                    fos.write(buffer, 0, bytesRead);
-                }
+            // SEND filename filesize RESUME: answer with the offset already on disk so only the tail is sent
+            boolean resume = parts.length > 3 && parts[3].equalsIgnoreCase("RESUME");
+            long offset = resume ? Journal.verifiedBytes(file, fileSize) : 0;
+			sendResponse(new PrintWriter(clientSocket.getOutputStream(), true), "FILE", (resume ? filename + " " + fileSize + " " + offset : filename) + (compressed ? " " + Compression.TOKEN : ""));
+
+            long received = TransferEngine.receiveFile(file, clientSocket, offset, fileSize, compressed);
+            if (received < fileSize) {
+                System.err.println("Incomplete file " + filename + ": received " + received + " of " + fileSize + " bytes");
             }
 
             
         }
 
-        private void handleReceive(String[] parts, PrintWriter out, DataOutputStream dataOut) throws IOException {
+        /**
+         * SEND-DIR name: answers READY, reads the tree into folder/name and answers "OK files", or ERROR
+         * when some file could not be written.
+         */
+        private void handleSendDirectory(String[] parts, PushbackInputStream in, PrintWriter out) throws IOException {
+            Path base = Paths.get(folder).toAbsolutePath().normalize();
+            Path root = parts.length == 2 ? DirectoryTransfer.entryPath(base, parts[1]) : null;
+            if (root == null || root.equals(base)) {
+                sendResponse(out, "ERROR", "Invalid SEND-DIR command");
+                return;
+            }
+            Files.createDirectories(root);
+            out.println("READY");
+
+            DirectoryTransfer.Summary tree = DirectoryTransfer.receive(root, in, TransferEngine.METRICS);
+            if (tree.failed > 0) {
+                sendResponse(out, "ERROR", tree.failed + " files not written, first " + tree.firstFailure);
+                return;
+            }
+            sendResponse(out, "OK", String.valueOf(tree.files));
+            System.out.println("Directory received: " + root + " (" + tree.files + " files)");
+        }
+
+        private void handleReceive(String[] parts, PrintWriter out, DataOutputStream dataOut, boolean compressed) throws IOException {
             if (parts.length < 2) {
                 out.println("ERROR Invalid RECEIVE command");
                 return;
@@ -104,14 +319,15 @@ public class Server {
                 return;
             }
 
-            out.println("FILE " + filename + " " + file.length());
-            byte[] buffer = new byte[8192];
-            try (FileInputStream fis = new FileInputStream(file)) {
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    dataOut.write(buffer, 0, bytesRead);
-                }
+            // RECEIVE filename offset: the client already holds the first offset bytes
+            long offset = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+            if (offset < 0 || offset > file.length()) {
+                sendResponse(out, "ERROR", "Invalid offset " + offset);
+                return;
             }
+
+            out.println("FILE " + filename + " " + file.length() + (compressed ? " " + Compression.TOKEN : ""));
+            TransferEngine.sendFile(file, clientSocket, offset, compressed);
         }
     }
 }
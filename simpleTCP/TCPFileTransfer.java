@@ -6,9 +6,12 @@ import java.net.*;
 import java.io.IOException;
 
 public class TCPFileTransfer {
+    public static final int PORT = Integer.parseInt(System.getProperty("port", "9876"));
+
     public static void main(String[] args) throws IOException {
         if (args.length == 0) {
-            System.err.println("Usage: SERVER [folder] | SEND filename [server] | RECEIVE filename [server]");
+            System.err.println("Usage: SERVER [folder] [virtual|platform] [maxTransfers] | SEND filename [server] | SEND-DIR folder [server] | SEND-FILES server filename... | RECEIVE filename [server] | RECEIVE-FILES server filename...");
+            System.err.println("Build from simpleTCP with the shared metrics package: javac -d out *.java ../metrics/*.java");
             return;
         }
 
@@ -16,7 +19,13 @@ public class TCPFileTransfer {
         switch (mode) {
             case "SERVER":
                 String folder = args.length > 1 ? args[1] : ".";
-                new Server(9876, folder).start();
+                String executorMode = args.length > 2 ? args[2].toLowerCase() : Server.VIRTUAL;
+                if (!executorMode.equals(Server.VIRTUAL) && !executorMode.equals(Server.PLATFORM)) {
+                    System.err.println("Usage: SERVER [folder] [virtual|platform] [maxTransfers]");
+                    return;
+                }
+                int maxTransfers = args.length > 3 ? Integer.parseInt(args[3]) : Server.DEFAULT_MAX_TRANSFERS;
+                new Server(PORT, folder, executorMode, maxTransfers).start();
                 break;
             case "SEND":
                 if (args.length < 2) {
@@ -24,7 +33,33 @@ public class TCPFileTransfer {
                     return;
                 }
                 String server = args.length > 2 ? args[2] : "localhost";
-                new Client(server, 9876).sendFile(args[1]);
+                new Client(server, PORT).sendFile(args[1]);
+                break;
+            case "SEND-DIR":
+                if (args.length < 2) {
+                    System.err.println("Usage: SEND-DIR folder [server]");
+                    return;
+                }
+                server = args.length > 2 ? args[2] : "localhost";
+                new Client(server, PORT).sendDirectory(args[1]);
+                break;
+            case "SEND-FILES":
+                if (args.length < 3) {
+                    System.err.println("Usage: SEND-FILES server filename...");
+                    return;
+                }
+                // Every upload after the first reuses the pooled connection
+                Client client = new Client(args[1], PORT);
+                for (int i = 2; i < args.length; i++) {
+                    client.sendFile(args[i]);
+                }
+                break;
+            case "RECEIVE-FILES":
+                if (args.length < 3) {
+                    System.err.println("Usage: RECEIVE-FILES server filename...");
+                    return;
+                }
+                new Client(args[1], PORT).receiveFiles(Arrays.asList(args).subList(2, args.length));
                 break;
             case "RECEIVE":
                 if (args.length < 2) {
@@ -32,10 +67,10 @@ public class TCPFileTransfer {
                     return;
                 }
                 server = args.length > 2 ? args[2] : "localhost";
-                new Client(server, 9876).receiveFile(args[1]);
+                new Client(server, PORT).receiveFile(args[1]);
                 break;
             default:
-                System.err.println("Invalid mode. Use SERVER [folder] | SEND filename [server] | RECEIVE filename [server]");
+                System.err.println("Invalid mode. Use SERVER [folder] | SEND filename [server] | SEND-DIR folder [server] | SEND-FILES server filename... | RECEIVE filename [server] | RECEIVE-FILES server filename...");
         }
     }
 }
@@ -0,0 +1,158 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.file.StandardOpenOption;
+import metrics.TransferMetrics;
+import transfer.Compression;
+import transfer.Journal;
+
+/**
+ * File body copy routines shared by Client and Server.
+ * Zero-copy can be turned off with -Dzerocopy=false to compare against the buffered copy.
+ * Bodies negotiated as compressed go through Compression instead.
+ */
+public class TransferEngine {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int RECEIVE_BUFFER_SIZE = 256 * 1024;
+    private static final long TRANSFER_CHUNK_SIZE = 64L * 1024 * 1024;
+    private static final boolean ZERO_COPY = Boolean.parseBoolean(System.getProperty("zerocopy", "true"));
+    static final TransferMetrics METRICS = TransferMetrics.of("simpletcp");
+
+    private TransferEngine() {
+    }
+
+    public static Socket connect(String serverAddress, int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(serverAddress, port)).socket();
+    }
+
+    /**
+     * Writes the file to the socket, using FileChannel.transferTo when the socket is channel backed.
+     * Falls back to an 8 KB buffered copy from the position transferTo reached.
+     */
+    public static long sendFile(File file, Socket socket) throws IOException {
+        return sendFile(file, socket, 0);
+    }
+
+    /**
+     * Sends the file from offset to its end, e.g. the missing tail of a resumed upload.
+     */
+    public static long sendFile(File file, Socket socket, long offset) throws IOException {
+        return sendFile(file, socket, offset, false);
+    }
+
+    public static long sendFile(File file, Socket socket, long offset, boolean compressed) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return sendRange(fileChannel, socket, offset, fileChannel.size(), compressed);
+        }
+    }
+
+    /**
+     * Sends bytes [offset, end) of an open file, no further even if the file has grown since.
+     */
+    public static long sendRange(FileChannel fileChannel, Socket socket, long offset, long end, boolean compressed) throws IOException {
+        if (compressed) {
+            return Compression.send(fileChannel, socket.getOutputStream(), offset, end, METRICS);
+        }
+        long position = offset;
+
+        SocketChannel socketChannel = socket.getChannel();
+        if (ZERO_COPY && socketChannel != null) {
+            try {
+                while (position < end) {
+                    long transferred = fileChannel.transferTo(position, Math.min(TRANSFER_CHUNK_SIZE, end - position), socketChannel);
+                    if (transferred <= 0) break;
+                    position += transferred;
+                    METRICS.bytesSent.add(transferred);
+                }
+            } catch (UnsupportedOperationException e) {
+                System.err.println("Zero-copy not supported, using buffered copy");
+            }
+        }
+
+        OutputStream out = socket.getOutputStream();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+        while (position < end) {
+            wrapper.limit((int) Math.min(buffer.length, end - position));
+            int bytesRead = fileChannel.read(wrapper, position);
+            if (bytesRead <= 0) break;
+            out.write(buffer, 0, bytesRead);
+            position += bytesRead;
+            METRICS.bytesSent.add(bytesRead);
+            wrapper.clear();
+        }
+        out.flush();
+        return position - offset;
+    }
+
+    /**
+     * Reads bytes [offset, fileSize) from the socket into a file preallocated to fileSize, using
+     * FileChannel.transferFrom or a large direct buffer. Progress is journaled so that a short transfer
+     * can later be resumed; returns the offset reached.
+     */
+    public static long receiveFile(File file, Socket socket, long offset, long fileSize) throws IOException {
+        return receiveFile(file, socket, offset, fileSize, false);
+    }
+
+    public static long receiveFile(File file, Socket socket, long offset, long fileSize, boolean compressed) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() != fileSize) {
+                raf.setLength(fileSize);
+            }
+            FileChannel fileChannel = raf.getChannel();
+            Journal journal = Journal.open(file, fileSize, offset > 0, METRICS);
+            long received = offset;
+            try {
+
+                SocketChannel socketChannel = socket.getChannel();
+                if (compressed) {
+                    received += Compression.receive(fileChannel, socket.getInputStream(), received, fileSize, journal, METRICS);
+                } else if (ZERO_COPY && socketChannel != null) {
+                    long[] interval = journal.begin(received);
+                    while (received < fileSize) {
+                        long transferred = fileChannel.transferFrom(socketChannel, received, Math.min(TRANSFER_CHUNK_SIZE, fileSize - received));
+                        if (transferred <= 0) break;
+                        received += transferred;
+                        METRICS.bytesReceived.add(transferred);
+                        journal.advance(interval, received, fileChannel);
+                    }
+                } else {
+                    ReadableByteChannel source = socketChannel != null ? socketChannel : Channels.newChannel(socket.getInputStream());
+                    ByteBuffer buffer = ByteBuffer.allocateDirect(RECEIVE_BUFFER_SIZE);
+                    long[] interval = journal.begin(received);
+                    while (received < fileSize) {
+                        buffer.limit((int) Math.min(buffer.capacity(), fileSize - received));
+                        int bytesRead = source.read(buffer);
+                        if (bytesRead == -1) break;
+                        buffer.flip();
+                        long writeStart = System.nanoTime();
+                        while (buffer.hasRemaining()) {
+                            received += fileChannel.write(buffer, received);
+                        }
+                        METRICS.diskWrite.since(writeStart);
+                        METRICS.bytesReceived.add(bytesRead);
+                        buffer.clear();
+                        journal.advance(interval, received, fileChannel);
+                    }
+                }
+            } finally {
+                journal.close(fileChannel);
+            }
+            return received;
+        }
+    }
+
+    /**
+     * Reads a single header line without buffering past it, so file data that follows stays in the socket.
+     */
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') line.write(b);
+        }
+        if (b == -1 && line.size() == 0) return null;
+        return line.toString();
+    }
+}
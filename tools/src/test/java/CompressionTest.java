@@ -0,0 +1,126 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import metrics.TransferMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import transfer.Compression;
+import transfer.Journal;
+
+/**
+ * DEFLATE-coded bodies come out as they went in, whether their chunks deflate or go raw, both through
+ * the codec directly and between the tools run with -Dcompress=true.
+ */
+class CompressionTest {
+    private static final int SIZE = 2 * 1024 * 1024 + 333; // Not a whole number of chunks
+    private static final TransferMetrics METRICS = TransferMetrics.of("tcp");
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+
+    @Test
+    void compressibleDataShrinksOnASlowLink() throws Exception {
+        // Chunks only deflate when the compressors get to them before the socket does
+        byte[] data = text(SIZE);
+        byte[] wire = roundTrip(data, 1); // Slow enough for one compressor on a busy machine
+        assertTrue(wire.length < data.length / 2, "Wire " + wire.length + " bytes for " + data.length);
+    }
+
+    @Test
+    void incompressibleDataGoesRaw() throws Exception {
+        byte[] data = ResumeTest.randomBytes(SIZE);
+        byte[] wire = roundTrip(data, 10);
+        // Only the frame headers on top
+        assertTrue(wire.length <= data.length + 9 * (data.length / (256 * 1024) + 1), "Wire " + wire.length + " bytes for " + data.length);
+    }
+
+    @Test
+    void mixedDataRoundTrips() throws Exception {
+        byte[] data = text(SIZE);
+        byte[] random = ResumeTest.randomBytes(SIZE / 2);
+        System.arraycopy(random, 0, data, SIZE / 4, random.length);
+        roundTrip(data, 0);
+        roundTrip(data, 10);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"SERVER", "SERVER-NIO"})
+    void toolsTransferCompressedBodies(String mode) throws Exception {
+        byte[] data = text(SIZE);
+        byte[] random = ResumeTest.randomBytes(SIZE / 2);
+        System.arraycopy(random, 0, data, SIZE / 4, random.length);
+        Files.write(client.resolve("up.bin"), data);
+        Files.write(server.resolve("down.bin"), data);
+
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", mode, ".").await("Server started")) {
+            String output = Tool.run(client, "-Dport=" + port, "-Dcompress=true", "TCPFileTransfer", "SEND", "up.bin", "localhost", "1");
+            assertTrue(output.contains("File sent: up.bin"), output);
+            tool.await("File received");
+            output = Tool.run(client, "-Dport=" + port, "-Dcompress=true", "TCPFileTransfer", "RECEIVE", "down.bin");
+            assertTrue(output.contains("File received: down.bin"), output);
+        }
+        assertArrayEquals(data, Files.readAllBytes(server.resolve("up.bin")));
+        assertArrayEquals(data, Files.readAllBytes(client.resolve("down.bin")));
+    }
+
+    /**
+     * Codes data with Compression.send and decodes it with Compression.receive, checking that the
+     * receiver stops at the end of the body. The wire carries megabytesPerSecond, as a link slower
+     * than the compressors, or is as fast as memory for 0. Returns the coded body.
+     */
+    private byte[] roundTrip(byte[] data, int megabytesPerSecond) throws Exception {
+        Path source = client.resolve("source");
+        Files.write(source, data);
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        OutputStream link = new FilterOutputStream(wire) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    if (megabytesPerSecond > 0) Thread.sleep(len / megabytesPerSecond / 1000);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+                out.write(b, off, len);
+            }
+        };
+        try (FileChannel fileChannel = FileChannel.open(source, StandardOpenOption.READ)) {
+            assertEquals(data.length, Compression.send(fileChannel, link, 0, data.length, METRICS));
+        }
+        byte[] body = wire.toByteArray();
+
+        // The next pipelined answer right behind the body must be left for its reader
+        wire.write("FILE next\r\n".getBytes());
+        ByteArrayInputStream in = new ByteArrayInputStream(wire.toByteArray());
+        Path target = server.resolve("target");
+        try (FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            Journal journal = Journal.open(target.toFile(), data.length, false, METRICS);
+            assertEquals(data.length, Compression.receive(fileChannel, in, 0, data.length, journal, METRICS));
+            journal.close(fileChannel);
+        }
+        assertEquals("FILE next", TCPFileTransfer.readLine(in));
+        assertArrayEquals(data, Files.readAllBytes(target));
+        return body;
+    }
+
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size + 32);
+        for (int line = 0; text.length() < size; line++) {
+            text.append("line ").append(line).append(" of a log that deflates well\n");
+        }
+        return text.substring(0, size).getBytes();
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * SEND-DELTA rebuilds the client's version on the server, sending little more than what changed.
+ */
+class DeltaTransferTest {
+    private static final int SIZE = 4 * 1024 * 1024;
+    private static final Pattern LITERAL = Pattern.compile("\\((\\d+) of (\\d+) bytes sent as literal data\\)");
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"SERVER", "SERVER-NIO"})
+    void sendsOnlyTheChangedBytes(String mode) throws Exception {
+        byte[] old = ResumeTest.randomBytes(SIZE);
+        Files.write(server.resolve("data.bin"), old);
+
+        // An edit in place, an insertion that shifts everything after it, and a new tail
+        byte[] changed = new byte[SIZE + 100 + 5000];
+        System.arraycopy(old, 0, changed, 0, 2 * 1024 * 1024);
+        System.arraycopy(old, 2 * 1024 * 1024, changed, 2 * 1024 * 1024 + 100, SIZE - 2 * 1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            changed[1024 * 1024 + i] ^= 0x5a;
+            changed[2 * 1024 * 1024 + i] = (byte) i;
+        }
+        for (int i = SIZE + 100; i < changed.length; i++) {
+            changed[i] = (byte) (i * 31);
+        }
+        Files.write(client.resolve("data.bin"), changed);
+
+        long literal = sendDelta(mode);
+        assertTrue(literal < 64 * 1024, literal + " literal bytes");
+        assertArrayEquals(changed, Files.readAllBytes(server.resolve("data.bin")));
+        assertFalse(Files.exists(server.resolve("data.bin.delta")));
+    }
+
+    @Test
+    void sendsEverythingToAServerWithoutTheFile() throws Exception {
+        byte[] data = ResumeTest.randomBytes(SIZE + 123);
+        Files.write(client.resolve("data.bin"), data);
+
+        assertEquals(data.length, sendDelta("SERVER"));
+        assertArrayEquals(data, Files.readAllBytes(server.resolve("data.bin")));
+    }
+
+    @Test
+    void leavesAnUnchangedFileAlone() throws Exception {
+        byte[] data = ResumeTest.randomBytes(SIZE);
+        Files.write(server.resolve("data.bin"), data);
+        Files.write(client.resolve("data.bin"), data);
+
+        assertEquals(0, sendDelta("SERVER"));
+        assertArrayEquals(data, Files.readAllBytes(server.resolve("data.bin")));
+    }
+
+    /**
+     * Runs SEND-DELTA data.bin against a fresh server and returns the literal bytes it reports.
+     */
+    private long sendDelta(String mode) throws Exception {
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", mode, ".").await("Server started")) {
+            String output = Tool.run(client, "-Dport=" + port, "TCPFileTransfer", "SEND-DELTA", "data.bin");
+            Matcher matcher = LITERAL.matcher(output);
+            assertTrue(matcher.find(), output);
+            assertEquals(Files.size(client.resolve("data.bin")), Long.parseLong(matcher.group(2)));
+            tool.await("File received");
+            return Long.parseLong(matcher.group(1));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import transfer.DirectoryTransfer;
+
+/**
+ * SEND-DIR writes nothing outside the server's folder, whether the directory or an entry in it names a
+ * path that climbs out, on both servers.
+ */
+class DirectoryTransferTest {
+    @TempDir
+    Path server;
+
+    @Test
+    void entryPathKeepsNamesInsideTheRoot() {
+        Path root = server.resolve("root");
+        assertEquals(root.resolve("a/b"), DirectoryTransfer.entryPath(root, "a/b"));
+        assertEquals(root.resolve("b"), DirectoryTransfer.entryPath(root, "a/../b"));
+        assertEquals(root, DirectoryTransfer.entryPath(root, ""));
+        assertNull(DirectoryTransfer.entryPath(root, ".."));
+        assertNull(DirectoryTransfer.entryPath(root, "../x"));
+        assertNull(DirectoryTransfer.entryPath(root, "a/../../x"));
+        assertNull(DirectoryTransfer.entryPath(root, "/etc/passwd"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"SERVER", "SERVER-NIO"})
+    void refusesDirectoryOutsideTheFolder(String mode) throws Exception {
+        Path folder = Files.createDirectory(server.resolve("folder"));
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(folder, "-Dport=" + port, "TCPFileTransfer", mode, ".").await("Server started");
+             Socket socket = new Socket("localhost", port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            for (String name : new String[] {"../escape", "a/../../escape", server.resolve("escape").toString(), "."}) {
+                socket.getOutputStream().write((DirectoryTransfer.COMMAND + " " + name + "\r\n").getBytes());
+                assertEquals("ERROR Invalid SEND-DIR command", TCPFileTransfer.readLine(in), name);
+            }
+        }
+        assertFalse(Files.exists(server.resolve("escape")));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"SERVER", "SERVER-NIO"})
+    void refusesEntryOutsideTheDirectory(String mode) throws Exception {
+        Path folder = Files.createDirectory(server.resolve("folder"));
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(folder, "-Dport=" + port, "TCPFileTransfer", mode, ".").await("Server started");
+             Socket socket = new Socket("localhost", port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.write((DirectoryTransfer.COMMAND + " tree\r\n").getBytes());
+            assertEquals("READY", TCPFileTransfer.readLine(in));
+
+            // tree/../../escape is the server's parent folder
+            out.writeByte('F');
+            out.writeUTF("../../escape");
+            out.writeInt(-1);
+            out.writeLong(5);
+            out.write("owned".getBytes());
+            out.writeByte('E');
+            out.flush();
+
+            // The server gives up on the stream, it cannot tell where the next command would start
+            String answer;
+            try {
+                answer = TCPFileTransfer.readLine(in);
+            } catch (SocketException e) {
+                answer = null; // Reset by a close with the rest of the entry unread
+            }
+            assertTrue(answer == null || answer.startsWith("ERROR"), answer);
+        }
+        assertFalse(Files.exists(server.resolve("escape")));
+        assertFalse(Files.exists(folder.resolve("escape")));
+    }
+}
@@ -0,0 +1,64 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * UDPFileTransferSR through an ImpairmentProxy that drops and reorders datagrams both ways: the
+ * selective ACKs bring back every lost block, uploads and downloads alike, and with -Dfec the receiver
+ * rebuilds some from parity before they are asked for again.
+ */
+class LossRecoveryTest {
+    private static final int SIZE = 2 * 1024 * 1024 + 99;
+    private static final Pattern SUMMARY = Pattern.compile("Transfer complete\\. (\\d+) retransmissions, (\\d+) blocks rebuilt from parity");
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+    @TempDir
+    Path download;
+
+    @Test
+    void selectiveAcksRecoverDroppedBlocks() throws Exception {
+        byte[] data = ResumeTest.randomBytes(SIZE);
+        Files.write(client.resolve("data.bin"), data);
+        int port = Tool.freePort();
+        int proxyPort = Tool.freePort();
+        try (Tool serverTool = Tool.start(server, "-Dport=" + port, "UDPFileTransferSR", "SERVER").await("Servidor iniciado");
+             Tool proxy = Tool.start(server, "-Dloss=5", "-Dreorder=2", "ImpairmentProxy", String.valueOf(proxyPort), "127.0.0.1", String.valueOf(port)).await("Proxy on port")) {
+            Matcher summary = summary(Tool.run(client, "-Dport=" + proxyPort, "UDPFileTransferSR", "SEND", "data.bin", "127.0.0.1"));
+            assertTrue(Long.parseLong(summary.group(1)) > 0, summary.group());
+            serverTool.await("File received");
+            assertArrayEquals(data, Files.readAllBytes(server.resolve("data.bin")));
+
+            Tool.run(download, "-Dport=" + proxyPort, "UDPFileTransferSR", "RECEIVE", "data.bin", "127.0.0.1");
+            assertArrayEquals(data, Files.readAllBytes(download.resolve("data.bin")));
+        }
+    }
+
+    @Test
+    void parityRebuildsDroppedBlocks() throws Exception {
+        byte[] data = ResumeTest.randomBytes(SIZE);
+        Files.write(client.resolve("data.bin"), data);
+        int port = Tool.freePort();
+        int proxyPort = Tool.freePort();
+        try (Tool serverTool = Tool.start(server, "-Dport=" + port, "UDPFileTransferSR", "SERVER").await("Servidor iniciado");
+             Tool proxy = Tool.start(server, "-Dloss=3", "-Dreorder=2", "ImpairmentProxy", String.valueOf(proxyPort), "127.0.0.1", String.valueOf(port)).await("Proxy on port")) {
+            Matcher summary = summary(Tool.run(client, "-Dport=" + proxyPort, "-Dfec=8", "UDPFileTransferSR", "SEND", "data.bin", "127.0.0.1"));
+            assertTrue(Long.parseLong(summary.group(2)) > 0, summary.group());
+            serverTool.await("File received");
+        }
+        assertArrayEquals(data, Files.readAllBytes(server.resolve("data.bin")));
+    }
+
+    private static Matcher summary(String output) {
+        Matcher summary = SUMMARY.matcher(output);
+        assertTrue(summary.find(), output);
+        return summary;
+    }
+}
@@ -0,0 +1,61 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Path;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * TEST refuses options out of range before it connects, and both servers answer ERROR to TEST-SEND,
+ * TEST-RECEIVE and TEST-ECHO arguments they cannot serve, then carry on with the next connection.
+ */
+class NetworkTestOptionsTest {
+    private static final String[] INVALID_COMMANDS = {
+        "TEST-SEND 100 0", "TEST-SEND 100 33554432", "TEST-SEND -1 1024", "TEST-SEND x 1024", "TEST-SEND 100",
+        "TEST-RECEIVE 100 0 0", "TEST-RECEIVE 100 -1 1024", "TEST-RECEIVE 0 0 1024", "TEST-RECEIVE 100 0 x",
+        "TEST-ECHO 0", "TEST-ECHO 2000000", "TEST-ECHO x",
+    };
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"buffer=0", "buffer=32M", "streams=0", "streams=x", "size=0", "seconds=-1", "bytes=-5", "requests=-1", "interval=0", "mode=x", "colour=red"})
+    void clientRefusesInvalidOption(String option) throws Exception {
+        // Nothing listens on the port, a test that got as far as connecting would fail differently
+        String output = Tool.run(client, "-Dport=" + Tool.freePort(), "TCPFileTransfer", "TEST", "localhost", option);
+        assertTrue(output.startsWith("Invalid TEST option: " + option.substring(0, option.indexOf('=') + 1)), output);
+        assertFalse(output.contains("Exception"), output);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"SERVER", "SERVER-NIO"})
+    void serverAnswersErrorToInvalidArguments(String mode) throws Exception {
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", mode, ".").await("Server started")) {
+            for (String command : INVALID_COMMANDS) {
+                try (Socket socket = new Socket("localhost", port)) {
+                    socket.getOutputStream().write((command + "\r\n").getBytes());
+                    String answer = TCPFileTransfer.readLine(socket.getInputStream());
+                    assertNotNull(answer, command);
+                    assertTrue(answer.startsWith("ERROR"), command + ": " + answer);
+                }
+            }
+
+            // Still serving
+            try (Socket socket = new Socket("localhost", port)) {
+                OutputStream out = socket.getOutputStream();
+                InputStream in = socket.getInputStream();
+                out.write("TEST-SEND 10 1024\r\n".getBytes());
+                assertEquals("READY", TCPFileTransfer.readLine(in));
+                out.write(new byte[10]);
+                assertTrue(TCPFileTransfer.readLine(in).startsWith("RECEIVED 10 "));
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * A kept-alive connection serves commands sent ahead of their turn, in order, on both servers.
+ */
+class PipeliningTest {
+    private static final int[] SIZES = {1, 100 * 1024, 3 * 1024 * 1024 + 5};
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"SERVER", "SERVER-NIO"})
+    void answersPipelinedCommandsInOrder(String mode) throws Exception {
+        byte[][] files = new byte[SIZES.length][];
+        for (int i = 0; i < SIZES.length; i++) {
+            files[i] = ResumeTest.randomBytes(SIZES[i]);
+            Files.write(server.resolve("file" + i), files[i]);
+        }
+
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", mode, ".").await("Server started");
+             Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // Every request in one write, a failing one among them
+            out.write("RECEIVE file0\r\nRECEIVE missing\r\nRECEIVE file1\r\nRECEIVE file2\r\n".getBytes());
+            assertReceived(in, "file0", files[0]);
+            assertTrue(TCPFileTransfer.readLine(in).startsWith("ERROR"));
+            assertReceived(in, "file1", files[1]);
+            assertReceived(in, "file2", files[2]);
+
+            // An upload with the next command right behind its body
+            byte[] upload = ResumeTest.randomBytes(70 * 1024);
+            out.write(("SEND upload " + upload.length + "\r\n").getBytes());
+            assertEquals("FILE upload " + upload.length, TCPFileTransfer.readLine(in));
+            byte[] body = new byte[upload.length + "RECEIVE file0\r\n".length()];
+            System.arraycopy(upload, 0, body, 0, upload.length);
+            System.arraycopy("RECEIVE file0\r\n".getBytes(), 0, body, upload.length, body.length - upload.length);
+            out.write(body);
+            assertReceived(in, "file0", files[0]);
+            tool.await("File received");
+            assertArrayEquals(upload, Files.readAllBytes(server.resolve("upload")));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"SERVER", "SERVER-NIO"})
+    void receiveFilesFetchesEveryFileInTurn(String mode) throws Exception {
+        for (int i = 0; i < SIZES.length; i++) {
+            Files.write(server.resolve("file" + i), ResumeTest.randomBytes(SIZES[i]));
+        }
+
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", mode, ".").await("Server started")) {
+            String output = Tool.run(client, "-Dport=" + port, "TCPFileTransfer", "RECEIVE-FILES", "localhost", "file0", "file1", "file2");
+            for (int i = 0; i < SIZES.length; i++) {
+                assertTrue(output.contains("File received: file" + i), output);
+                assertArrayEquals(Files.readAllBytes(server.resolve("file" + i)), Files.readAllBytes(client.resolve("file" + i)));
+            }
+        }
+    }
+
+    static void assertReceived(DataInputStream in, String name, byte[] expected) throws Exception {
+        assertEquals("FILE " + name + " " + expected.length, TCPFileTransfer.readLine(in));
+        byte[] body = new byte[expected.length];
+        in.readFully(body);
+        assertArrayEquals(expected, body);
+    }
+}
@@ -0,0 +1,138 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Several streams against a server that only knows SEND name size and RECEIVE name: the client falls
+ * back to the plain commands. An empty file, which has no ranges, goes as a plain SEND from the start.
+ */
+class RangeFallbackTest {
+    private static final int SIZE = 3 * 1024 * 1024 + 11;
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+
+    @Test
+    void sendFallsBackToPlainSend() throws Exception {
+        byte[] data = ResumeTest.randomBytes(SIZE);
+        Files.write(client.resolve("data.bin"), data);
+        try (OldServer old = new OldServer(server)) {
+            String output = Tool.run(client, "-Dport=" + old.port(), "TCPFileTransfer", "SEND", "data.bin", "localhost", "4");
+            assertTrue(output.contains("Server refused SEND-RANGE"), output);
+            assertTrue(output.contains("Server refused SEND RESUME"), output);
+            assertTrue(output.contains("File sent: data.bin"), output);
+            assertEquals("data.bin", old.awaitReceived());
+        }
+        assertArrayEquals(data, Files.readAllBytes(server.resolve("data.bin")));
+    }
+
+    @Test
+    void receiveFallsBackToPlainReceive() throws Exception {
+        byte[] data = ResumeTest.randomBytes(SIZE);
+        Files.write(server.resolve("data.bin"), data);
+        try (OldServer old = new OldServer(server)) {
+            String output = Tool.run(client, "-Dport=" + old.port(), "TCPFileTransfer", "RECEIVE", "data.bin", "localhost", "4");
+            assertTrue(output.contains("File received: data.bin"), output);
+        }
+        assertArrayEquals(data, Files.readAllBytes(client.resolve("data.bin")));
+    }
+
+    @Test
+    void emptyFileGoesAsPlainSend() throws Exception {
+        Files.write(client.resolve("empty"), new byte[0]);
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", "SERVER", ".").await("Server started")) {
+            String output = Tool.run(client, "-Dport=" + port, "TCPFileTransfer", "SEND", "empty", "localhost", "4");
+            assertTrue(output.contains("File sent: empty"), output);
+            assertFalse(output.contains("refused"), output);
+            tool.await("File received");
+        }
+        assertEquals(0, Files.size(server.resolve("empty")));
+    }
+
+    /**
+     * A server of the first protocol, serving every connection command after command on a thread of
+     * its own and answering ERROR to anything but SEND name size and RECEIVE name.
+     */
+    private static final class OldServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0);
+        private final Path folder;
+        private final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        OldServer(Path folder) throws IOException {
+            this.folder = folder;
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        Thread session = new Thread(() -> serve(socket), "old-session");
+                        session.setDaemon(true);
+                        session.start();
+                    }
+                } catch (IOException e) {
+                    // Closed
+                }
+            }, "old-server");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        /**
+         * The name of the next file written to the folder: the client is done once its last byte is
+         * on the wire, the server only some time later.
+         */
+        String awaitReceived() throws InterruptedException {
+            String name = received.poll(60, TimeUnit.SECONDS);
+            assertNotNull(name, "No file received");
+            return name;
+        }
+
+        private void serve(Socket socket) {
+            try (socket) {
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+                OutputStream out = socket.getOutputStream();
+                String command;
+                while ((command = TCPFileTransfer.readLine(in)) != null) {
+                    String[] parts = command.split(" ");
+                    if (parts[0].equals("SEND") && parts.length == 3) {
+                        byte[] body = new byte[Integer.parseInt(parts[2])];
+                        out.write(("FILE " + parts[1] + " " + body.length + "\r\n").getBytes());
+                        in.readFully(body);
+                        Files.write(folder.resolve(parts[1]), body);
+                        received.add(parts[1]);
+                    } else if (parts[0].equals("RECEIVE") && parts.length == 2) {
+                        byte[] body = Files.readAllBytes(folder.resolve(parts[1]));
+                        out.write(("FILE " + parts[1] + " " + body.length + "\r\n").getBytes());
+                        out.write(body);
+                    } else {
+                        out.write("ERROR Invalid command\r\n".getBytes());
+                    }
+                }
+            } catch (IOException e) {
+                // Client gone
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
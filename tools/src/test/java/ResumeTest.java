@@ -0,0 +1,115 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import metrics.TransferMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import transfer.Journal;
+
+/**
+ * Interrupted transfers pick up where the partial-file journal says the data ends, on both servers.
+ */
+class ResumeTest {
+    private static final int SIZE = 8 * 1024 * 1024;
+    private static final int DROPPED_AT = 3 * 1024 * 1024 + 17;
+    private static final TransferMetrics METRICS = TransferMetrics.of("tcp");
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"SERVER", "SERVER-NIO"})
+    void uploadResumesWhereTheConnectionDropped(String mode) throws Exception {
+        byte[] data = randomBytes(SIZE);
+        Files.write(client.resolve("data.bin"), data);
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", mode, ".").await("Server started")) {
+            try (Socket socket = new Socket("localhost", port)) {
+                OutputStream out = socket.getOutputStream();
+                out.write(("SEND data.bin " + SIZE + " RESUME\r\n").getBytes());
+                assertEquals("FILE data.bin " + SIZE + " 0", TCPFileTransfer.readLine(socket.getInputStream()));
+                out.write(data, 0, DROPPED_AT);
+            }
+            tool.await("Incomplete file");
+
+            String output = sendOnceUnlocked(port);
+            assertTrue(output.contains("Resuming at byte " + DROPPED_AT), output);
+            tool.await("File received");
+        }
+        assertArrayEquals(data, Files.readAllBytes(server.resolve("data.bin")));
+        assertFalse(Files.exists(server.resolve("data.bin.part")));
+    }
+
+    @Test
+    void downloadFetchesOnlyWhatTheJournalMisses() throws Exception {
+        byte[] data = randomBytes(SIZE);
+        Files.write(server.resolve("data.bin"), data);
+
+        // What an interrupted download leaves behind: the file at full size and a journal of its head
+        File partial = client.resolve("data.bin").toFile();
+        Journal journal = Journal.open(partial, SIZE, false, METRICS);
+        try (RandomAccessFile raf = new RandomAccessFile(partial, "rw")) {
+            raf.setLength(SIZE);
+            FileChannel channel = raf.getChannel();
+            channel.write(ByteBuffer.wrap(data, 0, DROPPED_AT), 0);
+            journal.advance(journal.begin(0), DROPPED_AT, channel);
+            journal.close(channel);
+        }
+
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", "SERVER", ".").await("Server started")) {
+            String output = Tool.run(client, "-Dport=" + port, "TCPFileTransfer", "RECEIVE", "data.bin");
+            assertTrue(output.contains("Resuming download, " + (SIZE - DROPPED_AT) + " of " + SIZE + " bytes missing"), output);
+        }
+        assertArrayEquals(data, Files.readAllBytes(partial.toPath()));
+        assertFalse(Files.exists(client.resolve("data.bin.part")));
+    }
+
+    @Test
+    void journalOfAnotherSizeIsIgnored() throws Exception {
+        File file = client.resolve("data.bin").toFile();
+        Journal journal = Journal.open(file, SIZE, false, METRICS);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(SIZE);
+            journal.advance(journal.begin(0), DROPPED_AT, raf.getChannel());
+            journal.close(raf.getChannel());
+        }
+
+        Journal same = Journal.open(file, SIZE, true, METRICS);
+        assertEquals(DROPPED_AT, same.resumePoint(0, SIZE));
+        same.close(null);
+        Journal other = Journal.open(file, SIZE + 1, true, METRICS);
+        assertEquals(0, other.resumePoint(0, SIZE + 1));
+        other.close(null);
+    }
+
+    /**
+     * SEND data.bin, again while the server still holds the lock of the dropped upload: the selector
+     * server releases it once the journal is saved, just after reporting the incomplete file.
+     */
+    private String sendOnceUnlocked(int port) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            String output = Tool.run(client, "-Dport=" + port, "TCPFileTransfer", "SEND", "data.bin");
+            if (!output.contains("File busy") || attempt == 50) return output;
+            Thread.sleep(20);
+        }
+    }
+
+    static byte[] randomBytes(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+}
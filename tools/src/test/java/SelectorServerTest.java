@@ -0,0 +1,102 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.DataInputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import metrics.TransferMetrics;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import transfer.Compression;
+import transfer.Journal;
+
+/**
+ * SERVER-NIO's connection state machines: commands and bodies arriving a few bytes at a time, and a
+ * connection handed to a blocking thread coming back to its selector for the next command.
+ */
+class SelectorServerTest {
+    private static final TransferMetrics METRICS = TransferMetrics.of("tcp");
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+
+    @Test
+    void servesCommandsAndBodiesSplitAcrossWrites() throws Exception {
+        byte[] file = ResumeTest.randomBytes(200 * 1024);
+        Files.write(server.resolve("file"), file);
+        byte[] upload = ResumeTest.randomBytes(50 * 1024 + 3);
+
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "TCPFileTransfer", "SERVER-NIO", ".").await("Server started");
+             Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            trickle(out, "RECEIVE file\r\n");
+            PipeliningTest.assertReceived(in, "file", file);
+
+            trickle(out, "SEND upload " + upload.length + "\r\n");
+            assertEquals("FILE upload " + upload.length, TCPFileTransfer.readLine(in));
+            out.write(upload, 0, 1000);
+            Thread.sleep(50);
+            out.write(upload, 1000, upload.length - 1000);
+            tool.await("File received");
+            assertArrayEquals(upload, Files.readAllBytes(server.resolve("upload")));
+
+            // Still reading commands after both
+            trickle(out, "RECEIVE file\r\n");
+            PipeliningTest.assertReceived(in, "file", file);
+        }
+    }
+
+    @Test
+    void handedOffConnectionReturnsToItsSelector() throws Exception {
+        byte[] file = new byte[600 * 1024];
+        byte[] random = ResumeTest.randomBytes(file.length / 2);
+        for (int i = 0; i < file.length; i++) {
+            file[i] = i % 2 == 0 ? (byte) (i / 1024) : random[i / 2]; // Some chunks deflate, some go raw
+        }
+        Files.write(server.resolve("file"), file);
+        byte[] small = ResumeTest.randomBytes(1000);
+        Files.write(server.resolve("small"), small);
+
+        // One handoff thread: the second round only runs if the first gave the thread back
+        int port = Tool.freePort();
+        try (Tool tool = Tool.start(server, "-Dport=" + port, "-Dmax.connections=1", "TCPFileTransfer", "SERVER-NIO", ".").await("Server started");
+             Socket socket = new Socket("localhost", port)) {
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            for (int round = 0; round < 2; round++) {
+                // The plain command rides in the same write, so the handoff has it buffered when it ends
+                out.write(("RECEIVE file " + Compression.TOKEN + "\r\nRECEIVE small\r\n").getBytes());
+                assertEquals("FILE file " + file.length + " " + Compression.TOKEN, TCPFileTransfer.readLine(in));
+                Path target = client.resolve("file" + round);
+                try (FileChannel fileChannel = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                    Journal journal = Journal.open(target.toFile(), file.length, false, METRICS);
+                    assertEquals(file.length, Compression.receive(fileChannel, in, 0, file.length, journal, METRICS));
+                    journal.close(fileChannel);
+                }
+                assertArrayEquals(file, Files.readAllBytes(target));
+                PipeliningTest.assertReceived(in, "small", small);
+            }
+        }
+    }
+
+    /**
+     * Writes text a byte at a time, each in a segment of its own.
+     */
+    private static void trickle(OutputStream out, String text) throws Exception {
+        for (byte b : text.getBytes()) {
+            out.write(b);
+            out.flush();
+            Thread.sleep(2);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramSocket;
+import java.net.ServerSocket;
+import java.net.URISyntaxException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One of the tools run in a JVM of its own, as from the command line: java -cp classes followed by
+ * the command, in the given working directory. Standard output and errors are collected together.
+ * The tools keep their port and other settings in static finals read at startup, so every server a
+ * test needs is a process of its own.
+ */
+final class Tool implements AutoCloseable {
+    private static final String JAVA = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    private static final String CLASSES = classes();
+    private static final long TIMEOUT = 60_000; // ms any one tool may take
+
+    private final Process process;
+    private final StringBuffer output = new StringBuffer();
+    private final Thread reader;
+
+    private Tool(Process process) {
+        this.process = process;
+        this.reader = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    output.append(line).append('\n');
+                }
+            } catch (IOException e) {
+                // The process is gone
+            }
+        }, "tool-output");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Starts command, for instance "-Dport=9000", "TCPFileTransfer", "SERVER", ".", in directory.
+     */
+    static Tool start(Path directory, String... command) throws IOException {
+        List<String> line = new ArrayList<>(Arrays.asList(JAVA, "-cp", CLASSES));
+        line.addAll(Arrays.asList(command));
+        return new Tool(new ProcessBuilder(line).directory(directory.toFile()).redirectErrorStream(true).start());
+    }
+
+    /**
+     * Runs command in directory to its end and returns what it printed.
+     */
+    static String run(Path directory, String... command) throws IOException, InterruptedException {
+        try (Tool tool = start(directory, command)) {
+            if (!tool.process.waitFor(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                throw new AssertionError("Still running after " + TIMEOUT + " ms: " + String.join(" ", command) + "\n" + tool.output);
+            }
+            tool.reader.join(TIMEOUT);
+            return tool.output();
+        }
+    }
+
+    /**
+     * Waits until the tool has printed text, typically a server's start-up line.
+     */
+    Tool await(String text) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (output.indexOf(text) < 0) {
+            if (!process.isAlive() && !reader.isAlive() && output.indexOf(text) < 0) {
+                throw new AssertionError("Exited without printing \"" + text + "\":\n" + output);
+            }
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("No \"" + text + "\" after " + TIMEOUT + " ms:\n" + output);
+            }
+            Thread.sleep(10);
+        }
+        return this;
+    }
+
+    String output() {
+        return output.toString();
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        process.destroy();
+        if (!process.waitFor(5, TimeUnit.SECONDS)) {
+            process.destroyForcibly().waitFor();
+        }
+    }
+
+    /**
+     * A port free for both TCP and UDP on this host, for a server about to be started.
+     */
+    static int freePort() throws IOException {
+        while (true) {
+            int port;
+            try (ServerSocket socket = new ServerSocket(0)) {
+                port = socket.getLocalPort();
+            }
+            try (DatagramSocket socket = new DatagramSocket(port)) {
+                return port;
+            } catch (IOException e) {
+                // Taken for UDP, try another
+            }
+        }
+    }
+
+    /**
+     * Where the compiled tools are, so the processes run the classes under test.
+     */
+    private static String classes() {
+        try {
+            return new File(TCPFileTransfer.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * The SEND/RECEIVE/FILE handshake of both UDP tools: the payload the client offers caps the one the
+ * server answers with, and a server with no room for another transfer answers BUSY.
+ */
+class UDPHandshakeTest {
+    private static final int SIZE = 300 * 1024 + 7;
+    private static final int OFFER = 1000;
+
+    @TempDir
+    Path server;
+    @TempDir
+    Path client;
+    @TempDir
+    Path download;
+
+    @ParameterizedTest
+    @CsvSource({"UDPFileTransfer, 4, Server started", "UDPFileTransferSR, 5, Servidor iniciado"})
+    void serverAnswersWithTheAgreedPayload(String tool, int header, String started) throws Exception {
+        Files.write(server.resolve("data.bin"), ResumeTest.randomBytes(SIZE));
+        int port = Tool.freePort();
+        try (Tool serverTool = Tool.start(server, "-Dport=" + port, tool, "SERVER").await(started);
+             DatagramSocket socket = new DatagramSocket()) {
+            String answer = request(socket, port, "RECEIVE data.bin " + OFFER);
+            String[] fields = answer.split(" ");
+            assertEquals(4, fields.length, answer);
+            assertEquals("FILE data.bin " + SIZE, answer.substring(0, answer.lastIndexOf(' ')));
+            int payload = Integer.parseInt(fields[3]);
+            assertTrue(payload >= 512 && payload <= OFFER, answer);
+
+            // The first data block is a full one of the agreed size
+            assertEquals(header + payload, nextData(socket));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({"UDPFileTransfer, Server started, Server is busy", "UDPFileTransferSR, Servidor iniciado, ocupado"})
+    void secondClientIsToldTheServerIsBusy(String tool, String started, String busy) throws Exception {
+        Files.write(server.resolve("data.bin"), ResumeTest.randomBytes(SIZE));
+        int port = Tool.freePort();
+        try (Tool serverTool = Tool.start(server, "-Dport=" + port, "-Dsessions=1", tool, "SERVER").await(started);
+             DatagramSocket socket = new DatagramSocket()) {
+            // A transfer that never acknowledges anything holds the only session
+            assertTrue(request(socket, port, "RECEIVE data.bin " + OFFER).startsWith("FILE "));
+
+            String output = Tool.run(client, "-Dport=" + port, tool, "RECEIVE", "data.bin", "127.0.0.1");
+            assertTrue(output.contains(busy), output);
+            assertFalse(Files.exists(client.resolve("data.bin")));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({"UDPFileTransfer, Server started", "UDPFileTransferSR, Servidor iniciado"})
+    void transfersWithTheClientsPayload(String tool, String started) throws Exception {
+        byte[] data = ResumeTest.randomBytes(SIZE);
+        Files.write(client.resolve("data.bin"), data);
+        int port = Tool.freePort();
+        try (Tool serverTool = Tool.start(server, "-Dport=" + port, tool, "SERVER").await(started)) {
+            Tool.run(client, "-Dport=" + port, "-Dpayload=" + OFFER, tool, "SEND", "data.bin", "127.0.0.1");
+            assertArrayEquals(data, Files.readAllBytes(server.resolve("data.bin")));
+
+            Tool.run(download, "-Dport=" + port, "-Dpayload=" + OFFER, tool, "RECEIVE", "data.bin", "127.0.0.1");
+            assertArrayEquals(data, Files.readAllBytes(download.resolve("data.bin")));
+        }
+    }
+
+    /**
+     * Sends a request to the server on port and returns its text answer, repeating the request as the
+     * clients do if either gets lost.
+     */
+    private static String request(DatagramSocket socket, int port, String message) throws Exception {
+        byte[] request = message.getBytes();
+        byte[] buffer = new byte[65507];
+        DatagramPacket answer = new DatagramPacket(buffer, buffer.length);
+        socket.setSoTimeout(1000);
+        for (int attempt = 0; attempt < 5; attempt++) {
+            socket.send(new DatagramPacket(request, request.length, InetAddress.getLoopbackAddress(), port));
+            try {
+                socket.receive(answer);
+                return new String(buffer, 0, answer.getLength());
+            } catch (SocketTimeoutException e) {
+                // Ask again
+            }
+        }
+        throw new AssertionError("No answer to " + message);
+    }
+
+    /**
+     * Length of the next datagram that is not a text message.
+     */
+    private static int nextData(DatagramSocket socket) throws Exception {
+        byte[] buffer = new byte[65507];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (true) {
+            socket.receive(packet);
+            if (packet.getLength() > 0 && (buffer[0] < 'A' || buffer[0] > 'Z')) {
+                return packet.getLength();
+            }
+            packet.setLength(buffer.length);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package transfer;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import metrics.TransferMetrics;
+
+/**
+ * Optional DEFLATE coding of file bodies, asked for with -Dcompress=true: the client appends DEFLATE
+ * to SEND, RECEIVE, SEND-RANGE or RECEIVE-RANGE, and the server agrees by ending its FILE answer with
+ * DEFLATE too. TCPFileTransfer and simpleTCP code bodies the same way; SERVER-NIO hands such a command
+ * to a blocking thread, as the codec sits between socket and file. The body is then a run of frames of
+ * up to CHUNK_SIZE file bytes, see TCP-specs.md, and the receiver journals every whole frame it writes,
+ * so a compressed transfer resumes like a plain one.
+ */
+public class Compression {
+    public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("compress", "false"));
+    public static final String TOKEN = "DEFLATE";
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int PROBE_SIZE = 8 * 1024; // Sample deflated first to spot incompressible chunks
+    private static final byte FRAME_RAW = 'R';
+    private static final byte FRAME_DEFLATED = 'Z';
+    private static final int THREADS = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+    private static final ThreadLocal<byte[]> PROBE_BUFFER = ThreadLocal.withInitial(() -> new byte[PROBE_SIZE]);
+    // Chunks kept for the next transfer, enough for one send's worth in flight
+    private static final BlockingQueue<Chunk> SPARE_CHUNKS = new ArrayBlockingQueue<>(THREADS * 2 + 1);
+
+    private Compression() {
+    }
+    /**
+     * Suffix asking the server for a compressed body, when this client runs with -Dcompress=true.
+     */
+    public static String request() {
+        return ENABLED ? " " + TOKEN : "";
+    }
+
+    public static boolean accepted(String response) {
+        return response.endsWith(" " + TOKEN);
+    }
+
+    /**
+     * Sends [offset, end) as a compressed body: 256 KB chunks, each framed as 'R' length data when sent
+     * as is or 'Z' length zlength zdata when deflated. Chunks are deflated ahead of the socket on the
+     * COMPRESSORS pool. A chunk no compressor has started by the time the socket wants it goes raw, so
+     * a link faster than the compressors is never held back by them. Chunk buffers come from and go
+     * back to SPARE_CHUNKS. Returns the file bytes sent.
+     */
+    public static long send(FileChannel fileChannel, OutputStream socketOut, long offset, long end, TransferMetrics metrics) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socketOut, CHUNK_SIZE + 16));
+        ArrayDeque<Chunk> pending = new ArrayDeque<>();
+        long position = offset;
+        try {
+            while (position < end || !pending.isEmpty()) {
+                // Up to two chunks per compressor in flight ahead of the socket
+                while (position < end && pending.size() < THREADS * 2) {
+                    Chunk chunk = takeChunk();
+                    readChunk(fileChannel, position, (int) Math.min(CHUNK_SIZE, end - position), chunk);
+                    chunk.task = COMPRESSORS.submit(() -> deflate(chunk));
+                    pending.add(chunk);
+                    position += chunk.length;
+                }
+
+                Chunk chunk = pending.poll();
+                if (!chunk.claim()) {
+                    await(chunk.task);
+                }
+                metrics.bytesSent.add(chunk.length);
+                if (chunk.deflatedLength > 0) {
+                    out.writeByte(FRAME_DEFLATED);
+                    out.writeInt(chunk.length);
+                    out.writeInt(chunk.deflatedLength);
+                    out.write(chunk.deflated, 0, chunk.deflatedLength);
+                } else {
+                    out.writeByte(FRAME_RAW);
+                    out.writeInt(chunk.length);
+                    out.write(chunk.data, 0, chunk.length);
+                }
+                giveBack(chunk);
+            }
+            out.flush();
+        } finally {
+            for (Chunk chunk : pending) {
+                // A chunk a compressor is still working on is left to the garbage collector
+                if (chunk.claim() || chunk.task.isDone()) giveBack(chunk);
+            }
+        }
+        return position - offset;
+    }
+
+    /**
+     * Reads compressed frames into [offset, end), journaling whole frames as they are written. A frame
+     * cut short by a dropped connection is discarded. The wire and file buffers are a spare chunk's
+     * and the Inflater is this thread's. Returns the file bytes received.
+     */
+    public static long receive(FileChannel fileChannel, InputStream socketIn, long offset, long end, Journal journal, TransferMetrics metrics) throws IOException {
+        // Read straight off the socket, the next pipelined answer may follow the last frame
+        DataInputStream in = new DataInputStream(socketIn);
+        Inflater inflater = INFLATER.get();
+        Chunk buffers = takeChunk();
+        byte[] wire = buffers.deflated;
+        byte[] data = buffers.data;
+        long position = offset;
+        long[] interval = journal.begin(offset);
+        try {
+            while (position < end) {
+                int type = in.read();
+                if (type == -1) break;
+                int length = in.readInt();
+                if (length <= 0 || length > CHUNK_SIZE || length > end - position) {
+                    throw new IOException("Invalid frame length " + length);
+                }
+                if (type == FRAME_DEFLATED) {
+                    int wireLength = in.readInt();
+                    if (wireLength <= 0 || wireLength > CHUNK_SIZE) {
+                        throw new IOException("Invalid frame length " + wireLength);
+                    }
+                    in.readFully(wire, 0, wireLength);
+                    inflate(inflater, wire, wireLength, data, length);
+                } else if (type == FRAME_RAW) {
+                    in.readFully(data, 0, length);
+                } else {
+                    throw new IOException("Invalid frame type " + type);
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+                long writeStart = System.nanoTime();
+                while (buffer.hasRemaining()) {
+                    position += fileChannel.write(buffer, position);
+                }
+                metrics.diskWrite.since(writeStart);
+                metrics.bytesReceived.add(length);
+                journal.advance(interval, position, fileChannel);
+            }
+        } catch (EOFException e) {
+            // Connection lost mid-frame: the journal already covers every whole frame
+        } finally {
+            giveBack(buffers);
+        }
+        return position - offset;
+    }
+
+    private static void deflate(Chunk chunk) {
+        if (!chunk.claim()) return; // The socket got to it first and sent it raw
+        Deflater deflater = DEFLATER.get();
+        byte[] data = chunk.data;
+        int dataLength = chunk.length;
+
+        // A PROBE_SIZE sample that does not shrink says the chunk goes raw, without deflating all of it
+        if (dataLength >= PROBE_SIZE * 4) {
+            byte[] probe = PROBE_BUFFER.get();
+            deflater.reset();
+            deflater.setInput(data, 0, PROBE_SIZE);
+            deflater.finish();
+            int probed = deflater.deflate(probe);
+            if (!deflater.finished() || probed > PROBE_SIZE - PROBE_SIZE / 8) return;
+        }
+
+        byte[] deflated = chunk.deflated;
+        deflater.reset();
+        deflater.setInput(data, 0, dataLength);
+        deflater.finish();
+        int length = 0;
+        while (!deflater.finished() && length < dataLength) {
+            length += deflater.deflate(deflated, length, dataLength - length);
+        }
+        if (deflater.finished() && length < dataLength - dataLength / 16) {
+            chunk.deflatedLength = length;
+        }
+    }
+
+    private static void inflate(Inflater inflater, byte[] wire, int wireLength, byte[] data, int length) throws IOException {
+        inflater.reset();
+        inflater.setInput(wire, 0, wireLength);
+        int inflated = 0;
+        try {
+            while (inflated < length && !inflater.finished()) {
+                int count = inflater.inflate(data, inflated, length - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+                inflated += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt compressed frame", e);
+        }
+        if (inflated != length || !inflater.finished()) {
+            throw new IOException("Corrupt compressed frame");
+        }
+    }
+
+    private static void readChunk(FileChannel fileChannel, long position, int length, Chunk chunk) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk.data, 0, length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (fileChannel.read(buffer, position + buffer.position()) == -1) {
+                    throw new EOFException("File shrank while it was being sent");
+                }
+            }
+        } catch (IOException e) {
+            giveBack(chunk);
+            throw e;
+        }
+        chunk.length = length;
+    }
+
+    private static Chunk takeChunk() {
+        Chunk chunk = SPARE_CHUNKS.poll();
+        return chunk != null ? chunk : new Chunk();
+    }
+
+    private static void giveBack(Chunk chunk) {
+        chunk.length = 0;
+        chunk.deflatedLength = 0;
+        chunk.task = null;
+        chunk.claimed.set(false);
+        SPARE_CHUNKS.offer(chunk); // Dropped when the spares are full
+    }
+
+    private static void await(Future<?> task) throws IOException {
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while compressing");
+        } catch (ExecutionException e) {
+            throw new IOException("Compression failed", e.getCause());
+        }
+    }
+
+    /**
+     * One chunk of a compressed body, with room for CHUNK_SIZE file bytes and as many deflated ones.
+     * deflatedLength stays 0 when the chunk is sent raw. Whichever of the socket and the compressor
+     * claims the chunk first decides: the socket sends it raw, or waits for the compressor to finish.
+     * Cancelling the task would not do, a FutureTask still counts as cancellable while it runs.
+     */
+    private static final class Chunk {
+        final byte[] data = new byte[CHUNK_SIZE];
+        final byte[] deflated = new byte[CHUNK_SIZE];
+        int length;
+        int deflatedLength;
+        Future<?> task;
+        final AtomicBoolean claimed = new AtomicBoolean();
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+}
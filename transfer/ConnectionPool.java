@@ -0,0 +1,98 @@
+package transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A TCP client's kept-alive connections, a few per server, so SEND-FILES, RECEIVE-FILES and the
+ * streams of a parallel transfer go over connections the server still holds open instead of a new
+ * handshake and slow start for every file. Callers give a connection back only in step with the server, once
+ * its last answer and body have been read in full. One that sat in the pool for half the server's
+ * session timeout (-Didle.timeout), or that has something to read, which is how a connection the
+ * server closed shows, is dropped instead of reused.
+ */
+public final class ConnectionPool {
+    private static final int MAX_IDLE = 8; // Kept for each server address
+    private static final long MAX_IDLE_NANOS = TimeUnit.SECONDS.toNanos(Integer.getInteger("idle.timeout", 60)) / 2;
+
+    private final Map<String, ArrayDeque<IdleConnection>> idle = new HashMap<>();
+
+    private static final class IdleConnection {
+        final Socket socket;
+        final long since = System.nanoTime();
+
+        IdleConnection(Socket socket) {
+            this.socket = socket;
+        }
+    }
+
+    /**
+     * An idle connection to serverAddress:port, or a new one. New connections are opened through a
+     * SocketChannel, so socket.getChannel() is there for zero-copy sends.
+     */
+    public Socket borrow(String serverAddress, int port) throws IOException {
+        String server = serverAddress + ":" + port;
+        while (true) {
+            IdleConnection connection;
+            synchronized (this) {
+                ArrayDeque<IdleConnection> connections = idle.get(server);
+                connection = connections == null ? null : connections.pollLast(); // Newest first, the likeliest still open
+            }
+            if (connection == null) return SocketChannel.open(new InetSocketAddress(serverAddress, port)).socket();
+            if (System.nanoTime() - connection.since < MAX_IDLE_NANOS && isQuiet(connection.socket)) {
+                return connection.socket;
+            }
+            closeQuietly(connection.socket);
+        }
+    }
+
+    /**
+     * Hands the connection back after a transfer. reusable is false when the exchange broke off midway;
+     * such a connection is closed, and so is one that finds MAX_IDLE others already waiting.
+     */
+    public void release(String serverAddress, int port, Socket socket, boolean reusable) {
+        if (reusable && !socket.isClosed()) {
+            synchronized (this) {
+                ArrayDeque<IdleConnection> connections = idle.computeIfAbsent(serverAddress + ":" + port, s -> new ArrayDeque<>());
+                if (connections.size() < MAX_IDLE) {
+                    connections.add(new IdleConnection(socket));
+                    return;
+                }
+            }
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * Polls the channel once without blocking. A session the server timed out reads as end of stream;
+     * any byte at all would be out of step with this client's commands. Either way it is not reused.
+     */
+    private static boolean isQuiet(Socket socket) {
+        SocketChannel channel = socket.getChannel();
+        try {
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Dropped either way
+        }
+    }
+}
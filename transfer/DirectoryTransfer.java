@@ -0,0 +1,359 @@
+package transfer;
+
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.stream.Stream;
+import metrics.TransferMetrics;
+
+/**
+ * SEND-DIR name: a directory tree uploaded over one connection. After the server's READY every
+ * directory and regular file goes out as an entry, without waiting for answers: a type byte, the path
+ * relative to the directory with '/' separators, the POSIX mode or -1, and for files the size and the
+ * data. END closes the stream and the server answers once everything is written. Symbolic links and
+ * special files are skipped. Files up to SMALL_FILE take a thread pool on either side, readers ahead
+ * of the socket on the client and writers behind it on the server, each at most READ_AHEAD bytes
+ * away from it; larger files go through the caller's FileSender and are written as they stream in.
+ * TCPFileTransfer and simpleTCP both speak it through this class and answer the command themselves.
+ */
+public class DirectoryTransfer {
+    public static final String COMMAND = "SEND-DIR";
+    public static final int BUFFER_SIZE = 256 * 1024;         // Also the pushback room receive needs
+
+    private static final int SMALL_FILE = 1024 * 1024;        // Files up to this size are read and written on the pools
+    private static final int READ_AHEAD = 64 * 1024 * 1024;   // Small-file bytes queued on either side
+    private static final int ENTRY_COST = 4096;               // Charged per queued entry on top of its data
+    private static final byte DIRECTORY = 'D';
+    private static final byte FILE = 'F';
+    private static final byte END = 'E';
+    private static final int THREADS = Integer.getInteger("dir.threads", 8);
+    private static final ExecutorService READERS = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "dir-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(THREADS, r -> {
+        Thread thread = new Thread(r, "dir-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private DirectoryTransfer() {
+    }
+
+    /**
+     * Sends the first length bytes of a large file straight to the socket and returns how many went.
+     */
+    public interface FileSender {
+        long send(FileChannel fileChannel, Socket socket, long length) throws IOException;
+    }
+
+    /**
+     * Client side of SEND-DIR, once the server has answered READY: walks the tree under root and streams
+     * it, END included, each small file handed to READERS as soon as the walk reaches it and written out
+     * when its turn on the socket comes. Larger files go through largeFiles.
+     */
+    public static Summary send(Path root, Socket socket, FileSender largeFiles, TransferMetrics metrics) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+        ArrayDeque<Entry> pending = new ArrayDeque<>();
+        try (Stream<Path> tree = Files.walk(root)) {
+            Iterator<Path> paths = tree.iterator();
+            long queued = 0;
+            long files = 0;
+            long bytes = 0;
+            while (true) {
+                while (queued < READ_AHEAD && paths.hasNext()) {
+                    Entry entry = entry(root, paths.next());
+                    if (entry == null) continue;
+                    if (entry.isSmallFile()) {
+                        entry.data = READERS.submit(() -> Files.readAllBytes(entry.path));
+                    }
+                    pending.add(entry);
+                    queued += entry.cost();
+                }
+                Entry entry = pending.poll();
+                if (entry == null) break;
+                queued -= entry.cost();
+
+                out.writeByte(entry.directory ? DIRECTORY : FILE);
+                out.writeUTF(entry.name);
+                out.writeInt(entry.mode);
+                if (entry.directory) continue;
+                if (entry.data != null) {
+                    byte[] data = await(entry.data);
+                    out.writeLong(data.length);
+                    out.write(data);
+                    metrics.bytesSent.add(data.length);
+                    bytes += data.length;
+                } else {
+                    try (FileChannel fileChannel = FileChannel.open(entry.path, StandardOpenOption.READ)) {
+                        long size = fileChannel.size();
+                        out.writeLong(size);
+                        out.flush();
+                        if (largeFiles.send(fileChannel, socket, size) < size) {
+                            throw new EOFException(entry.path + " shrank while it was being sent");
+                        }
+                        bytes += size;
+                    }
+                }
+                files++;
+            }
+            out.writeByte(END);
+            out.flush();
+            return new Summary(files, bytes, 0, null);
+        } finally {
+            for (Entry entry : pending) {
+                if (entry.data != null) entry.data.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * What send needs to know of path, from one stat that does not follow links, so a link is skipped
+     * rather than sent as its target; null for anything but a directory or a regular file.
+     */
+    private static Entry entry(Path root, Path path) throws IOException {
+        BasicFileAttributes attributes;
+        int mode = -1;
+        try {
+            PosixFileAttributes posix = Files.readAttributes(path, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            mode = posixMode(posix.permissions());
+            attributes = posix;
+        } catch (UnsupportedOperationException e) {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        if (!attributes.isDirectory() && !attributes.isRegularFile()) return null;
+        String name = root.relativize(path).toString().replace(File.separatorChar, '/');
+        return new Entry(path, name, attributes.isDirectory(), attributes.size(), mode);
+    }
+
+    private static byte[] await(Future<byte[]> read) throws IOException {
+        try {
+            return read.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Server side of SEND-DIR into root, which the caller has locked and answered READY for: reads the
+     * entries up to END. Only small files go through WRITERS, larger ones are written here straight off
+     * the socket; files WRITERS could not write are counted in the summary, for the caller's answer.
+     * Modes of directories wait for the end, deepest first, as a read-only directory would refuse the
+     * files still to come. Read-ahead past END goes back to commands, which needs room for BUFFER_SIZE
+     * bytes: they are the start of the client's next command.
+     */
+    public static Summary receive(Path root, PushbackInputStream commands, TransferMetrics metrics) throws IOException {
+        TreeInput tree = new TreeInput(commands);
+        DataInputStream in = new DataInputStream(tree);
+        Semaphore writeBehind = new Semaphore(READ_AHEAD);
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        List<Path> directories = new ArrayList<>();
+        List<Integer> directoryModes = new ArrayList<>();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        long files = 0;
+        long bytes = 0;
+        Files.createDirectories(root);
+        try {
+            byte type;
+            while ((type = in.readByte()) != END) {
+                String name = in.readUTF();
+                int mode = in.readInt();
+                Path path = entryPath(root, name);
+                if (path == null) {
+                    throw new IOException("Entry outside the directory: " + name);
+                }
+                if (type == DIRECTORY) {
+                    Files.createDirectories(path);
+                    directories.add(path);
+                    directoryModes.add(mode);
+                    continue;
+                }
+                if (type != FILE) {
+                    throw new IOException("Invalid entry type " + type);
+                }
+
+                long size = in.readLong();
+                if (size < 0) {
+                    throw new IOException("Invalid size " + size + " for " + name);
+                }
+                if (size <= SMALL_FILE) {
+                    byte[] data = new byte[(int) size];
+                    in.readFully(data);
+                    metrics.bytesReceived.add(size);
+                    int cost = data.length + ENTRY_COST;
+                    writeBehind.acquireUninterruptibly(cost);
+                    WRITERS.execute(() -> {
+                        try {
+                            writeEntry(path, data, mode, metrics);
+                        } catch (IOException | RuntimeException e) {
+                            failures.add(name + ": " + e.getMessage());
+                        } finally {
+                            writeBehind.release(cost);
+                        }
+                    });
+                } else {
+                    receiveEntry(path, size, mode, in, buffer, metrics);
+                }
+                files++;
+                bytes += size;
+            }
+            tree.giveBack(commands);
+        } finally {
+            // Taking back every permit waits out the writes still queued
+            writeBehind.acquireUninterruptibly(READ_AHEAD);
+        }
+        for (int i = directories.size() - 1; i >= 0; i--) {
+            applyMode(directories.get(i), directoryModes.get(i));
+        }
+
+        return new Summary(files, bytes, failures.size(), failures.peek());
+    }
+
+    /**
+     * Where the entry called name lands under root, or null if a "..", an absolute or a malformed name
+     * would put it elsewhere. Names use '/' whatever the sender's platform.
+     */
+    public static Path entryPath(Path root, String name) {
+        if (name.isEmpty()) return root;
+        try {
+            Path path = root.resolve(name).normalize();
+            return path.startsWith(root) ? path : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static void writeEntry(Path path, byte[] data, int mode, TransferMetrics metrics) throws IOException {
+        long writeStart = System.nanoTime();
+        Files.write(path, data);
+        metrics.diskWrite.since(writeStart);
+        applyMode(path, mode);
+    }
+
+    private static void receiveEntry(Path path, long size, int mode, DataInputStream in, byte[] buffer, TransferMetrics metrics) throws IOException {
+        try (OutputStream fileOut = Files.newOutputStream(path)) {
+            long remaining = size;
+            while (remaining > 0) {
+                int chunk = (int) Math.min(remaining, buffer.length);
+                in.readFully(buffer, 0, chunk);
+                metrics.bytesReceived.add(chunk);
+                long writeStart = System.nanoTime();
+                fileOut.write(buffer, 0, chunk);
+                metrics.diskWrite.since(writeStart);
+                remaining -= chunk;
+            }
+        }
+        applyMode(path, mode);
+    }
+
+    /**
+     * POSIX permission bits as in chmod (0755 and so on), so the receiver does not depend on the order of
+     * PosixFilePermission.
+     */
+    private static int posixMode(Set<PosixFilePermission> permissions) {
+        int mode = 0;
+        for (PosixFilePermission permission : permissions) {
+            mode |= 0400 >> permission.ordinal();
+        }
+        return mode;
+    }
+
+    /**
+     * Sets the permission bits of posixMode; -1, from a sender without POSIX permissions, or a receiver
+     * without them keeps the defaults.
+     */
+    private static void applyMode(Path path, int mode) throws IOException {
+        if (mode < 0) return;
+        Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+        for (PosixFilePermission permission : PosixFilePermission.values()) {
+            if ((mode & 0400 >> permission.ordinal()) != 0) {
+                permissions.add(permission);
+            }
+        }
+        try {
+            Files.setPosixFilePermissions(path, permissions);
+        } catch (UnsupportedOperationException e) {
+            // The receiver keeps its default permissions
+        }
+    }
+
+    /**
+     * Files and file bytes that went over the connection, and on the receiving side how many of those
+     * files could not be written, with the first failure or null.
+     */
+    public static final class Summary {
+        public final long files;
+        public final long bytes;
+        public final int failed;
+        public final String firstFailure;
+
+        Summary(long files, long bytes, int failed, String firstFailure) {
+            this.files = files;
+            this.bytes = bytes;
+            this.failed = failed;
+            this.firstFailure = firstFailure;
+        }
+    }
+
+    /**
+     * Buffered reader of the tree, which ends inside the stream, not with it. Whatever it read past END
+     * may be commands pipelined behind the tree; giveBack returns it to the session.
+     */
+    private static final class TreeInput extends BufferedInputStream {
+        TreeInput(InputStream session) {
+            super(session, BUFFER_SIZE);
+        }
+
+        void giveBack(PushbackInputStream session) throws IOException {
+            if (count > pos) {
+                session.unread(buf, pos, count - pos);
+                pos = count;
+            }
+        }
+    }
+
+    /**
+     * One entry of a SEND-DIR upload. data is the read-ahead of a small file, null for the rest.
+     */
+    private static final class Entry {
+        final Path path;
+        final String name;
+        final boolean directory;
+        final long size;
+        final int mode;
+        Future<byte[]> data;
+
+        Entry(Path path, String name, boolean directory, long size, int mode) {
+            this.path = path;
+            this.name = name;
+            this.directory = directory;
+            this.size = size;
+            this.mode = mode;
+        }
+
+        boolean isSmallFile() {
+            return !directory && size <= SMALL_FILE;
+        }
+
+        long cost() {
+            return isSmallFile() ? size + ENTRY_COST : ENTRY_COST;
+        }
+    }
+}
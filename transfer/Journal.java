@@ -0,0 +1,236 @@
+package transfer;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import metrics.TransferMetrics;
+
+/**
+ * Sidecar "<file>.part" journal of a partially received file. It lists the byte intervals known to
+ * be on disk; every stream writing the file owns one interval and extends it as data arrives. The
+ * journal is rewritten (after forcing the data) every JOURNAL_INTERVAL bytes and when a stream ends,
+ * and deleted once the whole file is present. It is only trusted for a file of the same size.
+ * TCPFileTransfer and simpleTCP both keep their partial files this way.
+ */
+public class Journal {
+    private static final long JOURNAL_INTERVAL = 16L * 1024 * 1024; // Received bytes between journal updates
+
+    // Streams of the same file in this process share one journal
+    private static final Map<String, Journal> OPEN = new HashMap<>();
+
+    private final File target;
+    private final File journalFile;
+    public final long fileSize;
+    private final TransferMetrics metrics;
+    private final List<long[]> intervals = new ArrayList<>();
+    private final Object saveLock = new Object(); // Held while syncing and writing, never with this
+    private int users;
+    private long unsaved;
+    private boolean finished; // Deleted as complete, late saves must not bring it back
+
+    private Journal(File target, long fileSize, TransferMetrics metrics) {
+        this.target = target;
+        this.journalFile = new File(target.getPath() + ".part");
+        this.fileSize = fileSize;
+        this.metrics = metrics;
+    }
+
+    public static boolean exists(File target) {
+        return new File(target.getPath() + ".part").exists();
+    }
+
+    /**
+     * Returns the journal for target, loading the one an earlier attempt left on disk when resume
+     * is set. Every open must be paired with close. Syncs are timed on metrics.
+     */
+    public static Journal open(File target, long fileSize, boolean resume, TransferMetrics metrics) throws IOException {
+        synchronized (OPEN) {
+            String key = target.getAbsolutePath();
+            Journal journal = OPEN.get(key);
+            if (journal == null || journal.fileSize != fileSize) {
+                journal = new Journal(target, fileSize, metrics);
+                if (resume) {
+                    journal.load();
+                }
+                OPEN.put(key, journal);
+            }
+            journal.users++;
+            return journal;
+        }
+    }
+
+    /**
+     * Bytes at the start of target that an earlier attempt left on disk, or 0 without a usable
+     * journal. A fileSize of -1 takes the file's present size.
+     */
+    public static long verifiedBytes(File target, long fileSize) {
+        Journal journal = new Journal(target, fileSize == -1 ? target.length() : fileSize, null);
+        try {
+            journal.load();
+        } catch (IOException e) {
+            return 0;
+        }
+        return journal.resumePoint(0, journal.fileSize);
+    }
+
+    private void load() throws IOException {
+        if (!journalFile.exists() || target.length() != fileSize) return;
+        try (BufferedReader reader = new BufferedReader(new FileReader(journalFile))) {
+            String header = reader.readLine();
+            if (header == null || Long.parseLong(header.trim()) != fileSize) return;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 2) {
+                    intervals.add(new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])});
+                }
+            }
+        } catch (NumberFormatException e) {
+            intervals.clear();
+        }
+    }
+
+    public synchronized long[] begin(long offset) {
+        long[] interval = {offset, offset};
+        intervals.add(interval);
+        return interval;
+    }
+
+    public void advance(long[] interval, long position, FileChannel fileChannel) throws IOException {
+        if (record(interval, position)) {
+            save(fileChannel);
+        }
+    }
+
+    /**
+     * advance for the selector threads, which must not wait on the disk: a save that is due runs on
+     * sync instead.
+     */
+    public void advance(long[] interval, long position, FileChannel fileChannel, Executor sync) {
+        if (record(interval, position)) {
+            sync.execute(() -> {
+                try {
+                    save(fileChannel);
+                } catch (IOException e) {
+                    System.out.println("Failed to save journal: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Moves the end of interval to position and tells whether a save is due.
+     */
+    private synchronized boolean record(long[] interval, long position) {
+        unsaved += position - interval[1];
+        interval[1] = position;
+        if (unsaved < JOURNAL_INTERVAL) return false;
+        unsaved = 0;
+        return true;
+    }
+
+    /**
+     * Where a transfer of [offset, end) should really start: past any data already on disk at offset.
+     */
+    public synchronized long resumePoint(long offset, long end) {
+        for (long[] interval : merged()) {
+            if (interval[0] <= offset && offset < interval[1]) {
+                return Math.min(interval[1], end);
+            }
+        }
+        return offset;
+    }
+
+    public synchronized List<long[]> missing() {
+        List<long[]> gaps = new ArrayList<>();
+        long position = 0;
+        for (long[] interval : merged()) {
+            if (interval[0] > position) {
+                gaps.add(new long[] {position, interval[0]});
+            }
+            position = Math.max(position, interval[1]);
+        }
+        if (position < fileSize) {
+            gaps.add(new long[] {position, fileSize});
+        }
+        return gaps;
+    }
+
+    /**
+     * Releases one stream's handle. The last one deletes the journal if the file is complete; any
+     * stream leaving a gap saves it. fileChannel may be null if the file was never opened.
+     */
+    public void close(FileChannel fileChannel) throws IOException {
+        boolean last;
+        synchronized (OPEN) {
+            last = --users == 0;
+            if (last) {
+                OPEN.remove(target.getAbsolutePath(), this);
+            }
+        }
+        boolean complete;
+        synchronized (this) {
+            complete = missing().isEmpty();
+        }
+        if (!complete) {
+            if (fileChannel != null) save(fileChannel);
+        } else if (last) {
+            synchronized (saveLock) {
+                finished = true;
+                Files.deleteIfExists(journalFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Syncs the file and writes the intervals recorded before the sync. Only the snapshot is taken
+     * under the journal's lock, so streams still writing are not held up by the disk.
+     */
+    private void save(FileChannel fileChannel) throws IOException {
+        synchronized (saveLock) {
+            if (finished) return;
+            List<long[]> snapshot;
+            synchronized (this) {
+                snapshot = merged();
+            }
+            long syncStart = System.nanoTime();
+            fileChannel.force(false); // Nothing is journaled before it is on disk
+            metrics.diskSync.since(syncStart);
+            File temp = new File(journalFile.getPath() + ".tmp");
+            try (Writer writer = new FileWriter(temp)) {
+                writer.write(fileSize + "\n");
+                for (long[] interval : snapshot) {
+                    writer.write(interval[0] + " " + interval[1] + "\n");
+                }
+            }
+            Files.move(temp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    private List<long[]> merged() {
+        List<long[]> sorted = new ArrayList<>();
+        for (long[] interval : intervals) {
+            if (interval[1] > interval[0]) {
+                sorted.add(new long[] {interval[0], interval[1]});
+            }
+        }
+        sorted.sort(Comparator.comparingLong(interval -> interval[0]));
+        List<long[]> merged = new ArrayList<>();
+        for (long[] interval : sorted) {
+            long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && interval[0] <= last[1]) {
+                last[1] = Math.max(last[1], interval[1]);
+            } else {
+                merged.add(interval);
+            }
+        }
+        return merged;
+    }
+}